@@ -0,0 +1,255 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.File;
+import java.net.URI;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.semanticweb.owl.apibinding.OWLManager;
+import org.semanticweb.owl.model.OWLClass;
+import org.semanticweb.owl.model.OWLDescription;
+import org.semanticweb.owl.model.OWLOntology;
+import org.semanticweb.owl.model.OWLOntologyManager;
+
+/**
+ * Microbenchmarks of the scrubber operations, run against synthetic
+ * ontologies of several sizes. Operations that change the ontology run inside
+ * a {@link ProfileOverlay}, which is rolled back after each invocation, so
+ * every invocation sees the same ontology.
+ *
+ * Build and run with "ant bench"; "-prof gc" is passed by default, so the
+ * allocation rate per operation is reported with the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class ScrubberBenchmark {
+
+	/** The number of classes fetched by the getQualifiers benchmark. */
+	private static final int QUALIFIER_SAMPLE = 256;
+
+	/** The number of classes in the ontology. */
+	@Param( { "1000", "10000" })
+	public int classes;
+
+	/** The number of FULL_SYN values per class. */
+	@Param( { "4" })
+	public int synonyms;
+
+	/** The class at the root of the branch to remove. */
+	@Param( { "10" })
+	public int branch;
+
+	/** The scrubber. */
+	OWLScrubber scrubber;
+
+	/** The ontology. */
+	OWLOntology ontology;
+
+	/** The manager. */
+	OWLOntologyManager manager;
+
+	/** The root of the branch to remove. */
+	OWLClass branchRoot;
+
+	/** The class hierarchy, indexed once for the getDescendants benchmark. */
+	ClassHierarchy hierarchy;
+
+	/** The classes fetched by the getQualifiers benchmark. */
+	OWLClass[] sample;
+
+	/** The file written by the saveOntology benchmark. */
+	File saveFile;
+
+	/**
+	 * Builds the ontology and points a scrubber at it.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		manager = OWLManager.createOWLOntologyManager();
+		ontology = SyntheticOntology.build(manager, classes, synonyms, 42L);
+		saveFile = File.createTempFile("owlscrubber-bench", ".owl");
+		saveFile.deleteOnExit();
+		scrubber = new OWLScrubber();
+		scrubber.setOntology(manager, ontology, SyntheticOntology.NAMESPACE,
+				SyntheticOntology.PREFIX, saveFile.toURI());
+		hierarchy = ClassHierarchy.build(ontology);
+		branchRoot = manager.getOWLDataFactory().getOWLClass(
+				SyntheticOntology.uri(SyntheticOntology.getName(branch)));
+		sample = new OWLClass[QUALIFIER_SAMPLE];
+		for (int i = 0; i < sample.length; i++) {
+			sample[i] = manager.getOWLDataFactory().getOWLClass(
+					SyntheticOntology.uri(SyntheticOntology.getName(i
+							* classes / sample.length)));
+		}
+	}
+
+	/**
+	 * Removes the saved file.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		saveFile.delete();
+	}
+
+	/**
+	 * Rolls back the changes of each invocation.
+	 */
+	@State(Scope.Benchmark)
+	public static class Rollback {
+
+		/** The overlay of the current invocation. */
+		ProfileOverlay overlay;
+
+		/**
+		 * Starts recording changes.
+		 *
+		 * @param bench
+		 *            the benchmark state
+		 */
+		@Setup(Level.Invocation)
+		public void open(ScrubberBenchmark bench) {
+			overlay = bench.scrubber.openOverlay();
+		}
+
+		/**
+		 * Undoes the recorded changes.
+		 *
+		 * @param bench
+		 *            the benchmark state
+		 * @throws Exception
+		 *             the exception
+		 */
+		@TearDown(Level.Invocation)
+		public void close(ScrubberBenchmark bench) throws Exception {
+			bench.scrubber.closeOverlay();
+			bench.scrubber.removedClasses.clear();
+		}
+	}
+
+	/**
+	 * Removes the branch before each invocation, leaving associations that
+	 * point into it for fixReferences, and rolls it back afterwards.
+	 */
+	@State(Scope.Benchmark)
+	public static class BranchRemoved {
+
+		/** The overlay of the current invocation. */
+		ProfileOverlay overlay;
+
+		/**
+		 * Removes the branch.
+		 *
+		 * @param bench
+		 *            the benchmark state
+		 */
+		@Setup(Level.Invocation)
+		public void open(ScrubberBenchmark bench) {
+			overlay = bench.scrubber.openOverlay();
+			bench.scrubber.removeBranch(bench.branchRoot.getURI());
+		}
+
+		/**
+		 * Undoes the branch removal and fixReferences.
+		 *
+		 * @param bench
+		 *            the benchmark state
+		 * @throws Exception
+		 *             the exception
+		 */
+		@TearDown(Level.Invocation)
+		public void close(ScrubberBenchmark bench) throws Exception {
+			bench.scrubber.closeOverlay();
+			bench.scrubber.removedClasses.clear();
+		}
+	}
+
+	@Benchmark
+	public Vector<OWLDescription> getDescendants() {
+		return scrubber.getDescendants(hierarchy, branchRoot);
+	}
+
+	@Benchmark
+	public int removeBranch(Rollback rollback) {
+		scrubber.removeBranch(branchRoot.getURI());
+		return rollback.overlay.size();
+	}
+
+	@Benchmark
+	public int removeProperty(Rollback rollback) {
+		scrubber.removeProperty("Semantic_Type");
+		return rollback.overlay.size();
+	}
+
+	@Benchmark
+	public int removePropertyQualified(Rollback rollback) {
+		scrubber.removeProperty("FULL_SYN", new String[][] { {
+				SyntheticOntology.PREFIX + ":term-source", "FDA" } }, 1);
+		return rollback.overlay.size();
+	}
+
+	@Benchmark
+	public int removePropertyTabbed(Rollback rollback) {
+		scrubber.removeProperty("FULL_SYN\tterm-group\tSY\tterm-source\tNCI");
+		return rollback.overlay.size();
+	}
+
+	@Benchmark
+	public int removeComplex(Rollback rollback) {
+		scrubber.removeComplex("DEFINITION\tDefinition_Review_Date");
+		return rollback.overlay.size();
+	}
+
+	@Benchmark
+	public int removeEmpty(Rollback rollback) {
+		scrubber.removeEmpty();
+		return rollback.overlay.size();
+	}
+
+	@Benchmark
+	public int fixReferences(BranchRemoved removed) {
+		scrubber.fixReferences();
+		return removed.overlay.size();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUALIFIER_SAMPLE)
+	public void getQualifiers(Blackhole bh) {
+		for (OWLClass c : sample) {
+			bh.consume(scrubber.getQualifiers(c, "FULL_SYN",
+					SyntheticOntology.PREFIX + ":term-name"));
+		}
+	}
+
+	@Benchmark
+	public long saveOntology() {
+		scrubber.saveOntology();
+		return saveFile.length();
+	}
+}
@@ -0,0 +1,199 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.semanticweb.owl.model.AddAxiom;
+import org.semanticweb.owl.model.OWLAxiom;
+import org.semanticweb.owl.model.OWLClass;
+import org.semanticweb.owl.model.OWLDataFactory;
+import org.semanticweb.owl.model.OWLDataType;
+import org.semanticweb.owl.model.OWLEntity;
+import org.semanticweb.owl.model.OWLException;
+import org.semanticweb.owl.model.OWLOntology;
+import org.semanticweb.owl.model.OWLOntologyChange;
+import org.semanticweb.owl.model.OWLOntologyManager;
+
+/**
+ * Builds NCI Thesaurus shaped ontologies in memory for the benchmarks. Every
+ * class has a code, a preferred name, FULL_SYN and DEFINITION XML literals with
+ * ncicp qualifiers, a semantic type and a concept status. Every tenth class
+ * has an empty Editor_Note and every fourth an association to an earlier
+ * class. Each class is a subclass of a random earlier class, so the branches
+ * under low numbered classes are the largest.
+ */
+final class SyntheticOntology {
+
+	/** The namespace of the ontology. */
+	static final String NAMESPACE = "http://ncicb.nci.nih.gov/xml/owl/EVS/Thesaurus.owl";
+
+	/** The prefix of the XML literals. */
+	static final String PREFIX = "ncicp";
+
+	/** The XMLLiteral data type. */
+	private static final String XML_LITERAL = "http://www.w3.org/1999/02/22-rdf-syntax-ns#XMLLiteral";
+
+	/** The string data type. */
+	private static final String STRING = "http://www.w3.org/2001/XMLSchema#string";
+
+	/** The anyURI data type. */
+	private static final String ANY_URI = "http://www.w3.org/2001/XMLSchema#anyURI";
+
+	/** The term groups used in FULL_SYN. */
+	private static final String[] TERM_GROUPS = { "PT", "SY", "AB", "BR" };
+
+	/** The term sources used in FULL_SYN. */
+	private static final String[] TERM_SOURCES = { "NCI", "FDA", "CDISC" };
+
+	/** The semantic types. */
+	private static final String[] SEMANTIC_TYPES = { "Gene",
+			"Neoplastic Process", "Pharmacologic Substance", "Finding" };
+
+	/** The data factory. */
+	private final OWLDataFactory factory;
+
+	/** The ontology being built. */
+	private final OWLOntology ontology;
+
+	/** The pending changes. */
+	private final List<OWLOntologyChange> changes = new ArrayList<OWLOntologyChange>();
+
+	/**
+	 * Instantiates a new synthetic ontology builder.
+	 *
+	 * @param manager
+	 *            the manager
+	 * @param ontology
+	 *            the empty ontology
+	 */
+	private SyntheticOntology(OWLOntologyManager manager, OWLOntology ontology) {
+		this.factory = manager.getOWLDataFactory();
+		this.ontology = ontology;
+	}
+
+	/**
+	 * Builds an ontology.
+	 *
+	 * @param manager
+	 *            the manager
+	 * @param classes
+	 *            the number of classes
+	 * @param synonyms
+	 *            the number of FULL_SYN values per class
+	 * @param seed
+	 *            the random seed
+	 * @return the ontology
+	 * @throws OWLException
+	 *             the OWL exception
+	 */
+	static OWLOntology build(OWLOntologyManager manager, int classes,
+			int synonyms, long seed) throws OWLException {
+		OWLOntology ontology = manager.createOntology(URI.create(NAMESPACE));
+		SyntheticOntology builder = new SyntheticOntology(manager, ontology);
+		Random random = new Random(seed);
+		OWLClass[] all = new OWLClass[classes];
+		for (int i = 0; i < classes; i++) {
+			String name = getName(i);
+			OWLClass c = builder.factory.getOWLClass(uri(name));
+			all[i] = c;
+			builder.add(builder.factory.getOWLDeclarationAxiom(c));
+			if (i > 0) {
+				builder.add(builder.factory.getOWLSubClassAxiom(c,
+						all[random.nextInt(i)]));
+			}
+			builder.annotate(c, "code", "C" + (10000 + i), STRING);
+			builder.annotate(c, "Preferred_Name", name.replace('_', ' ')
+					+ " & Co", STRING);
+			for (int s = 0; s < synonyms; s++) {
+				builder.annotate(c, "FULL_SYN", "<ncicp:ComplexTerm>"
+						+ "<ncicp:term-name>Synonym " + s + " of " + name
+						+ "</ncicp:term-name><ncicp:term-group>"
+						+ TERM_GROUPS[random.nextInt(TERM_GROUPS.length)]
+						+ "</ncicp:term-group><ncicp:term-source>"
+						+ TERM_SOURCES[random.nextInt(TERM_SOURCES.length)]
+						+ "</ncicp:term-source></ncicp:ComplexTerm>",
+						XML_LITERAL);
+			}
+			builder.annotate(c, "DEFINITION", "<ncicp:ComplexDefinition>"
+					+ "<ncicp:def-definition>Definition of " + name
+					+ " &amp; more</ncicp:def-definition>"
+					+ "<ncicp:def-source>NCI</ncicp:def-source>"
+					+ "<ncicp:Definition_Review_Date>2008-01-01"
+					+ "</ncicp:Definition_Review_Date>"
+					+ "</ncicp:ComplexDefinition>", XML_LITERAL);
+			builder.annotate(c, "Semantic_Type", SEMANTIC_TYPES[random
+					.nextInt(SEMANTIC_TYPES.length)], STRING);
+			builder.annotate(c, "Concept_Status",
+					random.nextInt(20) == 0 ? "Retired_Concept"
+							: "Reviewed", STRING);
+			if (i % 10 == 0) {
+				builder.annotate(c, "Editor_Note", "", STRING);
+			}
+			if (i % 4 == 0 && i > 0) {
+				builder.annotate(c, "Has_Target", uri(
+						getName(random.nextInt(i))).toString(), ANY_URI);
+			}
+		}
+		manager.applyChanges(builder.changes);
+		return ontology;
+	}
+
+	/**
+	 * Gets the name of a class.
+	 *
+	 * @param i
+	 *            the class number
+	 * @return the name
+	 */
+	static String getName(int i) {
+		return "Concept_" + i;
+	}
+
+	/**
+	 * Gets the uri of a name in the namespace.
+	 *
+	 * @param name
+	 *            the name
+	 * @return the uri
+	 */
+	static URI uri(String name) {
+		return URI.create(NAMESPACE + "#" + name);
+	}
+
+	/**
+	 * Queues a typed annotation.
+	 *
+	 * @param ent
+	 *            the entity
+	 * @param property
+	 *            the property name
+	 * @param value
+	 *            the value
+	 * @param dataType
+	 *            the data type uri
+	 */
+	private void annotate(OWLEntity ent, String property, String value,
+			String dataType) {
+		OWLDataType type = factory.getOWLDataType(URI.create(dataType));
+		add(factory.getOWLEntityAnnotationAxiom(ent, factory
+				.getOWLConstantAnnotation(uri(property), factory
+						.getOWLTypedConstant(value, type))));
+	}
+
+	/**
+	 * Queues an axiom.
+	 *
+	 * @param ax
+	 *            the axiom
+	 */
+	private void add(OWLAxiom ax) {
+		changes.add(new AddAxiom(ontology, ax));
+	}
+}
@@ -1,5 +1,7 @@
 # This script runs the asserted file processing steps one by one.
 # Pass in the name of the current and previous asserted files
+#OWLScrubber needs Java 8 or later; set SCRUBBER_JAVA to the java of such a JDK
+SCRUBBER_JAVA=${SCRUBBER_JAVA:-java}
 echo The current asserted file to be processed is $1
 
 
@@ -24,24 +26,14 @@ echo RUNNING OWL SCRUBBER
 cd OWLScrubber
 FlatOutput=$1_Flat.txt
 FtpOutput=$1_forFTP.owl
-echo outputFile $FtpOutput
-/usr/jdk1.6.0_18/bin/java -jar ./build/owlscrubber.jar -F $FlatOutput -C ./config/owlscrubber_FTP.properties -L ncicp -E -N $1 -O $FtpOutput
-
-
-#formatOWL and convertByCode
-echo ------------------------------
-echo RUNNING FORMATOWL
-cd scripts
-perl formatOWL.pl $FtpOutput ../config/props_del_NCI.txt
-
+#the scrubber writes the formatOWL form directly (output_rewrites)
 FormattedOWL=$FtpOutput-fixedNS.owl
-echo formatOwl Output $FormattedOWL
-echo RUNNING CONVERTBYCODE
-perl convertByCode.pl $FormattedOWL
+#and names the classes by code (by_code)
 ByCodeOutput=$FormattedOWL-byCode.owl
-echo byCode output $ByCodeOutput
-perl runIconv.pl $ByCodeOutput
+#and its ASCII copy (output_encoding)
 IconvOutput=$ByCodeOutput-iconv.owl
+echo outputFile $ByCodeOutput
+$SCRUBBER_JAVA -jar ./build/owlscrubber.jar -F $FlatOutput -C ./config/owlscrubber_FTP.properties -L ncicp -E -N $1 -O $ByCodeOutput
 echo iConv output $IconvOutput
 cd /app/protege/Processing
 
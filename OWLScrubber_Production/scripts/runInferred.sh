@@ -1,5 +1,7 @@
 #This will run the inferred file through the processsing steps one by one
 #Pass in the name of the current and previous inferred files
+#OWLScrubber needs Java 8 or later; set SCRUBBER_JAVA to the java of such a JDK
+SCRUBBER_JAVA=${SCRUBBER_JAVA:-java}
 echo The inferred file to be processed is $1
 echo The previous inferred file to be diffed is $2
 echo the start date for monthly history in yyyy-mm-dd form is $3
@@ -17,31 +19,17 @@ cd /app/protege/Processing
 echo SCRUBBING INFERRED FILE FOR PRODUCTION
 cd OWLScrubber
 ProdOutput=$1-forProduction.owl
-echo the output file is $ProdOutput
-/usr/jdk1.6.0_18/bin/java -jar ./build/owlscrubber.jar -C ./config/owlscrubber_nci.properties -L ncicp -E -N $1 -O $ProdOutput
-
-#run through formatOWL and convertByCode
-echo ---------------------------------
-echo RUNNING FORMATOWL
-cd scripts
-perl formatOWL.pl $ProdOutput ../config/props_del_NCI.txt
-
+#the scrubber writes the formatOWL form directly (output_rewrites)
 FormattedProd=$ProdOutput-fixedNS.owl
-echo formatOwl Output $FormattedProd
-
-echo RUNNING REMOVE DUPLICATE RESTRICTIONS
-perl removeDuplicateRestrictions.pl $FormattedProd
-
+#and removes the duplicate restrictions (remove_duplicate_restrictions)
 RemovedDups=$FormattedProd-removedDuplicates.owl
-echo removedDuplicates Output $RemovedDups
-
-echo RUNNING CONVERTBYCODE
-perl convertByCode.pl $RemovedDups
+#and names the classes by code (by_code)
 ByCodeOutput=$RemovedDups-byCode.owl
-echo byCode output $ByCodeOutput
-echo RUNNING ICONV
-perl runIconv.pl $ByCodeOutput
+#and its ASCII copy (output_encoding)
 IconvOutput=$ByCodeOutput-iconv.owl
+echo the output file is $ByCodeOutput
+$SCRUBBER_JAVA -jar ./build/owlscrubber.jar -C ./config/owlscrubber_nci.properties -L ncicp -E -N $1 -O $ByCodeOutput
+echo iConv output $IconvOutput
 cd /app/protege/Processing
 
 echo --------------------------------
@@ -79,30 +67,17 @@ echo -------------------------------
 echo SCRUBBING INFERRED FILE FOR MEME
 cd OWLScrubber
 MemeOutput=$1-forMEME.owl
-echo The output file is $MemeOutput
-/usr/jdk1.6.0_18/bin/java -jar ./build/owlscrubber.jar -c ./config/owlscrubber_meme.properties -L ncicp -E -N $1 -O $MemeOutput
-
-
-#run through formatOWL and convertByCode
-echo --------------------------------
-echo RUNNING FORMATOWL
-cd scripts
-perl formatOWL.pl $MemeOutput ../config/props_del_MEME.txt
-
+#the scrubber writes the formatOWL form directly (output_rewrites)
 FormattedMeme=$MemeOutput-fixedNS.owl
-
-echo RUNNING REMOVE DUPLICATE RESTRICTIONS
-perl removeDuplicateRestrictions.pl $FormattedMeme
-
+#and removes the duplicate restrictions (remove_duplicate_restrictions)
 RemovedDupsMeme=$FormattedMeme-removedDuplicates.owl
-echo removedDuplicates Output $RemovedDupsMeme
-
-echo RUNNING CONVERTYBYCODE
-perl convertByCode.pl $RemovedDupsMeme
+#and names the classes by code (by_code)
 ByCodeMeme=$RemovedDupsMeme-byCode.owl
-echo RUNNING ICONV
-perl runIconv.pl $ByCodeMeme
+#and its ASCII copy (output_encoding)
 IconvOutput=$ByCodeMeme-iconv.owl
+echo The output file is $ByCodeMeme
+$SCRUBBER_JAVA -jar ./build/owlscrubber.jar -c ./config/owlscrubber_meme.properties -L ncicp -E -N $1 -O $ByCodeMeme
+echo iConv output $IconvOutput
 cd /app/protege/Processing
 
 #run through OWLSummary
@@ -0,0 +1,234 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.text.Normalizer;
+
+/**
+ * Writes characters as ASCII, transliterating the rest as iconv
+ * -tASCII//translit did (runIconv.pl), but inline as the ontology is written
+ * instead of in a second pass over the saved file. Each character outside
+ * ASCII is looked up in a table built once from its compatibility
+ * decomposition, less accents, plus the letters and punctuation that do not
+ * decompose (sharp s, ae, o with stroke, curly quotes, dashes). A character
+ * with no ASCII form is written as '?', as iconv does.
+ *
+ * Characters are encoded straight into the output buffer, so there is no
+ * encoder and no copy of the text between the renderer and the file.
+ */
+final class AsciiWriter extends Writer {
+
+	/** The size of the output buffer. */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** The ASCII form of each character from 0x80 on, or null for none. */
+	private static final byte[][] TABLE = buildTable();
+
+	/** The file being written. */
+	private final OutputStream out;
+
+	/** The output buffer. */
+	private final byte[] buf = new byte[BUFFER_SIZE];
+
+	/** The number of bytes in the buffer. */
+	private int pos = 0;
+
+	/** Whether the last character written was a high surrogate. */
+	private boolean highSurrogate = false;
+
+	/** The number of characters transliterated. */
+	private long transliterated = 0;
+
+	/** The number of characters written as '?'. */
+	private long unmappable = 0;
+
+	/**
+	 * Instantiates a new ASCII writer.
+	 *
+	 * @param out
+	 *            the file being written, which is closed with the writer
+	 */
+	AsciiWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Builds the transliteration table.
+	 *
+	 * @return the ASCII form of each character from 0x80 on
+	 */
+	private static byte[][] buildTable() {
+		byte[][] table = new byte[0x10000 - 0x80][];
+		String[] special = { "\u00a0", " ", "\u00a9", "(C)", "\u00ab", "<<",
+				"\u00ad", "-", "\u00ae", "(R)", "\u00b1", "+/-", "\u00b5", "u",
+				"\u00b7", ".", "\u00bb", ">>", "\u00c6", "AE", "\u00d0", "D",
+				"\u00d7", "x", "\u00d8", "O", "\u00de", "TH", "\u00df", "ss",
+				"\u00e6", "ae", "\u00f0", "d", "\u00f7", ":", "\u00f8", "o",
+				"\u00fe", "th", "\u0110", "D", "\u0111", "d", "\u0126", "H",
+				"\u0127", "h", "\u0131", "i", "\u0141", "L", "\u0142", "l",
+				"\u0152", "OE", "\u0153", "oe", "\u0166", "T", "\u0167", "t",
+				"\u2010", "-", "\u2011", "-", "\u2012", "-", "\u2013", "-",
+				"\u2014", "-", "\u2015", "-", "\u2018", "'", "\u2019", "'",
+				"\u201a", "'", "\u201b", "'", "\u201c", "\"", "\u201d", "\"",
+				"\u201e", "\"", "\u201f", "\"", "\u2022", "o", "\u2032", "'",
+				"\u2033", "\"", "\u2039", "<", "\u203a", ">", "\u2044", "/",
+				"\u2122", "(TM)", "\u2190", "<-", "\u2192", "->", "\u2212", "-",
+				"\u2264", "<=", "\u2265", ">=" };
+		for (int i = 0; i < special.length; i += 2) {
+			table[special[i].charAt(0) - 0x80] = ascii(special[i + 1]);
+		}
+		for (char c = 0x80; c < 0xffff; c++) {
+			if (table[c - 0x80] != null || Character.isSurrogate(c)) {
+				continue;
+			}
+			String decomposed = Normalizer.normalize(String.valueOf(c),
+					Normalizer.Form.NFKD);
+			StringBuilder sb = new StringBuilder(decomposed.length());
+			for (int i = 0; i < decomposed.length(); i++) {
+				char d = decomposed.charAt(i);
+				int type = Character.getType(d);
+				if (type == Character.NON_SPACING_MARK
+						|| type == Character.COMBINING_SPACING_MARK
+						|| type == Character.ENCLOSING_MARK) {
+					continue;
+				}
+				if (d >= 0x80) {
+					// a decomposition such as 1/2 may hold a special
+					byte[] b = table[d - 0x80];
+					d = b != null && b.length == 1 ? (char) b[0] : 0;
+				}
+				if (d < 0x20) {
+					sb = null;
+					break;
+				}
+				sb.append(d);
+			}
+			if (sb != null && sb.toString().trim().length() > 0) {
+				table[c - 0x80] = ascii(sb.toString());
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Gets the bytes of an ASCII string.
+	 *
+	 * @param s
+	 *            the string
+	 * @return the bytes
+	 */
+	private static byte[] ascii(String s) {
+		byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) s.charAt(i);
+		}
+		return b;
+	}
+
+	/**
+	 * Gets the number of characters transliterated.
+	 *
+	 * @return the number of characters written in an ASCII form
+	 */
+	long getTransliterated() {
+		return transliterated;
+	}
+
+	/**
+	 * Gets the number of characters with no ASCII form.
+	 *
+	 * @return the number of characters written as '?'
+	 */
+	long getUnmappable() {
+		return unmappable;
+	}
+
+	/**
+	 * Writes one character.
+	 *
+	 * @param c
+	 *            the character
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void put(char c) throws IOException {
+		if (pos + 8 > BUFFER_SIZE) {
+			drain();
+		}
+		if (c < 0x80) {
+			highSurrogate = false;
+			buf[pos++] = (byte) c;
+			return;
+		}
+		if (Character.isLowSurrogate(c) && highSurrogate) {
+			// the pair was written as one '?' at its high surrogate
+			highSurrogate = false;
+			return;
+		}
+		highSurrogate = Character.isHighSurrogate(c);
+		byte[] b = TABLE[c - 0x80];
+		if (b == null) {
+			unmappable++;
+			buf[pos++] = '?';
+		} else {
+			transliterated++;
+			if (pos + b.length > BUFFER_SIZE) {
+				drain();
+			}
+			for (int i = 0; i < b.length; i++) {
+				buf[pos++] = b[i];
+			}
+		}
+	}
+
+	/**
+	 * Writes the buffer to the file.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void drain() throws IOException {
+		out.write(buf, 0, pos);
+		pos = 0;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		put((char) c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			put(cbuf[i]);
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			put(str.charAt(i));
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		drain();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			drain();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.semanticweb.owl.model.AxiomType;
+import org.semanticweb.owl.model.OWLEntityAnnotationAxiom;
+import org.semanticweb.owl.model.OWLOntology;
+
+/**
+ * A reverse index of associations, i.e. class annotations whose value is an
+ * anyURI pointing at another class. Associations are looked up by the uri
+ * they point to, so dangling ones can be found from the list of removed
+ * classes without scanning every class.
+ */
+final class AssociationIndex {
+
+	/** The associations by target uri. */
+	private final Map<String, List<OWLEntityAnnotationAxiom>> byTarget = new HashMap<String, List<OWLEntityAnnotationAxiom>>();
+
+	/** The number of associations indexed. */
+	private int size = 0;
+
+	/**
+	 * Builds the index from the entity annotations of an ontology.
+	 *
+	 * @param scrubber
+	 *            the scrubber, used to recognize associations
+	 * @param ontology
+	 *            the ontology
+	 * @return the association index
+	 */
+	static AssociationIndex build(OWLScrubber scrubber, OWLOntology ontology) {
+		AssociationIndex index = new AssociationIndex();
+		for (OWLEntityAnnotationAxiom ax : ontology
+				.getAxioms(AxiomType.ENTITY_ANNOTATION)) {
+			index.addIfAssociation(scrubber, ax);
+		}
+		return index;
+	}
+
+	/**
+	 * Adds an axiom to the index if it is an association.
+	 *
+	 * @param scrubber
+	 *            the scrubber, used to recognize associations
+	 * @param ax
+	 *            the axiom
+	 */
+	void addIfAssociation(OWLScrubber scrubber, OWLEntityAnnotationAxiom ax) {
+		String target = scrubber.getAssociationTarget(ax);
+		if (target != null) {
+			List<OWLEntityAnnotationAxiom> axioms = byTarget.get(target);
+			if (axioms == null) {
+				axioms = new ArrayList<OWLEntityAnnotationAxiom>(2);
+				byTarget.put(target, axioms);
+			}
+			axioms.add(ax);
+			size++;
+		}
+	}
+
+	/**
+	 * Adds the associations of another index after those already here, as
+	 * when the partitions of a parallel sweep are merged in axiom order.
+	 *
+	 * @param other
+	 *            the other index
+	 */
+	void addAll(AssociationIndex other) {
+		for (Map.Entry<String, List<OWLEntityAnnotationAxiom>> e : other.byTarget
+				.entrySet()) {
+			List<OWLEntityAnnotationAxiom> axioms = byTarget.get(e.getKey());
+			if (axioms == null) {
+				byTarget.put(e.getKey(), new ArrayList<OWLEntityAnnotationAxiom>(
+						e.getValue()));
+			} else {
+				axioms.addAll(e.getValue());
+			}
+		}
+		size += other.size;
+	}
+
+	/**
+	 * Gets the associations pointing to a uri.
+	 *
+	 * @param target
+	 *            the target uri
+	 * @return the associations, never null
+	 */
+	List<OWLEntityAnnotationAxiom> get(String target) {
+		List<OWLEntityAnnotationAxiom> axioms = byTarget.get(target);
+		if (axioms == null) {
+			return Collections.emptyList();
+		}
+		return axioms;
+	}
+
+	/**
+	 * Gets the number of associations indexed.
+	 *
+	 * @return the size
+	 */
+	int size() {
+		return size;
+	}
+}
@@ -0,0 +1,212 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.coode.owl.rdf.rdfxml.RDFXMLRenderer;
+import org.coode.owl.rdf.rdfxml.RDFXMLWriter;
+import org.coode.xml.OWLOntologyNamespaceManager;
+import org.coode.xml.XMLWriter;
+import org.coode.xml.XMLWriterFactory;
+import org.coode.xml.XMLWriterNamespaceManager;
+import org.semanticweb.owl.model.OWLOntology;
+import org.semanticweb.owl.model.OWLOntologyFormat;
+import org.semanticweb.owl.model.OWLOntologyManager;
+import org.semanticweb.owl.model.OWLOntologyStorageException;
+
+/**
+ * An XML writer that renames entities to their codes as the RDF/XML renderer
+ * writes them, so the by code file comes out of the same write as the
+ * ontology instead of a second pass (convertByCode.pl). Entity uris reach the
+ * writer as element names (properties), as rdf:about and rdf:resource values
+ * and, for associations, as the text of anyURI typed values; each is looked
+ * up whole in the code index, so nothing is matched on the text of a line.
+ */
+final class ByCodeXMLWriter implements XMLWriter {
+
+	/** The rdf:about, rdf:resource and rdf:datatype attribute names. */
+	private static final String RDF_ABOUT = "http://www.w3.org/1999/02/22-rdf-syntax-ns#about",
+			RDF_RESOURCE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#resource",
+			RDF_DATATYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#datatype";
+
+	/** The anyURI data type. */
+	private static final String ANY_URI = "http://www.w3.org/2001/XMLSchema#anyURI";
+
+	/** The writer doing the actual output. */
+	private final XMLWriter writer;
+
+	/** The by code uri of each coded entity, by its uri. */
+	private final Map<String, String> names;
+
+	/** The xml:base, which the renderer strips from attribute values. */
+	private final String base;
+
+	/** Whether the current element holds an anyURI value. */
+	private boolean anyURIValue = false;
+
+	/** The number of uris renamed. */
+	private int renamed = 0;
+
+	/**
+	 * Instantiates a new by code writer.
+	 *
+	 * @param writer
+	 *            the writer doing the actual output
+	 * @param codes
+	 *            the codes of the entities to rename
+	 */
+	ByCodeXMLWriter(XMLWriter writer, CodeIndex codes) {
+		this.writer = writer;
+		this.base = writer.getXMLBase();
+		names = new HashMap<String, String>(codes.size() * 2);
+		for (int id = 0; id < codes.size(); id++) {
+			String uri = codes.getURI(id).toString();
+			int hash = uri.lastIndexOf('#');
+			names.put(uri, uri.substring(0, hash + 1) + codes.getCode(id));
+		}
+	}
+
+	/**
+	 * Writes an ontology as RDF/XML with its coded entities renamed to their
+	 * codes.
+	 *
+	 * @param manager
+	 *            the manager
+	 * @param ontology
+	 *            the ontology
+	 * @param out
+	 *            the output
+	 * @param format
+	 *            the format, giving the namespace prefixes
+	 * @param codes
+	 *            the codes of the entities to rename
+	 * @return the number of uris renamed
+	 * @throws OWLOntologyStorageException
+	 *             the OWL ontology storage exception
+	 */
+	static int store(OWLOntologyManager manager, OWLOntology ontology,
+			Writer out, OWLOntologyFormat format, CodeIndex codes)
+			throws OWLOntologyStorageException {
+		RDFXMLRenderer renderer = new RDFXMLRenderer(manager, ontology, out,
+				format);
+		XMLWriterNamespaceManager namespaces = new OWLOntologyNamespaceManager(
+				manager, ontology, format);
+		ByCodeXMLWriter byCode = new ByCodeXMLWriter(XMLWriterFactory
+				.getInstance().createXMLWriter(out, namespaces,
+						ontology.getURI().toString()), codes);
+		try {
+			// the renderer builds its own writer and offers no way to pass
+			// one in, so swap ours in before rendering
+			Constructor<RDFXMLWriter> constructor = RDFXMLWriter.class
+					.getDeclaredConstructor(XMLWriter.class);
+			constructor.setAccessible(true);
+			Field field = RDFXMLRenderer.class.getDeclaredField("writer");
+			field.setAccessible(true);
+			field.set(renderer, constructor.newInstance(byCode));
+		} catch (Exception e) {
+			throw new OWLOntologyStorageException(e);
+		}
+		renderer.render();
+		return byCode.renamed;
+	}
+
+	/**
+	 * Renames a uri if it belongs to a coded entity.
+	 *
+	 * @param uri
+	 *            the uri
+	 * @return the by code uri, or the uri itself
+	 */
+	private String rename(String uri) {
+		String name = names.get(uri);
+		if (name == null) {
+			return uri;
+		}
+		renamed++;
+		return name;
+	}
+
+	/**
+	 * Renames an attribute value, which the renderer gives relative to the
+	 * xml:base when it can.
+	 *
+	 * @param value
+	 *            the value
+	 * @return the renamed value
+	 */
+	private String renameAttribute(String value) {
+		if (value.startsWith("#")) {
+			String name = names.get(base + value);
+			if (name != null) {
+				renamed++;
+				return name.substring(base.length());
+			}
+			return value;
+		}
+		return rename(value);
+	}
+
+	public void writeStartElement(String name) throws IOException {
+		anyURIValue = false;
+		writer.writeStartElement(rename(name));
+	}
+
+	public void writeAttribute(String attr, String val) throws IOException {
+		if (attr.equals(RDF_ABOUT) || attr.equals(RDF_RESOURCE)) {
+			val = renameAttribute(val);
+		} else if (attr.equals(RDF_DATATYPE)) {
+			anyURIValue = val.equals(ANY_URI);
+		}
+		writer.writeAttribute(attr, val);
+	}
+
+	public void writeTextContent(String text) throws IOException {
+		writer.writeTextContent(anyURIValue ? rename(text) : text);
+	}
+
+	public void writeComment(String comment) throws IOException {
+		writer.writeComment(rename(comment));
+	}
+
+	public void writeEndElement() throws IOException {
+		anyURIValue = false;
+		writer.writeEndElement();
+	}
+
+	public void setEncoding(String encoding) {
+		writer.setEncoding(encoding);
+	}
+
+	public String getDefaultNamespace() {
+		return writer.getDefaultNamespace();
+	}
+
+	public XMLWriterNamespaceManager getNamespacePrefixes() {
+		return writer.getNamespacePrefixes();
+	}
+
+	public String getXMLBase() {
+		return writer.getXMLBase();
+	}
+
+	public void setWrapAttributes(boolean b) {
+		writer.setWrapAttributes(b);
+	}
+
+	public void startDocument(String rootElementName) throws IOException {
+		writer.startDocument(rootElementName);
+	}
+
+	public void endDocument() throws IOException {
+		writer.endDocument();
+	}
+}
@@ -0,0 +1,501 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.semanticweb.owl.model.AxiomType;
+import org.semanticweb.owl.model.OWLClass;
+import org.semanticweb.owl.model.OWLDescription;
+import org.semanticweb.owl.model.OWLEquivalentClassesAxiom;
+import org.semanticweb.owl.model.OWLObjectIntersectionOf;
+import org.semanticweb.owl.model.OWLOntology;
+import org.semanticweb.owl.model.OWLSubClassAxiom;
+import org.semanticweb.owl.vocab.OWLRDFVocabulary;
+
+/**
+ * A compact index of the told class hierarchy. Every referenced class gets an
+ * int id, and each relation is stored in one array with an offset per class,
+ * so the index is built in a single pass over the class axioms and queried
+ * without touching the ontology or allocating.
+ *
+ * Two relations are kept:
+ * <ul>
+ * <li>the children of a class, i.e. the named subclasses of asserted
+ * SubClassOf axioms, which is what a branch deletion removes;</li>
+ * <li>the told parents of a class, as the OWL API's
+ * ToldClassHierarchyReasoner gives them: the named superclasses and named
+ * conjuncts of SubClassOf and EquivalentClasses axioms, plus the classes
+ * named as equivalent to those, and owl:Thing for a class with no other
+ * parent.</li>
+ * </ul>
+ * owl:Thing always has an id, even if the ontology does not mention it.
+ *
+ * The index can also be built from plain subClassOf edges, as collected by the
+ * streaming scrubber, in which case there are no OWLClass objects.
+ */
+final class ClassHierarchy {
+
+	/** The uri of owl:Thing. */
+	private static final URI THING = OWLRDFVocabulary.OWL_THING.getURI();
+
+	/** The number of referenced classes. */
+	private final int size;
+
+	/** The class uris by id, owl:Thing last if it is not referenced. */
+	private final URI[] uris;
+
+	/** The classes by id, or null if built from uris only. */
+	private final OWLClass[] classes;
+
+	/** The ids by class uri. */
+	private final Map<URI, Integer> ids;
+
+	/** The id of owl:Thing. */
+	private final int thing;
+
+	/** The offset of the children of each class in the children array. */
+	private final int[] childStart;
+
+	/** The ids of the direct named subclasses, grouped by parent. */
+	private final int[] children;
+
+	/** The offset of the parents of each class in the parents array. */
+	private final int[] parentStart;
+
+	/** The ids of the told parents, grouped by child. */
+	private final int[] parents;
+
+	/**
+	 * Instantiates a new class hierarchy.
+	 *
+	 * @param size
+	 *            the number of referenced classes
+	 * @param uris
+	 *            the class uris
+	 * @param classes
+	 *            the classes
+	 * @param ids
+	 *            the ids
+	 * @param thing
+	 *            the id of owl:Thing
+	 * @param subClassOf
+	 *            the SubClassOf edges, from superclass to subclass
+	 * @param told
+	 *            the told parent edges, from class to parent
+	 * @param equivalents
+	 *            the named equivalence edges
+	 */
+	private ClassHierarchy(int size, URI[] uris, OWLClass[] classes,
+			Map<URI, Integer> ids, int thing, Edges subClassOf, Edges told,
+			Edges equivalents) {
+		this.size = size;
+		this.uris = uris;
+		this.classes = classes;
+		this.ids = ids;
+		this.thing = thing;
+
+		int[][] csr = subClassOf.layout(uris.length, false);
+		childStart = csr[0];
+		children = csr[1];
+
+		// owl:Thing is the parent of every class with no other
+		int[][] direct = told.layout(uris.length, true);
+		for (int i = 0; i < uris.length; i++) {
+			if (i != thing && direct[0][i] == direct[0][i + 1]) {
+				told.add(i, thing);
+			}
+		}
+		// each parent brings the classes named as equivalent to it
+		int[][] same = equivalents.layout(uris.length, true);
+		for (int i = 0; i < uris.length; i++) {
+			for (int p = direct[0][i]; p < direct[0][i + 1]; p++) {
+				int parent = direct[1][p];
+				for (int e = same[0][parent]; e < same[0][parent + 1]; e++) {
+					if (same[1][e] != i && same[1][e] != thing) {
+						told.add(i, same[1][e]);
+					}
+				}
+			}
+		}
+		csr = told.layout(uris.length, true);
+		parentStart = csr[0];
+		parents = csr[1];
+	}
+
+	/**
+	 * Builds the hierarchy index of an ontology.
+	 *
+	 * @param ontology
+	 *            the ontology
+	 * @return the class hierarchy
+	 */
+	static ClassHierarchy build(OWLOntology ontology) {
+		Set<OWLClass> referenced = ontology.getReferencedClasses();
+		int size = referenced.size();
+		Map<URI, Integer> ids = new HashMap<URI, Integer>(size * 4 / 3 + 1);
+		OWLClass[] classes = referenced.toArray(new OWLClass[size]);
+		for (int i = 0; i < size; i++) {
+			ids.put(classes[i].getURI(), i);
+		}
+		int thing = ids.containsKey(THING) ? ids.get(THING) : size;
+		URI[] uris = new URI[thing == size ? size + 1 : size];
+		for (int i = 0; i < size; i++) {
+			uris[i] = classes[i].getURI();
+		}
+		uris[thing] = THING;
+		if (thing == size) {
+			OWLClass[] withThing = new OWLClass[size + 1];
+			System.arraycopy(classes, 0, withThing, 0, size);
+			classes = withThing;
+		}
+
+		Set<OWLSubClassAxiom> axioms = ontology.getAxioms(AxiomType.SUBCLASS);
+		Edges subClassOf = new Edges(axioms.size());
+		Edges told = new Edges(axioms.size());
+		Edges equivalents = new Edges(16);
+		for (OWLSubClassAxiom ax : axioms) {
+			if (ax.getSubClass().isAnonymous()) {
+				continue;
+			}
+			Integer sub = ids.get(ax.getSubClass().asOWLClass().getURI());
+			if (sub == null || sub == thing) {
+				continue;
+			}
+			OWLDescription sup = ax.getSuperClass();
+			if (!sup.isAnonymous()) {
+				Integer id = ids.get(sup.asOWLClass().getURI());
+				if (id != null) {
+					subClassOf.add(id, sub);
+				}
+			}
+			addNamed(told, sub, sup, ids);
+		}
+		for (OWLEquivalentClassesAxiom ax : ontology
+				.getAxioms(AxiomType.EQUIVALENT_CLASSES)) {
+			for (OWLClass named : ax.getNamedClasses()) {
+				Integer id = ids.get(named.getURI());
+				if (id == null || id == thing) {
+					continue;
+				}
+				for (OWLDescription desc : ax.getDescriptions()) {
+					if (desc.equals(named)) {
+						continue;
+					}
+					addNamed(told, id, desc, ids);
+					if (!desc.isAnonymous()) {
+						Integer other = ids.get(desc.asOWLClass().getURI());
+						if (other != null) {
+							equivalents.add(id, other);
+						}
+					}
+				}
+			}
+		}
+		return new ClassHierarchy(size, uris, classes, ids, thing, subClassOf,
+				told, equivalents);
+	}
+
+	/**
+	 * Builds the hierarchy index from subClassOf edges between numbered
+	 * classes.
+	 *
+	 * @param uris
+	 *            the class uris by id
+	 * @param ids
+	 *            the ids by class uri
+	 * @param subs
+	 *            the subclass of each edge
+	 * @param supers
+	 *            the superclass of each edge
+	 * @param edges
+	 *            the number of edges
+	 * @return the class hierarchy
+	 */
+	static ClassHierarchy build(URI[] uris, Map<URI, Integer> ids,
+			int[] subs, int[] supers, int edges) {
+		int size = uris.length;
+		int thing = ids.containsKey(THING) ? ids.get(THING) : size;
+		if (thing == size) {
+			URI[] withThing = new URI[size + 1];
+			System.arraycopy(uris, 0, withThing, 0, size);
+			withThing[size] = THING;
+			uris = withThing;
+		}
+		Edges subClassOf = new Edges(edges);
+		Edges told = new Edges(edges);
+		for (int e = 0; e < edges; e++) {
+			subClassOf.add(supers[e], subs[e]);
+			if (subs[e] != thing) {
+				told.add(subs[e], supers[e]);
+			}
+		}
+		return new ClassHierarchy(size, uris, null, ids, thing, subClassOf,
+				told, new Edges(0));
+	}
+
+	/**
+	 * Adds an edge from a class to each named class in a description, looking
+	 * into intersections.
+	 *
+	 * @param edges
+	 *            the edges
+	 * @param from
+	 *            the class id
+	 * @param desc
+	 *            the description
+	 * @param ids
+	 *            the ids by class uri
+	 */
+	private static void addNamed(Edges edges, int from, OWLDescription desc,
+			Map<URI, Integer> ids) {
+		if (!desc.isAnonymous()) {
+			Integer id = ids.get(desc.asOWLClass().getURI());
+			if (id != null) {
+				edges.add(from, id);
+			}
+		} else if (desc instanceof OWLObjectIntersectionOf) {
+			for (OWLDescription operand : ((OWLObjectIntersectionOf) desc)
+					.getOperands()) {
+				addNamed(edges, from, operand, ids);
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of referenced classes in the index. Ids from 0 to size -
+	 * 1 are the referenced classes.
+	 *
+	 * @return the size
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the id of a class.
+	 *
+	 * @param uri
+	 *            the class uri
+	 * @return the id, or -1 if the class is not referenced in the ontology
+	 */
+	int getId(URI uri) {
+		Integer id = ids.get(uri);
+		return id == null ? -1 : id.intValue();
+	}
+
+	/**
+	 * Gets the id of owl:Thing. It is size() if the ontology does not
+	 * reference owl:Thing.
+	 *
+	 * @return the id
+	 */
+	int getThing() {
+		return thing;
+	}
+
+	/**
+	 * Gets the uri of the class with an id.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the uri
+	 */
+	URI getURI(int id) {
+		return uris[id];
+	}
+
+	/**
+	 * Gets the class with an id.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the class, or null if the index was built from uris only or for
+	 *         an unreferenced owl:Thing
+	 */
+	OWLClass getOWLClass(int id) {
+		return classes == null ? null : classes[id];
+	}
+
+	/**
+	 * Gets the start of the told parents of a class, for use with
+	 * getParentEnd and getParent.
+	 *
+	 * @param id
+	 *            the class id
+	 * @return the index of the first parent
+	 */
+	int getParentStart(int id) {
+		return parentStart[id];
+	}
+
+	/**
+	 * Gets the end of the told parents of a class.
+	 *
+	 * @param id
+	 *            the class id
+	 * @return the index after the last parent
+	 */
+	int getParentEnd(int id) {
+		return parentStart[id + 1];
+	}
+
+	/**
+	 * Gets a told parent.
+	 *
+	 * @param index
+	 *            the index, from getParentStart to getParentEnd
+	 * @return the id of the parent
+	 */
+	int getParent(int index) {
+		return parents[index];
+	}
+
+	/**
+	 * Gets the union of the descendants of a set of classes, following the
+	 * SubClassOf children. The roots themselves are only included if they
+	 * descend from another root.
+	 *
+	 * @param roots
+	 *            the ids of the roots
+	 * @return the ids of the descendants
+	 */
+	BitSet getDescendants(int[] roots) {
+		BitSet visited = new BitSet(uris.length);
+		int[] stack = new int[16];
+		int top = 0;
+		for (int root : roots) {
+			for (int c = childStart[root]; c < childStart[root + 1]; c++) {
+				if (top == stack.length) {
+					stack = grow(stack);
+				}
+				stack[top++] = children[c];
+			}
+		}
+		while (top > 0) {
+			int id = stack[--top];
+			if (visited.get(id)) {
+				continue;
+			}
+			visited.set(id);
+			for (int c = childStart[id]; c < childStart[id + 1]; c++) {
+				if (!visited.get(children[c])) {
+					if (top == stack.length) {
+						stack = grow(stack);
+					}
+					stack[top++] = children[c];
+				}
+			}
+		}
+		return visited;
+	}
+
+	/**
+	 * Doubles the size of a stack.
+	 *
+	 * @param stack
+	 *            the stack
+	 * @return the larger stack
+	 */
+	private static int[] grow(int[] stack) {
+		int[] larger = new int[stack.length * 2];
+		System.arraycopy(stack, 0, larger, 0, stack.length);
+		return larger;
+	}
+
+	/**
+	 * A growable list of edges between class ids.
+	 */
+	private static final class Edges {
+
+		/** The source of each edge. */
+		private int[] from;
+
+		/** The target of each edge. */
+		private int[] to;
+
+		/** The number of edges. */
+		private int count = 0;
+
+		/**
+		 * Instantiates a new edge list.
+		 *
+		 * @param capacity
+		 *            the initial capacity
+		 */
+		Edges(int capacity) {
+			from = new int[Math.max(capacity, 16)];
+			to = new int[from.length];
+		}
+
+		/**
+		 * Adds an edge.
+		 *
+		 * @param source
+		 *            the source id
+		 * @param target
+		 *            the target id
+		 */
+		void add(int source, int target) {
+			if (count == from.length) {
+				from = grow(from);
+				to = grow(to);
+			}
+			from[count] = source;
+			to[count] = target;
+			count++;
+		}
+
+		/**
+		 * Lays out the targets of each source in one array, counting them in a
+		 * first pass and filling them in a second.
+		 *
+		 * @param n
+		 *            the number of ids
+		 * @param unique
+		 *            whether to sort the targets of each source and drop
+		 *            duplicates
+		 * @return the offsets by source and the targets
+		 */
+		int[][] layout(int n, boolean unique) {
+			int[] start = new int[n + 1];
+			for (int e = 0; e < count; e++) {
+				start[from[e] + 1]++;
+			}
+			for (int i = 0; i < n; i++) {
+				start[i + 1] += start[i];
+			}
+			int[] targets = new int[count];
+			int[] fill = new int[n];
+			for (int e = 0; e < count; e++) {
+				targets[start[from[e]] + fill[from[e]]++] = to[e];
+			}
+			if (!unique) {
+				return new int[][] { start, targets };
+			}
+			int[] uniqueStart = new int[n + 1];
+			int k = 0;
+			for (int i = 0; i < n; i++) {
+				Arrays.sort(targets, start[i], start[i + 1]);
+				uniqueStart[i] = k;
+				for (int t = start[i]; t < start[i + 1]; t++) {
+					if (t == start[i] || targets[t] != targets[t - 1]) {
+						targets[k++] = targets[t];
+					}
+				}
+			}
+			uniqueStart[n] = k;
+			int[] uniqueTargets = new int[k];
+			System.arraycopy(targets, 0, uniqueTargets, 0, k);
+			return new int[][] { uniqueStart, uniqueTargets };
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.semanticweb.owl.model.AxiomType;
+import org.semanticweb.owl.model.OWLConstant;
+import org.semanticweb.owl.model.OWLEntity;
+import org.semanticweb.owl.model.OWLEntityAnnotationAxiom;
+import org.semanticweb.owl.model.OWLOntology;
+
+/**
+ * An index between classes and their concept codes (the code annotation, e.g.
+ * C12345). Each coded class gets an int id; the uris and interned codes are
+ * kept in arrays by id, with a hash lookup from either side to the id.
+ *
+ * Built once, it answers the parent code columns of the flat file and lets
+ * rule files name classes by code instead of by uri fragment. Built with the
+ * properties as well, it gives the names of the by code output.
+ */
+final class CodeIndex {
+
+	/** The class uris by id. */
+	private URI[] uris = new URI[1024];
+
+	/** The codes by id, interned. */
+	private String[] codes = new String[1024];
+
+	/** The number of coded classes. */
+	private int size = 0;
+
+	/** The ids by class uri. */
+	private final Map<URI, Integer> idsByURI = new HashMap<URI, Integer>();
+
+	/** The ids by code. */
+	private final Map<String, Integer> idsByCode = new HashMap<String, Integer>();
+
+	/**
+	 * Builds the index from the code annotations of the classes of an
+	 * ontology.
+	 *
+	 * @param scrubber
+	 *            the scrubber, giving the code property
+	 * @param ontology
+	 *            the ontology
+	 * @return the code index
+	 */
+	static CodeIndex build(OWLScrubber scrubber, OWLOntology ontology) {
+		return build(scrubber, ontology, false);
+	}
+
+	/**
+	 * Builds the index from the code annotations of the classes, and
+	 * optionally of the object and data properties, of an ontology.
+	 *
+	 * @param scrubber
+	 *            the scrubber, giving the code property
+	 * @param ontology
+	 *            the ontology
+	 * @param properties
+	 *            whether the codes of properties are indexed too
+	 * @return the code index
+	 */
+	static CodeIndex build(OWLScrubber scrubber, OWLOntology ontology,
+			boolean properties) {
+		CodeIndex index = new CodeIndex();
+		URI codeURI = scrubber.createURI("code");
+		for (OWLEntityAnnotationAxiom ax : ontology
+				.getAxioms(AxiomType.ENTITY_ANNOTATION)) {
+			OWLEntity subject = ax.getSubject();
+			if ((subject.isOWLClass() || properties
+					&& (subject.isOWLObjectProperty() || subject
+							.isOWLDataProperty()))
+					&& ax.getAnnotation().getAnnotationURI().equals(codeURI)) {
+				OWLConstant constant = scrubber.getConstant(ax
+						.getAnnotation());
+				if (constant != null) {
+					index.add(ax.getSubject().getURI(), constant.getLiteral());
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Adds the code of a class. Empty codes, and further codes of a class
+	 * already indexed, are ignored.
+	 *
+	 * @param uri
+	 *            the class uri
+	 * @param code
+	 *            the code
+	 */
+	void add(URI uri, String code) {
+		if (code.length() == 0 || idsByURI.containsKey(uri)) {
+			return;
+		}
+		if (size == uris.length) {
+			URI[] largerURIs = new URI[size * 2];
+			String[] largerCodes = new String[size * 2];
+			System.arraycopy(uris, 0, largerURIs, 0, size);
+			System.arraycopy(codes, 0, largerCodes, 0, size);
+			uris = largerURIs;
+			codes = largerCodes;
+		}
+		uris[size] = uri;
+		codes[size] = code.intern();
+		idsByURI.put(uri, size);
+		if (!idsByCode.containsKey(codes[size])) {
+			idsByCode.put(codes[size], size);
+		}
+		size++;
+	}
+
+	/**
+	 * Gets the code of a class.
+	 *
+	 * @param uri
+	 *            the class uri
+	 * @return the code, or null if the class has none
+	 */
+	String getCode(URI uri) {
+		Integer id = idsByURI.get(uri);
+		return id == null ? null : codes[id];
+	}
+
+	/**
+	 * Gets the class with a code.
+	 *
+	 * @param code
+	 *            the code
+	 * @return the class uri, or null if no class has that code
+	 */
+	URI getURI(String code) {
+		Integer id = idsByCode.get(code);
+		return id == null ? null : uris[id];
+	}
+
+	/**
+	 * Gets the uri of the class with an id.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the uri
+	 */
+	URI getURI(int id) {
+		return uris[id];
+	}
+
+	/**
+	 * Gets the code of the class with an id.
+	 *
+	 * @param id
+	 *            the id
+	 * @return the code
+	 */
+	String getCode(int id) {
+		return codes[id];
+	}
+
+	/**
+	 * Gets the number of coded classes.
+	 *
+	 * @return the size
+	 */
+	int size() {
+		return size;
+	}
+}
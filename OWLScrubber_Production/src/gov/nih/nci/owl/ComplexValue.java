@@ -0,0 +1,309 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * A parsed complex property value, such as the XMLLiteral of a FULL_SYN
+ * (ncicp:ComplexTerm), DEFINITION (ncicp:ComplexDefinition) or GO_Annotation
+ * (ncicp:ComplexGOAnnotation).
+ *
+ * The literal is scanned once into a list of segments. Qualifiers, i.e.
+ * elements holding only text such as &lt;ncicp:term-name&gt;, become tagged
+ * segments; everything else (the wrapping element, whitespace) is kept as raw
+ * text. Serializing the segments gives back the original literal byte for
+ * byte, less any qualifiers that were removed.
+ *
+ * Instances are immutable, so the rules of one value can pass it along and
+ * get it back unchanged when there is nothing to remove.
+ */
+final class ComplexValue {
+
+	/** The tag of each segment, or null for raw text. */
+	private final String[] tags;
+
+	/** The text of each segment, still escaped as in the literal. */
+	private final String[] texts;
+
+	/**
+	 * Instantiates a new complex value.
+	 *
+	 * @param tags
+	 *            the segment tags
+	 * @param texts
+	 *            the segment texts
+	 */
+	private ComplexValue(String[] tags, String[] texts) {
+		this.tags = tags;
+		this.texts = texts;
+	}
+
+	/**
+	 * Parses a complex property literal.
+	 *
+	 * @param literal
+	 *            the literal
+	 * @return the complex value
+	 */
+	static ComplexValue parse(String literal) {
+		List<String> tags = new ArrayList<String>();
+		List<String> texts = new ArrayList<String>();
+		int length = literal.length();
+		int rawStart = 0;
+		int pos = 0;
+		while (pos < length) {
+			int lt = literal.indexOf('<', pos);
+			if (lt == -1 || lt + 1 >= length) {
+				break;
+			}
+			if (literal.charAt(lt + 1) == '/') {
+				// closing tag of a wrapping element, keep as raw
+				pos = lt + 1;
+				continue;
+			}
+			int gt = literal.indexOf('>', lt);
+			if (gt == -1) {
+				break;
+			}
+			if (literal.charAt(gt - 1) == '/') {
+				// empty element, keep as raw
+				pos = gt + 1;
+				continue;
+			}
+			int nameEnd = lt + 1;
+			while (nameEnd < gt && !Character.isWhitespace(literal.charAt(nameEnd))) {
+				nameEnd++;
+			}
+			int textEnd = literal.indexOf('<', gt + 1);
+			if (textEnd != -1 && nameEnd == gt
+					&& isClosingTag(literal, textEnd, lt + 1, gt)) {
+				if (rawStart < lt) {
+					tags.add(null);
+					texts.add(literal.substring(rawStart, lt));
+				}
+				tags.add(literal.substring(lt + 1, gt));
+				texts.add(literal.substring(gt + 1, textEnd));
+				pos = textEnd + (gt - lt) + 2;
+				rawStart = pos;
+			} else {
+				// start of a wrapping element
+				pos = gt + 1;
+			}
+		}
+		if (rawStart < length) {
+			tags.add(null);
+			texts.add(literal.substring(rawStart));
+		}
+		return new ComplexValue(tags.toArray(new String[tags.size()]), texts
+				.toArray(new String[texts.size()]));
+	}
+
+	/**
+	 * Checks whether the text at a position is the closing tag for a name.
+	 *
+	 * @param literal
+	 *            the literal
+	 * @param pos
+	 *            the position of the '&lt;'
+	 * @param nameStart
+	 *            the start of the name in the literal
+	 * @param nameEnd
+	 *            the end of the name in the literal
+	 * @return true, if the closing tag is found
+	 */
+	private static boolean isClosingTag(String literal, int pos,
+			int nameStart, int nameEnd) {
+		int nameLength = nameEnd - nameStart;
+		return literal.length() >= pos + nameLength + 3
+				&& literal.charAt(pos + 1) == '/'
+				&& literal.regionMatches(pos + 2, literal, nameStart,
+						nameLength)
+				&& literal.charAt(pos + 2 + nameLength) == '>';
+	}
+
+	/**
+	 * Checks whether the value has a qualifier.
+	 *
+	 * @param tag
+	 *            the prefixed tag
+	 * @return true, if at least one qualifier has that tag
+	 */
+	boolean has(String tag) {
+		for (String t : tags) {
+			if (tag.equals(t)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the value has a qualifier with the given value, compared
+	 * either escaped as in the literal or unescaped.
+	 *
+	 * @param tag
+	 *            the prefixed tag
+	 * @param value
+	 *            the value
+	 * @return true, if such a qualifier exists
+	 */
+	boolean has(String tag, String value) {
+		for (int i = 0; i < tags.length; i++) {
+			if (tag.equals(tags[i])
+					&& (texts[i].equals(value) || unescape(texts[i]).equals(
+							value))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the first value of a qualifier, escaped as in the literal.
+	 *
+	 * @param tag
+	 *            the prefixed tag
+	 * @return the raw value, or null if there is no such qualifier
+	 */
+	String getRaw(String tag) {
+		for (int i = 0; i < tags.length; i++) {
+			if (tag.equals(tags[i])) {
+				return texts[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets all values of a qualifier, unescaped, in literal order.
+	 *
+	 * @param tag
+	 *            the prefixed tag
+	 * @return the values
+	 */
+	Vector<String> getValues(String tag) {
+		Vector<String> v = new Vector<String>();
+		for (int i = 0; i < tags.length; i++) {
+			if (tag.equals(tags[i])) {
+				v.add(unescape(texts[i]));
+			}
+		}
+		return v;
+	}
+
+	/**
+	 * Returns this value less every qualifier with the given tag.
+	 *
+	 * @param tag
+	 *            the prefixed tag
+	 * @return the new value, or this if there was nothing to remove
+	 */
+	ComplexValue without(String tag) {
+		int count = 0;
+		for (String t : tags) {
+			if (tag.equals(t)) {
+				count++;
+			}
+		}
+		if (count == 0) {
+			return this;
+		}
+		String[] newTags = new String[tags.length - count];
+		String[] newTexts = new String[tags.length - count];
+		int j = 0;
+		for (int i = 0; i < tags.length; i++) {
+			if (!tag.equals(tags[i])) {
+				newTags[j] = tags[i];
+				newTexts[j] = texts[i];
+				j++;
+			}
+		}
+		return new ComplexValue(newTags, newTexts);
+	}
+
+	/**
+	 * Serializes the value back to literal form.
+	 *
+	 * @return the literal
+	 */
+	@Override
+	public String toString() {
+		int size = 0;
+		for (int i = 0; i < tags.length; i++) {
+			size += texts[i].length();
+			if (tags[i] != null) {
+				size += 2 * tags[i].length() + 5;
+			}
+		}
+		StringBuilder sb = new StringBuilder(size);
+		for (int i = 0; i < tags.length; i++) {
+			if (tags[i] == null) {
+				sb.append(texts[i]);
+			} else {
+				sb.append('<').append(tags[i]).append('>').append(texts[i])
+						.append("</").append(tags[i]).append('>');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Unescapes the XML entities of a qualifier value.
+	 *
+	 * @param text
+	 *            the escaped text
+	 * @return the unescaped text
+	 */
+	static String unescape(String text) {
+		int amp = text.indexOf('&');
+		if (amp == -1) {
+			return text;
+		}
+		StringBuilder sb = new StringBuilder(text.length());
+		int pos = 0;
+		while (amp != -1) {
+			sb.append(text, pos, amp);
+			int semi = text.indexOf(';', amp);
+			String entity = semi == -1 ? null : text.substring(amp + 1, semi);
+			String replacement = null;
+			if (entity != null) {
+				if (entity.equals("amp")) {
+					replacement = "&";
+				} else if (entity.equals("lt")) {
+					replacement = "<";
+				} else if (entity.equals("gt")) {
+					replacement = ">";
+				} else if (entity.equals("quot")) {
+					replacement = "\"";
+				} else if (entity.equals("apos")) {
+					replacement = "'";
+				} else if (entity.startsWith("#")) {
+					try {
+						int cp = entity.startsWith("#x") ? Integer.parseInt(
+								entity.substring(2), 16) : Integer
+								.parseInt(entity.substring(1));
+						replacement = new String(Character.toChars(cp));
+					} catch (IllegalArgumentException e) {
+						replacement = null;
+					}
+				}
+			}
+			if (replacement != null) {
+				sb.append(replacement);
+				pos = semi + 1;
+			} else {
+				sb.append('&');
+				pos = amp + 1;
+			}
+			amp = text.indexOf('&', pos);
+		}
+		sb.append(text, pos, text.length());
+		return sb.toString();
+	}
+}
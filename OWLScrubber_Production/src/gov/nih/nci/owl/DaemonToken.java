@@ -0,0 +1,139 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * The secret of a running scrub daemon. The daemon writes a new random token
+ * to a file only its user can read, ~/.owlscrubber/daemon-[port].token, and
+ * only serves requests that carry it in the {@link #HEADER} header, so other
+ * users of the host, and web pages that get a browser to post to the loopback
+ * interface, cannot drive it. {@link ScrubClient} reads the file to talk to
+ * the daemon of the same user.
+ */
+final class DaemonToken {
+
+	/** The request header carrying the token. */
+	static final String HEADER = "X-Scrub-Token";
+
+	/** The number of random bytes in a token. */
+	private static final int BYTES = 32;
+
+	/** The token file. */
+	private final File file;
+
+	/** The token. */
+	private final String token;
+
+	/**
+	 * Instantiates a token.
+	 *
+	 * @param file
+	 *            the token file
+	 * @param token
+	 *            the token
+	 */
+	private DaemonToken(File file, String token) {
+		this.file = file;
+		this.token = token;
+	}
+
+	/**
+	 * Gets the token file of the daemon on a port.
+	 *
+	 * @param port
+	 *            the port
+	 * @return the file
+	 */
+	static File getFile(int port) {
+		return new File(new File(System.getProperty("user.home"),
+				".owlscrubber"), "daemon-" + port + ".token");
+	}
+
+	/**
+	 * Creates the token of a daemon starting on a port, replacing the file of
+	 * an earlier daemon.
+	 *
+	 * @param port
+	 *            the port
+	 * @return the token
+	 * @throws IOException
+	 *             if the file cannot be written for the daemon's user only
+	 */
+	static DaemonToken create(int port) throws IOException {
+		byte[] bytes = new byte[BYTES];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder sb = new StringBuilder(2 * BYTES);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+					Character.forDigit(b & 0xf, 16));
+		}
+		File file = getFile(port);
+		Path dir = file.getParentFile().toPath();
+		try {
+			Files.createDirectory(dir, PosixFilePermissions
+					.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		} catch (FileAlreadyExistsException e) {
+			// kept from an earlier daemon
+		}
+		Path path = file.toPath();
+		Files.deleteIfExists(path);
+		// created unreadable to others, so the token is never exposed
+		Files.createFile(path, PosixFilePermissions
+				.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		Files.write(path, sb.toString().getBytes(Charset.forName("US-ASCII")));
+		return new DaemonToken(file, sb.toString());
+	}
+
+	/**
+	 * Reads the token of the daemon on a port.
+	 *
+	 * @param port
+	 *            the port
+	 * @return the token, or null if no daemon of this user has written one
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static String read(int port) throws IOException {
+		File file = getFile(port);
+		if (!file.isFile()) {
+			return null;
+		}
+		return new String(Files.readAllBytes(file.toPath()), Charset
+				.forName("US-ASCII")).trim();
+	}
+
+	/**
+	 * Checks a token sent with a request, in time independent of where it
+	 * differs.
+	 *
+	 * @param sent
+	 *            the token sent, or null
+	 * @return true, if it is this token
+	 */
+	boolean matches(String sent) {
+		return sent != null
+				&& MessageDigest.isEqual(token.getBytes(Charset
+						.forName("US-ASCII")), sent.getBytes(Charset
+						.forName("US-ASCII")));
+	}
+
+	/**
+	 * Removes the token file once the daemon has stopped.
+	 */
+	void delete() {
+		file.delete();
+	}
+}
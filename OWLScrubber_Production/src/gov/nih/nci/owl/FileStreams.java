@@ -0,0 +1,321 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens the input, output and flat files. A file whose name ends in .gz is
+ * read or written gzip compressed, so the multi-gigabyte ontologies need not
+ * be unpacked before a run or packed after it. Other files go through a
+ * buffer of the given size, which io_buffer_kb sets.
+ *
+ * Compression runs on a thread of its own: the caller fills a block, hands
+ * it to the compressing thread and goes on filling the next while the first
+ * is deflated and written, so serialization and compression overlap.
+ */
+final class FileStreams {
+
+	/** The default size of the I/O buffers. */
+	static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+	/** The number of blocks, one filling and the rest queued or deflating. */
+	private static final int BLOCKS = 3;
+
+	/**
+	 * No instances.
+	 */
+	private FileStreams() {
+	}
+
+	/**
+	 * Checks whether a file is gzip compressed.
+	 *
+	 * @param file
+	 *            the file
+	 * @return true, if the file name ends in .gz
+	 */
+	static boolean isCompressed(File file) {
+		return file.getName().toLowerCase().endsWith(".gz");
+	}
+
+	/**
+	 * Opens a file for reading, decompressing it if it is a .gz file.
+	 *
+	 * @param file
+	 *            the file
+	 * @param bufferSize
+	 *            the size of the read buffer
+	 * @return the input stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static InputStream openInput(File file, int bufferSize) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (isCompressed(file)) {
+			try {
+				in = new GZIPInputStream(in, bufferSize);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+		return new BufferedInputStream(in, bufferSize);
+	}
+
+	/**
+	 * Opens a file for writing, compressing it on another thread if it is a
+	 * .gz file.
+	 *
+	 * @param file
+	 *            the file
+	 * @param bufferSize
+	 *            the size of the write buffer, and of each block handed to
+	 *            the compressing thread
+	 * @return the output stream
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static OutputStream openOutput(File file, int bufferSize)
+			throws IOException {
+		if (isCompressed(file)) {
+			return new CompressingOutputStream(file, bufferSize);
+		}
+		return new BufferedOutputStream(new FileOutputStream(file), bufferSize);
+	}
+
+	/**
+	 * Names a file that goes beside another: the suffix is added to the file
+	 * name, before the .gz if the file is compressed, so the new file is
+	 * compressed as well.
+	 *
+	 * @param file
+	 *            the file
+	 * @param suffix
+	 *            the suffix, e.g. -iconv.owl
+	 * @return the new file
+	 */
+	static File sibling(File file, String suffix) {
+		String path = file.getPath();
+		if (isCompressed(file)) {
+			return new File(path.substring(0, path.length() - 3) + suffix
+					+ ".gz");
+		}
+		return new File(path + suffix);
+	}
+
+	/**
+	 * A block of bytes handed to the compressing thread.
+	 */
+	private static final class Block {
+
+		/** The bytes. */
+		final byte[] data;
+
+		/** The number of bytes used, or -1 for the end of the file. */
+		int length;
+
+		/**
+		 * Instantiates a new block.
+		 *
+		 * @param size
+		 *            the size
+		 */
+		Block(int size) {
+			data = new byte[size];
+		}
+	}
+
+	/**
+	 * Writes a gzip file, deflating on a thread of its own. Blocks go round
+	 * between two queues: the caller takes an empty block, fills it and puts
+	 * it on the full queue; the compressing thread deflates it and puts it
+	 * back on the empty one. If the compressing thread fails, it keeps taking
+	 * blocks so the caller never waits forever, and the failure is thrown to
+	 * the caller at its next block or at close.
+	 */
+	private static final class CompressingOutputStream extends OutputStream
+			implements Runnable {
+
+		/** The end of file marker. */
+		private static final Block END = new Block(0);
+
+		/** The empty blocks. */
+		private final BlockingQueue<Block> empty;
+
+		/** The filled blocks, waiting to be deflated. */
+		private final BlockingQueue<Block> full;
+
+		/** The compressed output. */
+		private final OutputStream out;
+
+		/** The compressing thread. */
+		private final Thread thread;
+
+		/** The block being filled. */
+		private Block block;
+
+		/** The failure of the compressing thread, if it failed. */
+		private volatile IOException failure;
+
+		/** Whether the stream is closed. */
+		private boolean closed = false;
+
+		/**
+		 * Instantiates a new compressing output stream.
+		 *
+		 * @param file
+		 *            the file
+		 * @param bufferSize
+		 *            the size of each block
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		CompressingOutputStream(File file, int bufferSize) throws IOException {
+			FileOutputStream fos = new FileOutputStream(file);
+			try {
+				out = new GZIPOutputStream(fos, bufferSize);
+			} catch (IOException e) {
+				fos.close();
+				throw e;
+			}
+			empty = new ArrayBlockingQueue<Block>(BLOCKS);
+			full = new ArrayBlockingQueue<Block>(BLOCKS);
+			for (int i = 1; i < BLOCKS; i++) {
+				empty.add(new Block(bufferSize));
+			}
+			block = new Block(bufferSize);
+			thread = new Thread(this, "gzip " + file.getName());
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Deflates the filled blocks until the end of the file.
+		 */
+		public void run() {
+			try {
+				while (true) {
+					Block b = full.take();
+					if (b == END) {
+						break;
+					}
+					if (failure == null) {
+						try {
+							out.write(b.data, 0, b.length);
+						} catch (IOException e) {
+							failure = e;
+						}
+					}
+					empty.put(b);
+				}
+				try {
+					out.close();
+				} catch (IOException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			} catch (InterruptedException e) {
+				failure = new InterruptedIOException("gzip interrupted");
+			}
+		}
+
+		/**
+		 * Throws the failure of the compressing thread, if it failed.
+		 *
+		 * @throws IOException
+		 *             the failure
+		 */
+		private void checkFailure() throws IOException {
+			if (failure != null) {
+				throw new IOException("Unable to write compressed output",
+						failure);
+			}
+		}
+
+		/**
+		 * Hands the block being filled to the compressing thread and takes an
+		 * empty one.
+		 *
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		private void handOff() throws IOException {
+			checkFailure();
+			try {
+				full.put(block);
+				block = empty.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("gzip interrupted");
+			}
+			block.length = 0;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (block.length == block.data.length) {
+				handOff();
+			}
+			block.data[block.length++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (block.length == block.data.length) {
+					handOff();
+				}
+				int n = Math.min(len, block.data.length - block.length);
+				System.arraycopy(b, off, block.data, block.length, n);
+				block.length += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Hands what has been written so far to the compressing thread. It
+		 * does not wait for it to be deflated.
+		 */
+		@Override
+		public void flush() throws IOException {
+			if (block.length > 0) {
+				handOff();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				if (block.length > 0) {
+					full.put(block);
+				}
+				full.put(END);
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("gzip interrupted");
+			}
+			checkFailure();
+		}
+	}
+}
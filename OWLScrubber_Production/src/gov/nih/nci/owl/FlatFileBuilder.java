@@ -0,0 +1,404 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.semanticweb.owl.model.OWLAnnotation;
+import org.semanticweb.owl.model.OWLClass;
+import org.semanticweb.owl.model.OWLConstant;
+import org.semanticweb.owl.model.OWLOntology;
+
+/**
+ * Builds the flat file: one tab separated line per class with its code, name,
+ * parents, synonyms, definition, display names, concept status and semantic
+ * types. Active concepts come first, then retired ones, each sorted by class
+ * name.
+ *
+ * All the columns of a class are read in a single pass over its annotations,
+ * and the classes are spread over a fork-join pool. The told parents come
+ * from a {@link ClassHierarchy}. The sort keys are OWL API renderings, which
+ * are not thread safe, so they are gathered beforehand on the calling thread,
+ * by {@link #prepare()} if the ontology is to be saved at the same time.
+ * Classes are read and formatted a chunk at a time and their lines handed to
+ * a {@link FlatFileWriter}, which does the sorting. Only the classes and their
+ * sort keys are kept for the whole run; the columns of a class are dropped
+ * once its chunk is written, so the heap used beyond the writer's budget is
+ * bounded by the chunk size.
+ */
+final class FlatFileBuilder {
+
+	/** The number of classes below which a task is not split further. */
+	private static final int SPLIT_THRESHOLD = 256;
+
+	/** The number of classes read and formatted at a time. */
+	private static final int CHUNK_SIZE = 8192;
+
+	/** The scrubber. */
+	private final OWLScrubber scrubber;
+
+	/** The ontology. */
+	private final OWLOntology ontology;
+
+	/** The codes of the classes, for the parent column. */
+	private final CodeIndex codeIndex;
+
+	/** The property uris of the columns. */
+	private final URI codeURI, preferredNameURI, definitionURI, fullSynURI,
+			displayNameURI, semanticTypeURI, conceptStatusURI;
+
+	/** The prefixed qualifier tags. */
+	private final String definitionTag, termNameTag;
+
+	/** The class hierarchy, whose ids number the classes. */
+	private final ClassHierarchy hierarchy;
+
+	/** The classes, in the order of the ontology. */
+	private OWLClass[] classes;
+
+	/** The rendering of each class, which is also its sort key. */
+	private String[] keys;
+
+	/** The columns of the classes of the current chunk. */
+	private Row[] rows;
+
+	/** The lines of the current chunk. */
+	private String[] lines;
+
+	/** The first class id of the current chunk. */
+	private int chunkStart;
+
+	/**
+	 * Instantiates a new flat file builder.
+	 *
+	 * @param scrubber
+	 *            the scrubber
+	 * @param ontology
+	 *            the ontology
+	 * @param hierarchy
+	 *            the class hierarchy
+	 * @param codeIndex
+	 *            the codes of the classes
+	 */
+	FlatFileBuilder(OWLScrubber scrubber, OWLOntology ontology,
+			ClassHierarchy hierarchy, CodeIndex codeIndex) {
+		this.scrubber = scrubber;
+		this.ontology = ontology;
+		this.hierarchy = hierarchy;
+		this.codeIndex = codeIndex;
+		codeURI = scrubber.createURI("code");
+		preferredNameURI = scrubber.createURI("Preferred_Name");
+		definitionURI = scrubber.createURI("DEFINITION");
+		fullSynURI = scrubber.createURI("FULL_SYN");
+		displayNameURI = scrubber.createURI("Display_Name");
+		semanticTypeURI = scrubber.createURI("Semantic_Type");
+		conceptStatusURI = scrubber.createURI("Concept_Status");
+		definitionTag = scrubber.getPrefix() + "def-definition";
+		termNameTag = scrubber.getPrefix() + "term-name";
+	}
+
+	/**
+	 * Gathers the classes and their sort keys, and builds the annotation
+	 * index of the ontology. This is the part that is not thread safe, so it
+	 * is done on the calling thread before the ontology is written alongside
+	 * the flat file.
+	 */
+	void prepare() {
+		classes = new OWLClass[hierarchy.size()];
+		keys = new String[classes.length];
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = hierarchy.getOWLClass(i);
+			keys[i] = classes[i].toString();
+		}
+		if (classes.length > 0) {
+			// the ontology indexes its entity annotations on first use, so
+			// build that index here rather than in several threads at once
+			classes[0].getAnnotations(ontology);
+		}
+	}
+
+	/**
+	 * Builds the flat file and writes it.
+	 *
+	 * @param writer
+	 *            the writer
+	 * @param pool
+	 *            the pool the classes are spread over
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void write(FlatFileWriter writer, ForkJoinPool pool) throws IOException {
+		if (classes == null) {
+			prepare();
+		}
+		rows = new Row[Math.min(CHUNK_SIZE, classes.length)];
+		lines = new String[rows.length];
+		long annotations = 0;
+		for (chunkStart = 0; chunkStart < classes.length;) {
+			int chunkEnd = Math.min(chunkStart + CHUNK_SIZE, classes.length);
+			pool.invoke(new ReadTask(chunkStart, chunkEnd));
+			pool.invoke(new FormatTask(chunkStart, chunkEnd));
+			for (int i = chunkStart; i < chunkEnd; i++) {
+				Row row = rows[i - chunkStart];
+				writer.add(row.retired, keys[i], lines[i - chunkStart]);
+				annotations += row.annotations;
+				rows[i - chunkStart] = null;
+				lines[i - chunkStart] = null;
+			}
+			chunkStart = chunkEnd;
+		}
+		scrubber.getReport().examined(annotations);
+	}
+
+	/**
+	 * Reads the columns of a class in one pass over its annotations.
+	 *
+	 * @param c
+	 *            the class
+	 * @return the row
+	 */
+	private Row read(OWLClass c) {
+		Row row = new Row();
+		for (OWLAnnotation<?> anno : c.getAnnotations(ontology)) {
+			row.annotations++;
+			OWLConstant constant = scrubber.getConstant(anno);
+			if (constant == null) {
+				continue;
+			}
+			URI uri = anno.getAnnotationURI();
+			String literal = constant.getLiteral();
+			if (uri.equals(codeURI)) {
+				if (row.code == null) {
+					row.code = literal;
+				}
+			} else if (uri.equals(preferredNameURI)) {
+				if (row.preferredName == null) {
+					row.preferredName = literal;
+				}
+			} else if (uri.equals(definitionURI)) {
+				if (row.definition == null) {
+					Vector<String> values = ComplexValue.parse(literal)
+							.getValues(definitionTag);
+					if (!values.isEmpty()) {
+						row.definition = values.firstElement();
+					}
+				}
+			} else if (uri.equals(fullSynURI)) {
+				for (String value : ComplexValue.parse(literal).getValues(
+						termNameTag)) {
+					if (!row.terms.contains(value)) {
+						row.terms.add(value);
+					}
+				}
+			} else if (uri.equals(displayNameURI)) {
+				row.displayNames.add(literal);
+			} else if (uri.equals(semanticTypeURI)) {
+				row.semanticTypes.add(literal);
+			} else if (uri.equals(conceptStatusURI)) {
+				row.statuses.add(literal);
+				if (literal.startsWith("Retired_Concept")) {
+					row.retired = true;
+				}
+			}
+		}
+		if (row.code == null) {
+			row.code = "";
+		}
+		if (row.preferredName == null || row.preferredName.length() == 0) {
+			row.preferredName = c.getURI().getFragment();
+		}
+		return row;
+	}
+
+	/**
+	 * Formats the line of a class from its row and the codes of its parents.
+	 *
+	 * @param id
+	 *            the class id
+	 * @return the line
+	 */
+	private String format(int id) {
+		Row row = rows[id - chunkStart];
+		StringBuilder sb = new StringBuilder(256);
+		sb.append(row.code).append('\t').append(keys[id]).append('\t');
+
+		// parents, sorted, then listed in reverse
+		int start = hierarchy.getParentStart(id);
+		int end = hierarchy.getParentEnd(id);
+		Vector<String> parentV = new Vector<String>(end - start);
+		for (int p = start; p < end; p++) {
+			int parent = hierarchy.getParent(p);
+			URI parentURI = hierarchy.getURI(parent);
+			String parCode = codeIndex.getCode(parentURI);
+			if (parCode != null) {
+				parentV.add(parCode);
+			} else if (parent == hierarchy.getThing()) {
+				parentV.add("root_node");
+			} else {
+				String par = parentURI.getFragment();
+				parentV.add(par.equals("Thing") ? "root_node" : par);
+			}
+		}
+		Collections.sort(parentV);
+		for (int i = parentV.size() - 1; i >= 0; i--) {
+			sb.append(parentV.elementAt(i));
+			if (i != 0) {
+				sb.append('|');
+			}
+		}
+		sb.append('\t');
+
+		// preferred name, then the other synonyms
+		sb.append(row.preferredName);
+		Vector<String> terms = row.terms;
+		while (terms.contains(row.preferredName)) {
+			terms.remove(row.preferredName);
+		}
+		Collections.sort(terms);
+		for (String term : terms) {
+			sb.append('|').append(term);
+		}
+		sb.append('\t');
+
+		if (row.definition != null) {
+			sb.append(row.definition);
+		}
+		sb.append('\t');
+		appendSorted(sb, row.displayNames);
+		sb.append('\t');
+		appendSorted(sb, row.statuses);
+		sb.append('\t');
+		appendSorted(sb, row.semanticTypes);
+		return sb.toString();
+	}
+
+	/**
+	 * Appends values, sorted and separated by '|'.
+	 *
+	 * @param sb
+	 *            the builder
+	 * @param values
+	 *            the values
+	 */
+	private static void appendSorted(StringBuilder sb, Vector<String> values) {
+		Collections.sort(values);
+		for (int i = 0; i < values.size(); i++) {
+			if (i != 0) {
+				sb.append('|');
+			}
+			sb.append(values.elementAt(i));
+		}
+	}
+
+	/**
+	 * The columns of one class, as read from its annotations.
+	 */
+	private static final class Row {
+
+		/** The code, or null until found. */
+		String code;
+
+		/** The preferred name, or null until found. */
+		String preferredName;
+
+		/** The first definition, or null if there is none. */
+		String definition;
+
+		/** The distinct synonyms. */
+		final Vector<String> terms = new Vector<String>();
+
+		/** The display names. */
+		final Vector<String> displayNames = new Vector<String>();
+
+		/** The semantic types. */
+		final Vector<String> semanticTypes = new Vector<String>();
+
+		/** The concept statuses. */
+		final Vector<String> statuses = new Vector<String>();
+
+		/** Whether the concept is retired. */
+		boolean retired;
+
+		/** The number of annotations read. */
+		int annotations;
+	}
+
+	/**
+	 * Reads the rows of a range of classes, splitting it while it is large.
+	 */
+	@SuppressWarnings("serial")
+	private final class ReadTask extends RecursiveAction {
+
+		/** The range of class ids. */
+		private final int from, to;
+
+		/**
+		 * Instantiates a new read task.
+		 *
+		 * @param from
+		 *            the first class id
+		 * @param to
+		 *            the class id after the last
+		 */
+		ReadTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SPLIT_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					rows[i - chunkStart] = read(classes[i]);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ReadTask(from, mid), new ReadTask(mid, to));
+			}
+		}
+	}
+
+	/**
+	 * Formats the lines of a range of classes, splitting it while it is
+	 * large.
+	 */
+	@SuppressWarnings("serial")
+	private final class FormatTask extends RecursiveAction {
+
+		/** The range of class ids. */
+		private final int from, to;
+
+		/**
+		 * Instantiates a new format task.
+		 *
+		 * @param from
+		 *            the first class id
+		 * @param to
+		 *            the class id after the last
+		 */
+		FormatTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SPLIT_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					lines[i - chunkStart] = format(i);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new FormatTask(from, mid), new FormatTask(mid, to));
+			}
+		}
+	}
+}
@@ -0,0 +1,449 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Writes the flat file in sorted order with bounded memory. Lines are added
+ * with a sort key in any order; active concepts are written before retired
+ * ones, each group sorted by key, and of several lines with the same key only
+ * the last added is kept, as a TreeMap would.
+ *
+ * Lines are held in memory up to a budget. Past it, they are sorted and spilled
+ * to a temporary file, and the spill files are merged when the writer is
+ * closed. Output is encoded into one reusable buffer and written to a file
+ * channel in large blocks, or to a compressing stream if the file is a .gz
+ * file.
+ */
+final class FlatFileWriter {
+
+	/** The default memory budget for lines held before spilling. */
+	static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+	/** The size of the spill file buffers. */
+	private static final int SPILL_BUFFER_SIZE = 1 << 16;
+
+	/** The estimated memory used by a record besides its strings. */
+	private static final int RECORD_OVERHEAD = 96;
+
+	/** The order of the lines in the file. */
+	private static final Comparator<Record> ORDER = new Comparator<Record>() {
+		public int compare(Record a, Record b) {
+			if (a.retired != b.retired) {
+				return a.retired ? 1 : -1;
+			}
+			int c = a.key.compareTo(b.key);
+			if (c != 0) {
+				return c;
+			}
+			return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+		}
+	};
+
+	/** The file to write. */
+	private final File file;
+
+	/** The memory budget. */
+	private final long memoryBudget;
+
+	/** The size of the output buffer. */
+	private final int bufferSize;
+
+	/** The lines not yet spilled. */
+	private final List<Record> records = new ArrayList<Record>();
+
+	/** The estimated memory used by the lines not yet spilled. */
+	private long memoryUsed = 0;
+
+	/** The spill files, each sorted. */
+	private final List<File> spills = new ArrayList<File>();
+
+	/** The number of lines added. */
+	private int seq = 0;
+
+	/** The output channel. */
+	private FileChannel channel;
+
+	/** The output stream of a compressed file, in place of the channel. */
+	private OutputStream stream;
+
+	/** The output buffer. */
+	private ByteBuffer out;
+
+	/** The encoder of the output. */
+	private CharsetEncoder encoder;
+
+	/** The pending record, written once no later one has the same key. */
+	private Record pending;
+
+	/** The number of lines written. */
+	private int written = 0;
+
+	/**
+	 * Instantiates a new flat file writer.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @param memoryBudget
+	 *            the estimated bytes of lines to hold before spilling
+	 * @param bufferSize
+	 *            the size of the output buffer
+	 */
+	FlatFileWriter(File file, long memoryBudget, int bufferSize) {
+		this.file = file;
+		this.memoryBudget = memoryBudget;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Adds a line.
+	 *
+	 * @param retired
+	 *            whether the concept is retired
+	 * @param key
+	 *            the sort key
+	 * @param line
+	 *            the line, without a line separator
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void add(boolean retired, String key, String line) throws IOException {
+		records.add(new Record(retired, key, seq++, line));
+		memoryUsed += 2L * (key.length() + line.length()) + RECORD_OVERHEAD;
+		if (memoryUsed > memoryBudget) {
+			spill();
+		}
+	}
+
+	/**
+	 * Writes every line to the file and removes the spill files.
+	 *
+	 * @return the number of lines written
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	int close() throws IOException {
+		Closeable fos;
+		if (FileStreams.isCompressed(file)) {
+			stream = FileStreams.openOutput(file, bufferSize);
+			fos = stream;
+			out = ByteBuffer.allocate(bufferSize);
+		} else {
+			FileOutputStream channelStream = new FileOutputStream(file);
+			channel = channelStream.getChannel();
+			fos = channelStream;
+			out = ByteBuffer.allocateDirect(bufferSize);
+		}
+		encoder = Charset.defaultCharset().newEncoder().onMalformedInput(
+				CodingErrorAction.REPLACE).onUnmappableCharacter(
+				CodingErrorAction.REPLACE);
+		try {
+			if (spills.isEmpty()) {
+				Collections.sort(records, ORDER);
+				for (Record r : records) {
+					emit(r);
+				}
+				records.clear();
+			} else {
+				spill();
+				merge();
+			}
+			if (pending != null) {
+				writeLine(pending.line);
+			}
+			encode(CharBuffer.allocate(0), true);
+			while (encoder.flush(out) == CoderResult.OVERFLOW) {
+				drain();
+			}
+			drain();
+		} finally {
+			fos.close();
+			for (File spill : spills) {
+				spill.delete();
+			}
+			spills.clear();
+		}
+		return written;
+	}
+
+	/**
+	 * Sorts the lines held in memory and writes them to a new spill file.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void spill() throws IOException {
+		Collections.sort(records, ORDER);
+		File spillFile = File.createTempFile("owlscrubber-flat", ".spill");
+		spillFile.deleteOnExit();
+		spills.add(spillFile);
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(spillFile), SPILL_BUFFER_SIZE));
+		try {
+			for (Record r : records) {
+				dos.writeBoolean(r.retired);
+				dos.writeInt(r.seq);
+				writeString(dos, r.key);
+				writeString(dos, r.line);
+			}
+		} finally {
+			dos.close();
+		}
+		records.clear();
+		memoryUsed = 0;
+	}
+
+	/**
+	 * Merges the spill files into the output.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void merge() throws IOException {
+		PriorityQueue<SpillReader> queue = new PriorityQueue<SpillReader>(
+				spills.size(), new Comparator<SpillReader>() {
+					public int compare(SpillReader a, SpillReader b) {
+						return ORDER.compare(a.head, b.head);
+					}
+				});
+		List<SpillReader> readers = new ArrayList<SpillReader>(spills.size());
+		try {
+			for (File spill : spills) {
+				SpillReader reader = new SpillReader(spill);
+				readers.add(reader);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+			while (!queue.isEmpty()) {
+				SpillReader reader = queue.poll();
+				emit(reader.head);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+		} finally {
+			for (SpillReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending record unless the next one, in sorted order, replaces
+	 * it.
+	 *
+	 * @param r
+	 *            the next record
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void emit(Record r) throws IOException {
+		if (pending != null
+				&& (pending.retired != r.retired || !pending.key.equals(r.key))) {
+			writeLine(pending.line);
+		}
+		pending = r;
+	}
+
+	/**
+	 * Encodes a line and a line separator into the output buffer.
+	 *
+	 * @param line
+	 *            the line
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void writeLine(String line) throws IOException {
+		encode(CharBuffer.wrap(line), false);
+		encode(CharBuffer.wrap(System.lineSeparator()), false);
+		written++;
+	}
+
+	/**
+	 * Encodes characters into the output buffer, draining it when full.
+	 *
+	 * @param chars
+	 *            the characters
+	 * @param endOfInput
+	 *            whether these are the last characters
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void encode(CharBuffer chars, boolean endOfInput)
+			throws IOException {
+		while (encoder.encode(chars, out, endOfInput) == CoderResult.OVERFLOW) {
+			drain();
+		}
+	}
+
+	/**
+	 * Writes the output buffer to the channel or stream.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void drain() throws IOException {
+		if (stream != null) {
+			stream.write(out.array(), out.arrayOffset(), out.position());
+			out.clear();
+			return;
+		}
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+		out.clear();
+	}
+
+	/**
+	 * Writes a length prefixed UTF-8 string to a spill file.
+	 *
+	 * @param dos
+	 *            the stream
+	 * @param s
+	 *            the string
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void writeString(DataOutputStream dos, String s)
+			throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+	}
+
+	/**
+	 * Reads a length prefixed UTF-8 string from a spill file.
+	 *
+	 * @param dis
+	 *            the stream
+	 * @return the string
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static String readString(DataInputStream dis) throws IOException {
+		byte[] bytes = new byte[dis.readInt()];
+		dis.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * A line with its sort key.
+	 */
+	private static final class Record {
+
+		/** Whether the concept is retired. */
+		final boolean retired;
+
+		/** The sort key. */
+		final String key;
+
+		/** The order in which the line was added. */
+		final int seq;
+
+		/** The line. */
+		final String line;
+
+		/**
+		 * Instantiates a new record.
+		 *
+		 * @param retired
+		 *            whether the concept is retired
+		 * @param key
+		 *            the sort key
+		 * @param seq
+		 *            the order in which the line was added
+		 * @param line
+		 *            the line
+		 */
+		Record(boolean retired, String key, int seq, String line) {
+			this.retired = retired;
+			this.key = key;
+			this.seq = seq;
+			this.line = line;
+		}
+	}
+
+	/**
+	 * Reads the records of one spill file in order.
+	 */
+	private static final class SpillReader {
+
+		/** The stream. */
+		private final DataInputStream dis;
+
+		/** The current record. */
+		Record head;
+
+		/**
+		 * Opens a spill file.
+		 *
+		 * @param spill
+		 *            the spill file
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		SpillReader(File spill) throws IOException {
+			dis = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(spill), SPILL_BUFFER_SIZE));
+		}
+
+		/**
+		 * Reads the next record into head.
+		 *
+		 * @return true, if there was one
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		boolean next() throws IOException {
+			boolean retired;
+			try {
+				retired = dis.readBoolean();
+			} catch (EOFException e) {
+				head = null;
+				return false;
+			}
+			int seq = dis.readInt();
+			String key = readString(dis);
+			head = new Record(retired, key, seq, readString(dis));
+			return true;
+		}
+
+		/**
+		 * Closes the spill file.
+		 *
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		void close() throws IOException {
+			dis.close();
+		}
+	}
+}
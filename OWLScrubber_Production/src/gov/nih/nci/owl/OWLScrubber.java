@@ -15,45 +15,65 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 import org.coode.owl.rdf.rdfxml.RDFXMLOntologyStorer;
 import org.semanticweb.owl.apibinding.OWLManager;
-import org.semanticweb.owl.inference.OWLClassReasoner;
 import org.semanticweb.owl.io.OWLXMLOntologyFormat;
+import org.semanticweb.owl.io.StreamInputSource;
 import org.semanticweb.owl.io.WriterOutputTarget;
 import org.semanticweb.owl.model.AddAxiom;
+import org.semanticweb.owl.model.AxiomType;
 import org.semanticweb.owl.model.OWLAnnotation;
 import org.semanticweb.owl.model.OWLAnnotationAxiom;
 import org.semanticweb.owl.model.OWLAxiom;
 import org.semanticweb.owl.model.OWLClass;
+import org.semanticweb.owl.model.OWLConstant;
+import org.semanticweb.owl.model.OWLDataAllRestriction;
 import org.semanticweb.owl.model.OWLDataFactory;
 import org.semanticweb.owl.model.OWLDataProperty;
+import org.semanticweb.owl.model.OWLDataPropertyAssertionAxiom;
+import org.semanticweb.owl.model.OWLDataSomeRestriction;
 import org.semanticweb.owl.model.OWLDataType;
+import org.semanticweb.owl.model.OWLDataValueRestriction;
 import org.semanticweb.owl.model.OWLDescription;
 import org.semanticweb.owl.model.OWLEntity;
 import org.semanticweb.owl.model.OWLEntityAnnotationAxiom;
+import org.semanticweb.owl.model.OWLEquivalentClassesAxiom;
 import org.semanticweb.owl.model.OWLException;
 import org.semanticweb.owl.model.OWLIndividual;
+import org.semanticweb.owl.model.OWLObjectAllRestriction;
+import org.semanticweb.owl.model.OWLObjectIntersectionOf;
+import org.semanticweb.owl.model.OWLObjectSomeRestriction;
+import org.semanticweb.owl.model.OWLObjectValueRestriction;
 import org.semanticweb.owl.model.OWLOntology;
 import org.semanticweb.owl.model.OWLOntologyChange;
 import org.semanticweb.owl.model.OWLOntologyManager;
+import org.semanticweb.owl.model.OWLSubClassAxiom;
 import org.semanticweb.owl.model.OWLTypedConstant;
 import org.semanticweb.owl.model.RemoveAxiom;
 import org.semanticweb.owl.util.OWLEntityRemover;
-import org.semanticweb.owl.util.ToldClassHierarchyReasoner;
 
 // TODO: Auto-generated Javadoc
 /**
@@ -72,6 +92,9 @@ public class OWLScrubber {
 			OWLScrubber scrubber = new OWLScrubber();
 			scrubber.configure(args);
 			scrubber.run();
+			if (scrubber.getExitStatus() != 0) {
+				System.exit(scrubber.getExitStatus());
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -89,6 +112,9 @@ public class OWLScrubber {
 	/** The type constant string. */
 	private final String typeConstantString = "http://www.w3.org/2001/XMLSchema#string";
 
+	/** The type constant any uri. */
+	private final String typeConstantAnyURI = "http://www.w3.org/2001/XMLSchema#anyURI";
+
 	/** The type constant literal. */
 	private final String typeConstantLiteral = "http://www.w3.org/1999/02/22-rdf-syntax-ns#XMLLiteral";
 
@@ -125,15 +151,77 @@ public class OWLScrubber {
 	/** The scrub empty. Should empty qualifiers be scrubbed from the output */
 	private boolean scrubEmpty = false;
 
+	/**
+	 * The stream mode. Should the RDF/XML be scrubbed as a stream instead of
+	 * being loaded into the OWL API
+	 */
+	private boolean streamMode = false;
+
 	/**
 	 * The prefix. If hasLiterals=true, then a prefix for the literal's
 	 * definition must be supplied
 	 */
 	private String prefix = new String("");
 
-	private PrintWriter pw;
+	/** The estimated bytes of flat file lines held before spilling to disk. */
+	private long flatMemoryBudget;
+
+	/** The size of the file I/O buffers. */
+	private int ioBufferSize = FileStreams.DEFAULT_BUFFER_SIZE;
+
+	/** The measurements of the phases of this run. */
+	private final RunReport report = new RunReport();
+
+	/** The file the run report is written to (optional) */
+	private String reportFile;
+
+	/** The number of outputs of all profiles that could not be written. */
+	private int failedOutputs = 0;
+
+	/** The previous release's output, for an incremental scrub (optional) */
+	private URI previousSaveURI;
+
+	/** Should an incremental scrub be checked against a full one. */
+	private boolean verifyIncremental = false;
+
+	/** The number of elements an incremental scrub copied wrongly. */
+	private int verifyMismatches = 0;
+
+	/** Should the snapshot of the input be replaced rather than used. */
+	private boolean refreshSnapshot = false;
+
+	/**
+	 * The resident. Is the scrubber a job of the scrub daemon, whose errors
+	 * end the job rather than the process
+	 */
+	private boolean resident = false;
+
+	/** The daemon's loaded ontologies, or null when not a daemon job. */
+	private OntologyCache ontologyCache;
+
+	/** The cache entry of the loaded input, or null if it is not cached. */
+	private OntologyCache.Entry cacheEntry;
+
+	/** The changes of the running profile, or null if they are kept. */
+	private ProfileOverlay overlay;
+
+	/** The number of worker threads, for the rule sweep and the outputs. */
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The worker pool, created on first use and kept for the whole run so the
+	 * run report can still see the allocation of its threads.
+	 */
+	private ForkJoinPool pool;
+
+	/** The default properties file, used when no -C option is given. */
+	private static final String DEFAULT_CONFIG_FILE = "./config/owlscrubber.properties";
 
-	private String configFile = "./config/owlscrubber.properties";
+	/** The properties files named by the -C options. */
+	private final Vector<String> configFiles = new Vector<String>();
+
+	/** The profiles to run, one per properties file. */
+	private final Vector<ScrubProfile> profiles = new Vector<ScrubProfile>();
 
 	Vector<String> complexPropsToSimplify;
 
@@ -144,7 +232,45 @@ public class OWLScrubber {
 	private URI flatFileURI;
 
 	/** The removed classes. */
-	Vector<String> removedClasses = new Vector<String>();
+	Set<String> removedClasses = new LinkedHashSet<String>();
+
+	/** The file listing each association removed by fixReferences (optional) */
+	private String associationReportFile;
+
+	/**
+	 * The by code. Should classes and properties be saved under their codes
+	 * rather than their names
+	 */
+	private boolean byCode = false;
+
+	/**
+	 * The output encoding: utf-8, ascii (transliterated, as runIconv.pl did)
+	 * or both, written in the same pass
+	 */
+	private String outputEncoding = "utf-8";
+
+	/** The uri of the ascii copy when both encodings are written, or null */
+	private URI asciiSaveURI;
+
+	/** The formatOWL.pl rewrites made as the output is written */
+	private EnumSet<OutputRewriter.Rewrite> outputRewrites = EnumSet
+			.noneOf(OutputRewriter.Rewrite.class);
+
+	/**
+	 * The share of the axioms a batch of changes must remove for the ontology
+	 * to be rebuilt from the kept axioms rather than changed in place, or 0
+	 * to always change it in place
+	 */
+	private double rebuildRatio = 0;
+
+	/** The ascii output of the save in progress, or null */
+	private AsciiWriter asciiOutput;
+
+	/**
+	 * Should subClassOf restrictions that are already part of the class's
+	 * equivalentClass be removed (removeDuplicateRestrictions.pl)
+	 */
+	private boolean removeDuplicateRestrictions = false;
 
 	/** The branches to delete. */
 	Vector<String> branchesToDelete;
@@ -181,7 +307,7 @@ public class OWLScrubber {
 					prefix = args[++i] + ":";
 				} else if (option.equalsIgnoreCase("-C")
 						|| option.equalsIgnoreCase("--Config")) {
-					configFile = args[++i];
+					addConfigFiles(args[++i]);
 				} else if (option.equalsIgnoreCase("-F")
 						|| option.equalsIgnoreCase("-Flat")) {
 					generateFlatFile = true;
@@ -189,12 +315,33 @@ public class OWLScrubber {
 				} else if (option.equalsIgnoreCase("-P")
 						|| option.equalsIgnoreCase("--Pretty")) {
 					prettyPrint = true;
+				} else if (option.equalsIgnoreCase("-S")
+						|| option.equalsIgnoreCase("--Stream")) {
+					streamMode = true;
 				} else if (option.equalsIgnoreCase("-N")
 						|| option.equalsIgnoreCase("--iNput")) {
 					physicalURI = new URI(args[++i]);
 				} else if (option.equalsIgnoreCase("-O")
 						|| option.equalsIgnoreCase("--Output")) {
 					saveURI = new URI(args[++i]);
+				} else if (option.equalsIgnoreCase("-R")
+						|| option.equalsIgnoreCase("--Report")) {
+					reportFile = args[++i];
+				} else if (option.equalsIgnoreCase("-U")
+						|| option.equalsIgnoreCase("--Update")) {
+					previousSaveURI = new URI(args[++i]);
+				} else if (option.equalsIgnoreCase("-V")
+						|| option.equalsIgnoreCase("--Verify")) {
+					verifyIncremental = true;
+				} else if (option.equalsIgnoreCase("-Z")
+						|| option.equalsIgnoreCase("--Refresh")) {
+					refreshSnapshot = true;
+				} else if (option.equalsIgnoreCase("-T")
+						|| option.equalsIgnoreCase("--Threads")) {
+					threads = Integer.parseInt(args[++i]);
+					if (threads < 1) {
+						printHelp();
+					}
 				} else {
 					printHelp();
 				}
@@ -204,6 +351,184 @@ public class OWLScrubber {
 			printHelp(); // This will exit the program
 		}
 
+		if (configFiles.isEmpty()) {
+			configFiles.add(DEFAULT_CONFIG_FILE);
+		}
+		if (configFiles.size() > 1 && (saveURI != null || generateFlatFile)) {
+			System.out
+					.println("-O and -F can only be used with a single profile, set saveURI and flatURI in each profile instead.  Aborting.");
+			exit(1);
+		}
+		if (configFiles.size() > 1 && previousSaveURI != null) {
+			System.out
+					.println("-U can only be used with a single profile.  Aborting.");
+			exit(1);
+		}
+		if (previousSaveURI != null && !streamMode) {
+			System.out
+					.println("Incremental scrub is only available in stream mode (-S), scrubbing in full.");
+			previousSaveURI = null;
+		}
+		for (String configFile : configFiles) {
+			profiles.add(loadProfile(configFile));
+		}
+		if (physicalURI == null) {
+			physicalURI = profiles.firstElement().inputURI;
+		}
+		for (ScrubProfile profile : profiles) {
+			if (profile.inputURI != null
+					&& !profile.inputURI.equals(physicalURI)) {
+				System.out.println("Profile " + profile + " names input "
+						+ profile.inputURI + ", using " + physicalURI
+						+ " for all profiles.");
+			}
+		}
+		if (!streamMode) {
+			try {
+				report.begin("load");
+				if (!takeCached()) {
+					if (profiles.firstElement().snapshotDir != null) {
+						this.manager = new OntologySnapshot.RecordingManager();
+					} else {
+						this.manager = OWLManager.createOWLOntologyManager();
+					}
+					if ("file".equals(physicalURI.getScheme())) {
+						loadFile(new File(physicalURI), profiles.firstElement());
+					} else {
+						this.ontology = manager
+								.loadOntologyFromPhysicalURI(physicalURI);
+					}
+					if (cacheEntry != null) {
+						cacheEntry.set(manager, ontology);
+					}
+				}
+				report.examined(ontology.getAxiomCount());
+				report.end();
+			} catch (OWLException e) {
+				e.printStackTrace();
+				exit(1);
+			}
+		}
+	}
+
+	/**
+	 * Takes the input from the daemon's loaded ontologies, if the scrubber is
+	 * a daemon job and the input file is loaded and unchanged. Otherwise opens
+	 * a cache entry for the ontology about to be loaded, unless the input is
+	 * not a file or -Z asks for it to be parsed again.
+	 * 
+	 * @return true, if the ontology was taken from the cache
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private boolean takeCached() throws IOException {
+		if (ontologyCache == null || !"file".equals(physicalURI.getScheme())) {
+			return false;
+		}
+		File input = new File(physicalURI);
+		cacheEntry = ontologyCache.take(input);
+		if (cacheEntry != null && !refreshSnapshot) {
+			System.out.println("Using the loaded " + input + ".");
+			this.manager = cacheEntry.manager;
+			this.ontology = cacheEntry.ontology;
+			cacheEntry.uses++;
+			report.detail("cacheHit", 1);
+			return true;
+		}
+		cacheEntry = OntologyCache.open(input);
+		cacheEntry.uses++;
+		return false;
+	}
+
+	/**
+	 * Loads the input file, from its snapshot if the profile names a snapshot
+	 * directory and the input has one, otherwise by parsing it, after which
+	 * its snapshot is written for the next run.
+	 * 
+	 * @param input
+	 *            the input file
+	 * @param profile
+	 *            the first profile, whose I/O and snapshot settings are used
+	 * @throws Exception
+	 *             if the input cannot be read
+	 */
+	private void loadFile(File input, ScrubProfile profile) throws Exception {
+		OntologySnapshot snapshots = null;
+		byte[] hash = null;
+		if (profile.snapshotDir != null) {
+			snapshots = new OntologySnapshot(new File(profile.snapshotDir),
+					profile.snapshotMaxBytes, profile.ioBufferSize);
+			hash = snapshots.hash(input);
+			if (refreshSnapshot) {
+				snapshots.invalidate(hash);
+			} else {
+				this.ontology = snapshots.load(manager, hash, physicalURI);
+				if (ontology != null) {
+					report.detail("snapshotLoaded", 1);
+					return;
+				}
+			}
+		}
+		OntologySnapshot.RecordingManager recorder = null;
+		if (snapshots != null) {
+			recorder = (OntologySnapshot.RecordingManager) manager;
+			recorder.startRecording();
+		}
+		// read through our own stream, so a .gz file is inflated as it is
+		// parsed and the buffer is ours
+		InputStream in = FileStreams.openInput(input, profile.ioBufferSize);
+		try {
+			this.ontology = manager.loadOntology(new StreamInputSource(in,
+					physicalURI));
+		} finally {
+			in.close();
+		}
+		if (snapshots != null) {
+			snapshots.save(manager, ontology, hash, recorder.stopRecording());
+		}
+	}
+
+	/**
+	 * Adds the properties files named by a -C option. The option takes either
+	 * a comma separated list of files or @file, a profile set listing one
+	 * properties file per line.
+	 * 
+	 * @param option
+	 *            the option value
+	 */
+	private void addConfigFiles(String option) {
+		if (option.startsWith("@")) {
+			Vector<String> lines = readConfigFile(option.substring(1));
+			if (lines == null) {
+				System.out.println("Unable to read profile set "
+						+ option.substring(1) + ".  Aborting.");
+				exit(1);
+			}
+			for (String line : lines) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#")) {
+					configFiles.add(line);
+				}
+			}
+		} else {
+			for (String file : option.split(",")) {
+				if (file.trim().length() > 0) {
+					configFiles.add(file.trim());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Load a profile from a properties file. The -O and -F options, which are
+	 * only allowed with a single profile, take precedence over the file.
+	 * 
+	 * @param configFile
+	 *            the properties file
+	 * @return the profile
+	 */
+	private ScrubProfile loadProfile(String configFile) {
+		ScrubProfile profile = new ScrubProfile(configFile);
 		String branchDeleteFile = "";
 		String propsDeleteFile = "";
 		String complexDeleteFile = "";
@@ -211,51 +536,153 @@ public class OWLScrubber {
 		try {
 			Properties props = new Properties();
 			props.load(new FileInputStream(configFile));
-			ontologyNamespace = props.getProperty("namespace");
-			if (saveURI == null) {
-				saveURI = new URI(props.getProperty("saveURI"));
+			profile.namespace = props.getProperty("namespace");
+			if (saveURI != null) {
+				profile.saveURI = saveURI;
+			} else {
+				profile.saveURI = new URI(props.getProperty("saveURI"));
+			}
+			if (isSet(props.getProperty("inputURI"))) {
+				profile.inputURI = new URI(props.getProperty("inputURI"));
+			}
+			if (generateFlatFile) {
+				profile.flatFileURI = flatFileURI;
+			} else if (isSet(props.getProperty("flatURI"))) {
+				profile.flatFileURI = new URI(props.getProperty("flatURI"));
 			}
-			if (physicalURI == null) {
-				physicalURI = new URI(props.getProperty("inputURI"));
+			if (isSet(props.getProperty("flat_memory_mb"))) {
+				profile.flatMemoryBudget = Long.parseLong(props.getProperty(
+						"flat_memory_mb").trim()) * 1024 * 1024;
+			}
+			if (isSet(props.getProperty("io_buffer_kb"))) {
+				profile.ioBufferSize = Integer.parseInt(props.getProperty(
+						"io_buffer_kb").trim()) * 1024;
+			}
+			if (isSet(props.getProperty("snapshot_dir"))) {
+				profile.snapshotDir = props.getProperty("snapshot_dir").trim();
+			}
+			if (isSet(props.getProperty("snapshot_max_mb"))) {
+				profile.snapshotMaxBytes = Long.parseLong(props.getProperty(
+						"snapshot_max_mb").trim()) * 1024 * 1024;
 			}
 			branchDeleteFile = props.getProperty("branch_delete");
 			propsDeleteFile = props.getProperty("props_delete");
 			complexDeleteFile = props.getProperty("complex_delete");
 			complexSimplifyFile = props.getProperty("complex_simplify");
+			profile.associationReportFile = props
+					.getProperty("association_report");
+			profile.byCode = Boolean.parseBoolean(props.getProperty("by_code",
+					"false").trim());
+			profile.outputEncoding = props.getProperty("output_encoding",
+					"utf-8").trim().toLowerCase();
+			if (!profile.outputEncoding.equals("utf-8")
+					&& !profile.outputEncoding.equals("ascii")
+					&& !profile.outputEncoding.equals("both")) {
+				System.out.println("Unknown output_encoding "
+						+ profile.outputEncoding + " in " + configFile
+						+ ", expected utf-8, ascii or both.  Aborting.");
+				exit(1);
+			}
+			try {
+				profile.outputRewrites = OutputRewriter.parse(props
+						.getProperty("output_rewrites"));
+			} catch (IllegalArgumentException e) {
+				System.out.println("Unknown output_rewrites "
+						+ props.getProperty("output_rewrites") + " in "
+						+ configFile + ", expected all or some of "
+						+ EnumSet.allOf(OutputRewriter.Rewrite.class)
+								.toString().toLowerCase() + ".  Aborting.");
+				exit(1);
+			}
+			if (isSet(props.getProperty("ascii_saveURI"))) {
+				profile.asciiSaveURI = new URI(props.getProperty(
+						"ascii_saveURI").trim());
+			}
+			profile.removeDuplicateRestrictions = Boolean.parseBoolean(props
+					.getProperty("remove_duplicate_restrictions", "false")
+					.trim());
+			if (isSet(props.getProperty("rebuild_ratio"))) {
+				profile.rebuildRatio = Double.parseDouble(props.getProperty(
+						"rebuild_ratio").trim());
+			}
+		} catch (ExitException e) {
+			throw e;
 		} catch (Exception e) {
 			e.printStackTrace();
-			System.out
-					.println("Unable to find owlscrubber.properties file in this directory.  Aborting.");
-			System.exit(1);
-		}
-		try {
-			this.manager = OWLManager.createOWLOntologyManager();
-			this.ontology = manager.loadOntologyFromPhysicalURI(physicalURI);
-		} catch (OWLException e) {
-			e.printStackTrace();
-			System.exit(1);
+			System.out.println("Unable to find " + configFile
+					+ " file.  Aborting.");
+			exit(1);
 		}
-		branchesToDelete = readConfigFile(branchDeleteFile);
-		propertiesToDelete = readConfigFile(propsDeleteFile);
-		complexDataToDelete = readConfigFile(complexDeleteFile);
-		complexPropsToSimplify = readConfigFile(complexSimplifyFile);
+		profile.branchesToDelete = readConfigFile(branchDeleteFile);
+		profile.propertiesToDelete = readConfigFile(propsDeleteFile);
+		profile.complexDataToDelete = readConfigFile(complexDeleteFile);
+		profile.complexPropsToSimplify = readConfigFile(complexSimplifyFile);
+		return profile;
+	}
 
+	/**
+	 * Use an ontology that is already loaded, in place of configure. This is
+	 * how the benchmarks run the scrubber against ontologies built in memory.
+	 * 
+	 * @param manager
+	 *            the manager
+	 * @param ontology
+	 *            the ontology
+	 * @param namespace
+	 *            the ontology namespace
+	 * @param literalPrefix
+	 *            the prefix of the XML literals, as given to -L, or null if
+	 *            the ontology has none
+	 * @param saveURI
+	 *            the uri where the output file should be written
+	 */
+	void setOntology(OWLOntologyManager manager, OWLOntology ontology,
+			String namespace, String literalPrefix, URI saveURI) {
+		this.manager = manager;
+		this.ontology = ontology;
+		this.ontologyNamespace = namespace;
+		this.hasLiterals = literalPrefix != null;
+		this.prefix = literalPrefix == null ? "" : literalPrefix + ":";
+		this.saveURI = saveURI;
+		removedClasses = new LinkedHashSet<String>();
 	}
 
 	/**
-	 * Configure the PrintWriter
+	 * Checks whether a property has a value.
 	 * 
-	 * @param fileLoc
+	 * @param value
+	 *            the property value
+	 * @return true, if the value is neither missing nor blank
 	 */
-	private boolean config_pw(URI fileLoc) {
-		try {
-			File file = new File(fileLoc);
-			pw = new PrintWriter(file);
-			return true;
-		} catch (Exception e) {
-			System.out.println("Error in PrintWriter");
-			return false;
-		}
+	private static boolean isSet(String value) {
+		return value != null && value.trim().length() > 0;
+	}
+
+	/**
+	 * Make a profile the current one.
+	 * 
+	 * @param profile
+	 *            the profile
+	 */
+	private void useProfile(ScrubProfile profile) {
+		ontologyNamespace = profile.namespace;
+		saveURI = profile.saveURI;
+		flatFileURI = profile.flatFileURI;
+		generateFlatFile = flatFileURI != null;
+		flatMemoryBudget = profile.flatMemoryBudget;
+		ioBufferSize = profile.ioBufferSize;
+		associationReportFile = profile.associationReportFile;
+		byCode = profile.byCode;
+		removeDuplicateRestrictions = profile.removeDuplicateRestrictions;
+		outputEncoding = profile.outputEncoding;
+		asciiSaveURI = profile.asciiSaveURI;
+		outputRewrites = profile.outputRewrites;
+		rebuildRatio = profile.rebuildRatio;
+		branchesToDelete = profile.branchesToDelete;
+		propertiesToDelete = profile.propertiesToDelete;
+		complexDataToDelete = profile.complexDataToDelete;
+		complexPropsToSimplify = profile.complexPropsToSimplify;
+		removedClasses = new LinkedHashSet<String>();
 	}
 
 	/**
@@ -270,34 +697,97 @@ public class OWLScrubber {
 	 */
 	public void constructCleanProperty(String cleanProperty,
 			String complexProperty, String complexTagName) {
-		Set<OWLOntologyChange> changes = new HashSet<OWLOntologyChange>();
-		for (OWLAxiom ax : ontology.getAxioms()) {
-			if (ax.toString().contains("Annotation(" + complexProperty)) {
-				OWLEntity ent = getReferencingClassEntity(ax);
-				String termName = getTagValue(ax, complexProperty);
-				if (termName != null) {
-					OWLDataFactory factory = manager.getOWLDataFactory();
-					OWLDataType odt = factory.getOWLDataType(URI
-							.create(typeConstantString));
-					OWLTypedConstant otc = factory.getOWLTypedConstant(
-							termName, odt);
-					OWLAnnotation anno = factory.getOWLConstantAnnotation(
-							createURI(cleanProperty), otc);
-					OWLEntityAnnotationAxiom ax1 = factory
-							.getOWLEntityAnnotationAxiom(ent, anno);
-					changes.add(new AddAxiom(ontology, ax1));
-				}
-			}
+		ScrubRuleEngine engine = new ScrubRuleEngine(this);
+		engine.addCleanPropertyRule(cleanProperty, complexProperty,
+				complexTagName);
+		applyRules(engine);
+	}
+
+	/**
+	 * Creates a new complex property axiom, typed as XMLLiteral when the
+	 * ontology has literals and as string otherwise
+	 * 
+	 * @param ent
+	 *            the entity being annotated
+	 * @param property
+	 *            the id of the property
+	 * @param value
+	 *            the value
+	 * @return the entity annotation axiom
+	 */
+	OWLEntityAnnotationAxiom createComplexAxiom(OWLEntity ent,
+			String property, String value) {
+		if (hasLiterals) {
+			return createAnnotationAxiom(ent, property, value,
+					typeConstantLiteral);
 		}
-		if (!changes.isEmpty()) {
-			List<OWLOntologyChange> list = new ArrayList<OWLOntologyChange>(
-					changes);
-			try {
-				manager.applyChanges(list);
-			} catch (OWLException e) {
-				e.printStackTrace();
+		return createAnnotationAxiom(ent, property, value, typeConstantString);
+	}
+
+	/**
+	 * Creates a new string typed property axiom
+	 * 
+	 * @param ent
+	 *            the entity being annotated
+	 * @param property
+	 *            the id of the property
+	 * @param value
+	 *            the value
+	 * @return the entity annotation axiom
+	 */
+	OWLEntityAnnotationAxiom createStringAxiom(OWLEntity ent, String property,
+			String value) {
+		return createAnnotationAxiom(ent, property, value, typeConstantString);
+	}
+
+	/**
+	 * Creates a new typed annotation axiom
+	 * 
+	 * @param ent
+	 *            the entity being annotated
+	 * @param property
+	 *            the id of the property
+	 * @param value
+	 *            the value
+	 * @param dataType
+	 *            the uri of the data type
+	 * @return the entity annotation axiom
+	 */
+	private OWLEntityAnnotationAxiom createAnnotationAxiom(OWLEntity ent,
+			String property, String value, String dataType) {
+		OWLDataFactory factory = manager.getOWLDataFactory();
+		OWLDataType odt;
+		// the factory caches data types in a plain map, and the rule sweep
+		// creates axioms on several threads
+		synchronized (factory) {
+			odt = factory.getOWLDataType(URI.create(dataType));
+		}
+		OWLTypedConstant otc = factory.getOWLTypedConstant(value, odt);
+		OWLAnnotation anno = factory.getOWLConstantAnnotation(
+				createURI(property), otc);
+		return factory.getOWLEntityAnnotationAxiom(ent, anno);
+	}
+
+	/**
+	 * Resolves a class named in a rule file. The name is taken as a uri
+	 * fragment if the ontology has such a class, and otherwise looked up as a
+	 * concept code.
+	 * 
+	 * @param name
+	 *            the fragment or code
+	 * @param codes
+	 *            the code index
+	 * @return the class uri
+	 */
+	URI resolveClass(String name, CodeIndex codes) {
+		URI uri = createURI(name);
+		if (!ontology.containsClassReference(uri)) {
+			URI coded = codes.getURI(name);
+			if (coded != null) {
+				return coded;
 			}
 		}
+		return uri;
 	}
 
 	/**
@@ -315,66 +805,111 @@ public class OWLScrubber {
 	 * Fix references. If a class is removed, then also remove any roles
 	 * pointing to it.
 	 */
-	@SuppressWarnings("unchecked")
 	public void fixReferences() {
+		fixReferences(AssociationIndex.build(this, ontology));
+	}
+
+	/**
+	 * Fix references using an association index, so only the associations
+	 * pointing to removed classes are visited. A summary is printed and, if
+	 * association_report is configured, every removed association is written
+	 * to that file.
+	 * 
+	 * @param associations
+	 *            the associations by target uri
+	 */
+	void fixReferences(AssociationIndex associations) {
+		PrintWriter associationReport = null;
 		try {
-			Set<OWLOntologyChange> changes = new HashSet<OWLOntologyChange>();
-			for (OWLClass cls : ontology.getReferencedClasses()) {
-				for (OWLAnnotationAxiom axiom : cls
-						.getAnnotationAxioms(ontology)) {
-					// associations only
-					if (axiom.toString().contains("^^anyURI")) {
-						int beginning = axiom.toString().indexOf("\"");
-						int end = axiom.toString().indexOf("\"^^anyURI");
-						String value = axiom.toString().substring(
-								beginning + 1, end);
-						if ((removedClasses != null) && (value != null)
-								&& removedClasses.contains(value)) {
-							System.out
-									.println("Removing association from class "
-											+ axiom.getSubject() + " - ");
-							System.out.println("\t"
-									+ axiom.getAnnotation().getAnnotationURI()
-											.getFragment() + " " + value);
-							changes.add(new RemoveAxiom(ontology, axiom));
-						}
+			if (associationReportFile != null) {
+				associationReport = new PrintWriter(new BufferedWriter(new FileWriter(
+						associationReportFile)));
+			}
+			List<OWLOntologyChange> changes = new ArrayList<OWLOntologyChange>();
+			int targets = 0;
+			for (String removed : removedClasses) {
+				List<OWLEntityAnnotationAxiom> axioms = associations
+						.get(removed);
+				if (!axioms.isEmpty()) {
+					targets++;
+				}
+				for (OWLEntityAnnotationAxiom axiom : axioms) {
+					changes.add(new RemoveAxiom(ontology, axiom));
+					if (associationReport != null) {
+						associationReport.println(axiom.getSubject().getURI()
+								.getFragment()
+								+ "\t"
+								+ axiom.getAnnotation().getAnnotationURI()
+										.getFragment() + "\t" + removed);
 					}
 				}
 			}
-			List<OWLOntologyChange> list = new ArrayList<OWLOntologyChange>(
-					changes);
-			manager.applyChanges(list);
-		} catch (OWLException e) {
+			report.examined(changes.size());
+			report.changed(changes.size());
+			applyChanges(changes);
+			System.out.println("Removed " + changes.size()
+					+ " associations pointing to " + targets + " of "
+					+ removedClasses.size() + " removed classes.");
+		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			if (associationReport != null) {
+				associationReport.close();
+			}
+		}
+	}
+
+	/**
+	 * Gets the target of an association, i.e. a class annotation whose value
+	 * is an anyURI.
+	 * 
+	 * @param axiom
+	 *            the annotation axiom
+	 * @return the target uri, or null if the axiom is not an association
+	 */
+	String getAssociationTarget(OWLEntityAnnotationAxiom axiom) {
+		if (!(axiom.getSubject() instanceof OWLClass)) {
+			return null;
+		}
+		OWLConstant constant = getConstant(axiom.getAnnotation());
+		if (constant != null && isTypedAs(constant, typeConstantAnyURI)) {
+			return constant.getLiteral();
 		}
+		return null;
 	}
 
 	/**
-	 * Gets the descendants.
+	 * Gets the descendants. This indexes the whole class hierarchy first; to
+	 * look up several classes, build the index once and use
+	 * {@link #getDescendants(ClassHierarchy, OWLClass)}.
 	 * 
 	 * @param cls
 	 *            the cls
 	 * @return the descendants
 	 */
 	public Vector<OWLDescription> getDescendants(OWLClass cls) {
-		Set<OWLDescription> ods = cls.getSubClasses(ontology);
-		OWLDescription[] children = ods.toArray(new OWLDescription[ods.size()]);
-		if (children.length == 0) return null;
+		return getDescendants(ClassHierarchy.build(ontology), cls);
+	}
+
+	/**
+	 * Gets the descendants from a prebuilt index of the class hierarchy.
+	 * 
+	 * @param hierarchy
+	 *            the class hierarchy of the ontology
+	 * @param cls
+	 *            the cls
+	 * @return the descendants
+	 */
+	Vector<OWLDescription> getDescendants(ClassHierarchy hierarchy,
+			OWLClass cls) {
+		int id = hierarchy.getId(cls.getURI());
+		if (id == -1) return null;
+		BitSet descendants = hierarchy.getDescendants(new int[] { id });
+		if (descendants.isEmpty()) return null;
 		Vector<OWLDescription> vChildren = new Vector<OWLDescription>();
-		for (OWLDescription child : children) {
-			vChildren.add(child);
-		}
-		for (int i = 0; i < vChildren.size(); i++) {
-			Vector<OWLDescription> w = getDescendants(vChildren.elementAt(i)
-					.asOWLClass());
-			if (w != null) {
-				for (int j = 0; j < w.size(); j++) {
-					if (w.elementAt(j) != null
-							&& !vChildren.contains(w.elementAt(j))) {
-						vChildren.add(w.elementAt(j));
-					}
-				}
-			}
+		for (int i = descendants.nextSetBit(0); i >= 0; i = descendants
+				.nextSetBit(i + 1)) {
+			vChildren.add(hierarchy.getOWLClass(i));
 		}
 		return vChildren;
 	}
@@ -412,44 +947,123 @@ public class OWLScrubber {
 	 * @return the tag value
 	 */
 	public String getTagValue(OWLAxiom ax, String tagName) {
-		String tagValue = null;
-		int beginning = ax.toString().indexOf("\"");
-		int end;
-		if (hasLiterals) {
-			end = ax.toString().indexOf("\"^^XMLLiteral))");
-		} else {
-			end = ax.toString().indexOf("\"^^string))");
+		String literal = getLiteral(ax);
+		if (literal == null) {
+			return null;
+		}
+		return getTagValue(literal, tagName);
+	}
+
+	/**
+	 * Gets the tag value from the literal of a complex property.
+	 * 
+	 * @param literal
+	 *            the literal
+	 * @param tagName
+	 *            the tag name
+	 * @return the tag value
+	 */
+	String getTagValue(String literal, String tagName) {
+		return ComplexValue.parse(literal).getRaw(prefix + tagName);
+	}
+
+	/**
+	 * Gets the constant value of an annotation axiom or data property
+	 * assertion.
+	 * 
+	 * @param ax
+	 *            the axiom
+	 * @return the constant, or null if the axiom has no constant value
+	 */
+	OWLConstant getConstant(OWLAxiom ax) {
+		if (ax instanceof OWLAnnotationAxiom) {
+			return getConstant(((OWLAnnotationAxiom<?>) ax).getAnnotation());
+		}
+		if (ax instanceof OWLDataPropertyAssertionAxiom) {
+			return ((OWLDataPropertyAssertionAxiom) ax).getObject();
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the constant value of an annotation.
+	 * 
+	 * @param anno
+	 *            the annotation
+	 * @return the constant, or null if the annotation is not by constant
+	 */
+	OWLConstant getConstant(OWLAnnotation<?> anno) {
+		if (anno.isAnnotationByConstant()) {
+			return anno.getAnnotationValueAsConstant();
 		}
-		String orig = ax.toString().substring(beginning + 1, end);
-		int pos1 = orig.indexOf("<" + prefix + tagName + ">");
-		int pos2 = orig.indexOf("</" + prefix + tagName + ">");
-		if (pos1 != -1 && pos2 != -1) {
-			tagValue = orig.substring(pos1 + 2 + prefix.length()
-					+ tagName.length(), pos2); // 2 is < and >
+		return null;
+	}
+
+	/**
+	 * Gets the literal value of an axiom
+	 * 
+	 * @param ax
+	 *            the axiom
+	 * @return the literal, or null if the axiom has no constant value
+	 */
+	String getLiteral(OWLAxiom ax) {
+		OWLConstant value = getConstant(ax);
+		if (value == null) {
+			return null;
 		}
-		return tagValue;
+		return value.getLiteral();
+	}
+
+	/**
+	 * Checks whether a constant is typed with the given data type.
+	 * 
+	 * @param value
+	 *            the constant
+	 * @param dataType
+	 *            the uri of the data type
+	 * @return true, if the constant has that type
+	 */
+	boolean isTypedAs(OWLConstant value, String dataType) {
+		return value.isTyped()
+				&& value.asOWLTypedConstant().getDataType().getURI()
+						.toString().equals(dataType);
+	}
+
+	/**
+	 * Checks whether the input contains XML Literals
+	 * 
+	 * @return true, if literals were declared with -L
+	 */
+	boolean hasLiterals() {
+		return hasLiterals;
 	}
 
 	/**
-	 * Checks if an axiom is empty.
+	 * Gets the prefix of the literal definition, including the colon
+	 * 
+	 * @return the prefix
+	 */
+	String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Checks if an axiom is empty, i.e. its value is a typed or language
+	 * tagged constant with an empty literal.
 	 * 
 	 * @param ax
 	 *            the ax
 	 * @return true, if is empty
 	 */
 	public boolean isEmpty(OWLAxiom ax) {
-		boolean test = false;
-
 		// EntityAnnotationAxiom(OBI_0000639 Annotation(IAO_0000111 ""^^string))
 		// EntityAnnotationAxiom(OBI_0000481 Annotation(IAO_0000118 ""@en))
 		// EntityAnnotationAxiom(OBI_0400008 Comment( ""@en))
-
-		if (ax.toString().contains(" \"\"^^")
-				|| ax.toString().contains(" \"\"@")) {
-			// System.out.println(ax);
-			test = true;
+		OWLConstant value = getConstant(ax);
+		if (value == null || value.getLiteral().length() != 0) {
+			return false;
 		}
-		return test;
+		return value.isTyped() || value.asOWLUntypedConstant().hasLang();
 	}
 
 	/**
@@ -462,6 +1076,8 @@ public class OWLScrubber {
 		System.out.println(" ");
 		System.out
 				.println("  -C [configFile]\tTells where to find owlscrubber.properties file");
+		System.out
+				.println("  -C [a,b,...|@setFile]\tRun several profiles against one load");
 		System.out.println("  -E, --Empty\t\tScrub empty properties");
 		System.out.println("  -I, --Individuals\t\tOutput OWL Individuals");
 		System.out
@@ -469,13 +1085,83 @@ public class OWLScrubber {
 		// System.out
 		// .println("  -M, --Meme\t\t\tOutput MEME file for publication");
 		System.out
-				.println("   -F, --Flat\t\t\tURL to print flat file (optional)");
+				.println("   -F, --Flat\t\t\tURL to print flat file (optional, gzip if .gz)");
 		System.out.println("  -P, --Pretty\t\t\tPretty print, scrub nothing");
+		System.out
+				.println("  -S, --Stream\t\t\tScrub RDF/XML as a stream, without loading it");
 		// System.out.println("  -S, --Synonyms\t\tConstruct synonyms");
-		System.out.println("  -N, --iNput\t\t\tURL of input file");
-		System.out.println("  -O, --Output\t\t\tURL of output file");
+		System.out.println("  -N, --iNput\t\t\tURL of input file, gzip if .gz");
+		System.out.println("  -O, --Output\t\t\tURL of output file, gzip if .gz");
+		System.out
+				.println("  -R, --Report [file]\t\tWrite the phase timings as JSON");
+		System.out
+				.println("  -U, --Update [previous]\tWith -S, copy what is unchanged from the previous output");
+		System.out
+				.println("  -V, --Verify\t\t\tWith -U, scrub everything and check the copies");
+		System.out
+				.println("  -Z, --Refresh\t\t\tParse the input again, replacing its snapshot");
+		System.out
+				.println("  -T, --Threads [n]\t\tWorker threads, one per processor by default");
 		System.out.println("");
-		System.exit(1);
+		exit(1);
+	}
+
+	/**
+	 * Ends the run with an exit status: the process, or only the job when the
+	 * scrubber runs in the daemon.
+	 * 
+	 * @param status
+	 *            the exit status
+	 */
+	private void exit(int status) {
+		if (resident) {
+			throw new ExitException(status);
+		}
+		System.exit(status);
+	}
+
+	/**
+	 * Makes the scrubber a job of the scrub daemon: the errors that would
+	 * exit end the job instead, and a file input is taken from the daemon's
+	 * loaded ontologies and put back once the profiles have restored it.
+	 * 
+	 * @param cache
+	 *            the daemon's loaded ontologies
+	 */
+	void setResident(OntologyCache cache) {
+		this.resident = true;
+		this.ontologyCache = cache;
+	}
+
+	/**
+	 * Gets the exit status of the run.
+	 * 
+	 * @return 1 if an output could not be written or an incremental scrub
+	 *         copied wrongly, otherwise 0
+	 */
+	int getExitStatus() {
+		return failedOutputs > 0 || verifyMismatches > 0 ? 1 : 0;
+	}
+
+	/**
+	 * Thrown in place of System.exit when the scrubber is a daemon job.
+	 */
+	@SuppressWarnings("serial")
+	static final class ExitException extends RuntimeException {
+
+		/** The exit status. */
+		final int status;
+
+		/**
+		 * Instantiates a new exit exception.
+		 * 
+		 * @param status
+		 *            the exit status
+		 */
+		ExitException(int status) {
+			super("exit " + status);
+			this.status = status;
+		}
 	}
 
 	/**
@@ -525,123 +1211,205 @@ public class OWLScrubber {
 	 *            the class uri
 	 */
 	public void removeBranch(URI classURI) {
+		Vector<URI> classURIs = new Vector<URI>();
+		classURIs.add(classURI);
+		removeBranches(classURIs);
+	}
+
+	/**
+	 * Removes several branches in one batch. The hierarchy is indexed once, the
+	 * descendants of all roots are collected together and every class is
+	 * handed to a single entity remover.
+	 * 
+	 * @param classURIs
+	 *            the uris of the branch roots
+	 */
+	public void removeBranches(Vector<URI> classURIs) {
 		try {
+			ClassHierarchy hierarchy = ClassHierarchy.build(ontology);
+			int[] roots = new int[classURIs.size()];
+			int rootCount = 0;
+			for (URI classURI : classURIs) {
+				int id = hierarchy.getId(classURI);
+				if (id != -1) {
+					roots[rootCount++] = id;
+				} else {
+					System.out.println("Branch " + classURI.getFragment()
+							+ " not found.");
+				}
+			}
+			int[] found = new int[rootCount];
+			System.arraycopy(roots, 0, found, 0, rootCount);
+
 			OWLEntityRemover remover = new OWLEntityRemover(manager,
 					Collections.singleton(ontology));
-			for (OWLClass cls : ontology.getReferencedClasses()) {
-				// System.out.println(cls.getURI().toString());
-				if (cls.getURI().equals(classURI)) {
-					// System.out.println("Now printing all descendants of " +
-					// cls);
-					Vector<OWLDescription> descendants = getDescendants(cls);
-					if (descendants != null) {
-						for (OWLDescription odesc : descendants) {
-							// System.out.println("Removing " + odesc );
-							URI test = odesc.asOWLClass().getURI();
-							removedClasses.add(test.toString());
-							odesc.asOWLClass().accept(remover);
-						}
-					} else {
-						// System.out.println("No children to remove from " +
-						// cls + ".");
-					}
-					// System.out.println( "Removing branch class " + cls);
-					cls.accept(remover);
+			BitSet descendants = hierarchy.getDescendants(found);
+			for (int i = descendants.nextSetBit(0); i >= 0; i = descendants
+					.nextSetBit(i + 1)) {
+				OWLClass cls = hierarchy.getOWLClass(i);
+				removedClasses.add(cls.getURI().toString());
+				cls.accept(remover);
+			}
+			for (int root : found) {
+				if (!descendants.get(root)) {
+					hierarchy.getOWLClass(root).accept(remover);
+				}
+				if (report.isRecording()) {
+					BitSet branch = hierarchy.getDescendants(new int[] { root });
+					report.detail(hierarchy.getURI(root).getFragment(), branch
+							.cardinality()
+							+ (branch.get(root) ? 0 : 1));
 				}
 			}
-			// System.out.println("Applying branch removal changes...");
-			manager.applyChanges(remover.getChanges());
+			report.examined(remover.getChanges().size());
+			report.changed(remover.getChanges().size());
+			applyRemovals(remover.getChanges());
 		} catch (OWLException e) {
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Removes the complex property.
+	 * Starts recording the changes made to the ontology, so they can be undone.
 	 * 
-	 * @param complex
-	 *            the id of the complex property to be removed
+	 * @return the overlay
 	 */
-	@SuppressWarnings("unchecked")
-	public void removeComplex(String complex) {
-		String[] complexArray = complex.split("\t");
-
-		String[] values = new String[2];
-		values[0] = null;
-		values[1] = null;
-		if (complex.contains("\t")) {
-			values = complex.split("\t");
-			if (values[0] != null && values[1] != null) {
-				if (hasLiterals) {
-					values[1] = prefix + values[1];
-				}
-				Set<OWLOntologyChange> changes = new HashSet<OWLOntologyChange>();
-				for (OWLAxiom ax : ontology.getAxioms()) {
-					if (ax.toString().contains("Annotation(" + values[0])
-							&& ax.toString().contains(values[1])) {
-						OWLEntity ent = getReferencingClassEntity(ax);
-						// System.out.println(ax);
-
-						// get property value, return the new value
-						int beginning = ax.toString().indexOf("\"");
-						int end;
-
-						if (hasLiterals) {
-							end = ax.toString().indexOf("\"^^XMLLiteral))");
-						} else {
-							end = ax.toString().indexOf("\"^^string))");
-						}
+	ProfileOverlay openOverlay() {
+		overlay = new ProfileOverlay(manager);
+		return overlay;
+	}
 
-						String origValue = ax.toString().substring(
-								beginning + 1, end);
-						String newValue = removeData(origValue, values[1]);
-						// System.out.println( origValue );
-						// System.out.println( "\t" + newValue );
-
-						// delete old axiom
-						changes.add(new RemoveAxiom(ontology, ax));
-
-						// create new axiom
-						OWLDataFactory factory = manager.getOWLDataFactory();
-						OWLDataType odt;
-
-						if (hasLiterals) {
-							odt = factory.getOWLDataType(URI
-									.create(typeConstantLiteral));
-						} else {
-							odt = factory.getOWLDataType(URI
-									.create(typeConstantString));
-						}
+	/**
+	 * Undoes the changes recorded since {@link #openOverlay()}.
+	 * 
+	 * @throws OWLException
+	 *             the OWL exception
+	 */
+	void closeOverlay() throws OWLException {
+		ProfileOverlay closing = overlay;
+		overlay = null;
+		closing.close();
+	}
 
-						OWLTypedConstant otc = factory.getOWLTypedConstant(
-								newValue, odt);
-						OWLAnnotation anno = factory.getOWLConstantAnnotation(
-								createURI(values[0]), otc);
-						OWLEntityAnnotationAxiom ax1 = factory
-								.getOWLEntityAnnotationAxiom(ent, anno);
-						changes.add(new AddAxiom(ontology, ax1));
-						// System.out.println("New axiom looks like");
-						// System.out.println(ax1);
-					}
+	/**
+	 * Applies changes through the manager, recording those that took effect
+	 * in the overlay of the running profile.
+	 * 
+	 * @param changes
+	 *            the changes, in order
+	 * @throws OWLException
+	 *             the OWL exception
+	 */
+	private void applyChanges(List<? extends OWLOntologyChange> changes)
+			throws OWLException {
+		List<OWLOntologyChange> applied = manager.applyChanges(changes);
+		if (overlay != null && overlay.covers(manager)) {
+			overlay.record(applied);
+		}
+	}
+
+	/**
+	 * Applies a batch of changes that removes axioms, and may add their
+	 * replacements. The manager updates every index of the ontology for each
+	 * change, so when the batch removes at least rebuild_ratio of the axioms
+	 * (whole branches, as for MEME) the kept and added axioms are put in a
+	 * new ontology in one bulk add instead. The new ontology has a manager of
+	 * its own; the old one is left as it was, so a profile overlay still
+	 * restores it for the next profile and the rebuilt one is just dropped.
+	 * 
+	 * @param changes
+	 *            the changes, in order
+	 * @throws OWLException
+	 *             the OWL exception
+	 */
+	void applyRemovals(List<? extends OWLOntologyChange> changes)
+			throws OWLException {
+		if (rebuildRatio <= 0 || changes.isEmpty()) {
+			applyChanges(changes);
+			return;
+		}
+		// the last change to an axiom decides whether it is kept
+		Map<OWLAxiom, Boolean> decisions = new LinkedHashMap<OWLAxiom, Boolean>();
+		int removed = 0;
+		for (OWLOntologyChange change : changes) {
+			if (change instanceof RemoveAxiom) {
+				decisions.put(change.getAxiom(), Boolean.FALSE);
+				removed++;
+			} else if (change instanceof AddAxiom) {
+				decisions.put(change.getAxiom(), Boolean.TRUE);
+			}
+		}
+		int axioms = ontology.getAxiomCount();
+		if (removed < rebuildRatio * axioms) {
+			applyChanges(changes);
+			return;
+		}
+		long start = System.nanoTime();
+		OWLOntologyManager rebuiltManager = OWLManager
+				.createOWLOntologyManager();
+		OWLOntology rebuilt = rebuiltManager.createOntology(ontology.getURI());
+		// The renderer writes some sets as the ontology's hash maps order
+		// them, which for colliding keys is the order they were added in. So
+		// the kept axioms go in as the base orders them: one axiom for each
+		// annotation uri in the order of the uris, then each axiom type in
+		// the order of its set, then the new axioms in the order of the
+		// changes, as they would have been added in place.
+		Map<URI, OWLAxiom> firsts = new LinkedHashMap<URI, OWLAxiom>();
+		for (URI uri : ontology.getAnnotationURIs()) {
+			firsts.put(uri, null);
+		}
+		List<OWLAxiom> kept = new ArrayList<OWLAxiom>(axioms);
+		for (AxiomType<?> type : AxiomType.AXIOM_TYPES) {
+			for (OWLAxiom ax : ontology.getAxioms(type)) {
+				if (decisions.get(ax) == Boolean.FALSE) {
+					continue;
 				}
-				if (!changes.isEmpty()) {
-					List<OWLOntologyChange> list = new ArrayList<OWLOntologyChange>(
-							changes);
-					try {
-						// System.out.println("Applying changed complex properties...");
-						manager.applyChanges(list);
-					} catch (OWLException e) {
-						e.printStackTrace();
+				if (ax instanceof OWLAnnotationAxiom<?>) {
+					URI uri = ((OWLAnnotationAxiom<?>) ax).getAnnotation()
+							.getAnnotationURI();
+					if (firsts.containsKey(uri) && firsts.get(uri) == null) {
+						firsts.put(uri, ax);
+						continue;
 					}
 				}
-			} else {
-				System.err
-						.println("Invalid parameters exist in file complex_del.txt");
+				kept.add(ax);
 			}
-		} else {
-			System.err
-					.println("Invalid input format exists in file complex_del.txt.  Use <property>\\t<tag>");
 		}
+		List<OWLOntologyChange> adds = new ArrayList<OWLOntologyChange>(axioms);
+		for (OWLAxiom ax : firsts.values()) {
+			if (ax != null) {
+				adds.add(new AddAxiom(rebuilt, ax));
+			}
+		}
+		for (OWLAxiom ax : kept) {
+			adds.add(new AddAxiom(rebuilt, ax));
+		}
+		for (Map.Entry<OWLAxiom, Boolean> e : decisions.entrySet()) {
+			if (e.getValue() && !ontology.containsAxiom(e.getKey())) {
+				adds.add(new AddAxiom(rebuilt, e.getKey()));
+			}
+		}
+		rebuiltManager.applyChanges(adds);
+		rebuiltManager.setPhysicalURIForOntology(rebuilt, manager
+				.getPhysicalURIForOntology(ontology));
+		System.out.println("Rebuilt the ontology from " + adds.size() + " of "
+				+ axioms + " axioms in " + (System.nanoTime() - start)
+				/ 1000000 + " ms.");
+		report.detail("rebuilt", 1);
+		manager = rebuiltManager;
+		ontology = rebuilt;
+	}
+
+	/**
+	 * Removes the complex property.
+	 * 
+	 * @param complex
+	 *            the id of the complex property to be removed
+	 */
+	public void removeComplex(String complex) {
+		ScrubRuleEngine engine = new ScrubRuleEngine(this);
+		engine.addComplexRule(complex);
+		applyRules(engine);
 	}
 
 	/**
@@ -655,39 +1423,105 @@ public class OWLScrubber {
 	 * @return the string
 	 */
 	public String removeData(String orig, String value) {
-		String newValue, s1, s2 = new String();
-		int pos1 = orig.indexOf("<" + value + ">");
-		int pos2 = orig.indexOf("</" + value + ">");
-		if (pos1 != -1 && pos2 != -1) {
-			s1 = orig.substring(0, pos1);
-			s2 = orig.substring(pos2 + 3 + value.length(), orig.length()); // 3
-			// is
-			// </
-			// >
-			newValue = s1 + s2;
-		} else {
-			newValue = orig;
+		ComplexValue cv = ComplexValue.parse(orig);
+		ComplexValue newValue = cv.without(value);
+		if (newValue == cv) {
+			return orig;
 		}
-		return newValue;
+		return newValue.toString();
 	}
 
 	/**
 	 * Removes the empty properties.
 	 */
 	public void removeEmpty() {
-		try {
-			Set<OWLOntologyChange> changes = new HashSet<OWLOntologyChange>();
-			for (OWLAxiom ax : ontology.getAxioms()) {
-				if (isEmpty(ax)) {
+		ScrubRuleEngine engine = new ScrubRuleEngine(this);
+		engine.setScrubEmpty(true);
+		applyRules(engine);
+	}
+
+	/**
+	 * Removes the subClassOf restrictions that a class already has in its
+	 * equivalentClass, as removeDuplicateRestrictions.pl did on the saved file.
+	 * The someValuesFrom, allValuesFrom and hasValue restrictions of each
+	 * defined class (the equivalent class itself, or the operands of its
+	 * intersection) are hashed by property and filler, and a subClassOf
+	 * restriction of the class is removed when its key is among them. Only
+	 * these operands are taken: a restriction nested in a filler or a union
+	 * does not hold of the class, so a subClassOf repeating it is kept.
+	 */
+	public void removeDuplicateRestrictions() {
+		Map<OWLClass, Set<OWLDescription>> defined = new LinkedHashMap<OWLClass, Set<OWLDescription>>();
+		for (OWLEquivalentClassesAxiom ax : ontology
+				.getAxioms(AxiomType.EQUIVALENT_CLASSES)) {
+			for (OWLDescription desc : ax.getDescriptions()) {
+				if (desc.isAnonymous()) {
+					continue;
+				}
+				Set<OWLDescription> keys = defined.get(desc.asOWLClass());
+				if (keys == null) {
+					keys = new HashSet<OWLDescription>();
+					defined.put(desc.asOWLClass(), keys);
+				}
+				for (OWLDescription other : ax.getDescriptions()) {
+					if (other instanceof OWLObjectIntersectionOf) {
+						for (OWLDescription op : ((OWLObjectIntersectionOf) other)
+								.getOperands()) {
+							addRestrictionKey(op, keys);
+						}
+					} else {
+						addRestrictionKey(other, keys);
+					}
+				}
+			}
+		}
+		List<OWLOntologyChange> changes = new ArrayList<OWLOntologyChange>();
+		int examined = 0;
+		for (Map.Entry<OWLClass, Set<OWLDescription>> e : defined.entrySet()) {
+			if (e.getValue().isEmpty()) {
+				continue;
+			}
+			for (OWLSubClassAxiom ax : ontology.getSubClassAxiomsForLHS(e
+					.getKey())) {
+				examined++;
+				if (e.getValue().contains(ax.getSuperClass())) {
 					changes.add(new RemoveAxiom(ontology, ax));
 				}
 			}
-			List<OWLOntologyChange> list = new ArrayList<OWLOntologyChange>(
-					changes);
-			manager.applyChanges(list);
+		}
+		try {
+			applyChanges(changes);
 		} catch (OWLException e) {
 			e.printStackTrace();
 		}
+		report.examined(examined);
+		report.changed(changes.size());
+		System.out.println("Removed " + changes.size()
+				+ " duplicate restrictions from " + defined.size()
+				+ " defined classes.");
+	}
+
+	/**
+	 * Adds a description to the restriction keys of a defined class if it is a
+	 * someValuesFrom, allValuesFrom or hasValue restriction. Restrictions
+	 * compare and hash by their type, property and filler, so the restriction
+	 * itself is the key.
+	 * 
+	 * @param desc
+	 *            the description
+	 * @param keys
+	 *            the restriction keys of the class
+	 */
+	private static void addRestrictionKey(OWLDescription desc,
+			Set<OWLDescription> keys) {
+		if (desc instanceof OWLObjectSomeRestriction
+				|| desc instanceof OWLObjectAllRestriction
+				|| desc instanceof OWLObjectValueRestriction
+				|| desc instanceof OWLDataSomeRestriction
+				|| desc instanceof OWLDataAllRestriction
+				|| desc instanceof OWLDataValueRestriction) {
+			keys.add(desc);
+		}
 	}
 
 	/**
@@ -700,7 +1534,9 @@ public class OWLScrubber {
 			for (OWLIndividual oi : ontology.getReferencedIndividuals()) {
 				oi.accept(remover);
 			}
-			manager.applyChanges(remover.getChanges());
+			report.examined(remover.getChanges().size());
+			report.changed(remover.getChanges().size());
+			applyRemovals(remover.getChanges());
 		} catch (OWLException e) {
 			e.printStackTrace();
 		}
@@ -715,29 +1551,9 @@ public class OWLScrubber {
 	 *            the property
 	 */
 	public void removeProperty(String property) {
-		try {
-			OWLEntityRemover remover = new OWLEntityRemover(manager,
-					Collections.singleton(ontology));
-			Set<OWLOntologyChange> changes = new HashSet<OWLOntologyChange>();
-
-			for (OWLAxiom ax : ontology.getAxioms()) {
-				if (ax.toString().contains("Annotation(" + property)) {
-					changes.add(new RemoveAxiom(ontology, ax));
-				}
-			}
-			List<OWLOntologyChange> list = new ArrayList<OWLOntologyChange>(
-					changes);
-			manager.applyChanges(list);
-			for (OWLDataProperty odp : ontology.getReferencedDataProperties()) {
-				if (odp.getURI().toString().equals(
-						ontologyNamespace + "#" + property)) {
-					odp.accept(remover);
-				}
-			}
-			manager.applyChanges(remover.getChanges());
-		} catch (OWLException e) {
-			e.printStackTrace();
-		}
+		ScrubRuleEngine engine = new ScrubRuleEngine(this);
+		engine.addPropertyRule(property);
+		applyRules(engine);
 	}
 
 	/**
@@ -752,114 +1568,288 @@ public class OWLScrubber {
 	 *            the string length of the array element
 	 */
 	public void removeProperty(String property, String[][] p, int pSize) {
+		ScrubRuleEngine engine = new ScrubRuleEngine(this);
+		engine.addQualifiedPropertyRule(property, p, pSize);
+		applyRules(engine);
+	}
+
+	/**
+	 * Applies the rules of a rule engine in a single sweep of the axioms, then
+	 * removes the data properties whose values were all deleted.
+	 * 
+	 * @param engine
+	 *            the compiled rules
+	 */
+	void applyRules(ScrubRuleEngine engine) {
 		try {
-			Set<OWLOntologyChange> changes = new HashSet<OWLOntologyChange>();
-			for (OWLAxiom ax : ontology.getAxioms()) {
-				if (ax.toString().contains("Annotation(" + property)) {
-					boolean remove = true;
-					for (int i = 0; i < pSize; i++) {
-						// System.out.println(p[i][0] + "\t" + p[i][1]);
-						if (!ax.toString().contains(
-								"<" + p[i][0] + ">" + p[i][1] + "</" + p[i][0]
-										+ ">")) {
-							remove = false;
-							break;
-						}
-					}
-					if (remove) {
-						changes.add(new RemoveAxiom(ontology, ax));
+			report.examined(ontology.getAxiomCount());
+			List<OWLOntologyChange> list = engine.sweep(ontology,
+					threads > 1 ? getPool() : null);
+			report.changed(list.size());
+			if (!list.isEmpty()) {
+				applyRemovals(list);
+			}
+			if (!engine.getDataPropertiesToRemove().isEmpty()) {
+				OWLEntityRemover remover = new OWLEntityRemover(manager,
+						Collections.singleton(ontology));
+				for (OWLDataProperty odp : ontology
+						.getReferencedDataProperties()) {
+					if (engine.getDataPropertiesToRemove().contains(
+							odp.getURI())) {
+						odp.accept(remover);
 					}
 				}
+				report.changed(remover.getChanges().size());
+				applyChanges(remover.getChanges());
 			}
-			List<OWLOntologyChange> list = new ArrayList<OWLOntologyChange>(
-					changes);
-			manager.applyChanges(list);
+			reportRules(engine);
 		} catch (OWLException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Records the values matched by each rule of an engine in the run report.
+	 * 
+	 * @param engine
+	 *            the rule engine, after its sweep
+	 */
+	private void reportRules(ScrubRuleEngine engine) {
+		for (ScrubRule rule : engine.getRules()) {
+			report.detail(rule.toString(), rule.hits);
+		}
+		if (engine.getEmptyRemoved() > 0) {
+			report.detail("EMPTY", engine.getEmptyRemoved());
+		}
+	}
+
 	/**
 	 * Run.
 	 */
 	public void run() {
+		boolean restored = true;
+		for (int i = 0; i < profiles.size(); i++) {
+			ScrubProfile profile = profiles.get(i);
+			if (profiles.size() > 1) {
+				System.out.println("Running profile " + profile + "...");
+			}
+			useProfile(profile);
+			report.setProfile(profile.toString());
+			if (streamMode) {
+				runStreaming();
+			} else if (i == profiles.size() - 1 && cacheEntry == null) {
+				// nothing runs after the last profile, so its changes are kept
+				runProfile();
+			} else {
+				OWLOntologyManager baseManager = manager;
+				OWLOntology base = ontology;
+				openOverlay();
+				runProfile();
+				try {
+					System.out.println("Restoring base ontology ("
+							+ overlay.size() + " changes)...");
+					report.begin("restore");
+					report.changed(overlay.size());
+					closeOverlay();
+					// a profile that rebuilt the ontology left the base behind
+					manager = baseManager;
+					ontology = base;
+					report.end();
+				} catch (OWLException e) {
+					e.printStackTrace();
+					System.out
+							.println("Unable to restore the base ontology.  Aborting.");
+					restored = false;
+					break;
+				}
+			}
+		}
+		if (cacheEntry != null && restored) {
+			// the base ontology is back, so the next job can start from it
+			ontologyCache.put(cacheEntry);
+		}
+		report.end();
+		if (pool != null) {
+			pool.shutdown();
+		}
+		if (reportFile != null) {
+			try {
+				report.write(reportFile);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Gets the measurements of this run.
+	 * 
+	 * @return the run report
+	 */
+	RunReport getReport() {
+		return report;
+	}
+
+	/**
+	 * Gets the size of the file I/O buffers.
+	 * 
+	 * @return the size in bytes
+	 */
+	int getIOBufferSize() {
+		return ioBufferSize;
+	}
+
+	/**
+	 * Gets the worker pool of this run, creating it on first use.
+	 * 
+	 * @return the pool
+	 */
+	ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+
+	/**
+	 * Run the current profile against the loaded ontology.
+	 */
+	private void runProfile() {
 		try {
 			if (!prettyPrint) {
 
 				System.out.println("Removing branches...");
-				for (String branch : branchesToDelete) {
-					URI branchToDelete = createURI(branch);
-					removeBranch(branchToDelete);
+				report.begin("branches");
+				if (branchesToDelete != null) {
+					CodeIndex codes = CodeIndex.build(this, ontology);
+					Vector<URI> branchURIs = new Vector<URI>();
+					for (String branch : branchesToDelete) {
+						branchURIs.add(resolveClass(branch, codes));
+					}
+					removeBranches(branchURIs);
 				}
+				report.end();
 
 				// System.out.println("Simplify complex data...");
 				// for (String complex : complexPropsToSimplify) {
 				// simplifyComplex(complex);
 				// }
-
-				System.out.println("Scrubbing complex data...");
-				for (String complex : complexDataToDelete) {
-					removeComplex(complex);
-				}
-
-				System.out.println("Removing properties...");
-				for (String property : propertiesToDelete) {
-					if (!property.contains("\t")) {
-						removeProperty(property);
-					} else {
-						String[] values = property.split("\t");
-						property = values[0];
-						if (values.length % 2 == 1) {
-							int pSize = (values.length - 1) / 2;
-							String[][] p = new String[pSize][2];
-							int pCount = 0;
-							for (int i = 1; i < values.length; i++) {
-								if (hasLiterals) {
-									p[pCount][0] = prefix + values[i];
-								} else {
-									p[pCount][0] = values[i];
-								}
-								p[pCount][1] = values[++i]; // we know this
-								// works
-								pCount++;
-							}
-							removeProperty(property, p, pSize);
-
-						} else {
-							System.out
-									.println("Invalid input format exists for property ("
-											+ property
-											+ ") in file prop_del.txt.");
-						}
-					}
-				}
-
-				fixReferences();
 			}
 
 			if (suppressIndividuals) {
 				System.out.println("Suppressing Individuals...");
+				report.begin("individuals");
 				removeIndividuals();
+				report.end();
 			}
 
+			// complex data, properties, synonyms and empty values are all
+			// handled in one sweep of the axioms
+			ScrubRuleEngine engine = new ScrubRuleEngine(this);
+			if (!prettyPrint) {
+				System.out.println("Scrubbing complex data...");
+				engine.addComplexRules(complexDataToDelete);
+				System.out.println("Removing properties...");
+				engine.addPropertyRules(propertiesToDelete);
+			}
 			if (constructSynonyms) {
 				System.out.println("Constructing Synonyms...");
-				constructCleanProperty("Synonym", "FULL_SYN", "term-name");
+				engine.addCleanPropertyRule("Synonym", "FULL_SYN", "term-name");
 			}
-
 			if (scrubEmpty) {
 				System.out.println("Removing empty properties...");
-				removeEmpty();
+				engine.setScrubEmpty(true);
+			}
+			AssociationIndex associations = null;
+			if (!engine.isEmpty()) {
+				report.begin("rules");
+				associations = new AssociationIndex();
+				engine.setAssociationIndex(associations);
+				applyRules(engine);
+				report.end();
 			}
 
-			if (generateFlatFile) {
-				System.out.println("Generating flat file...");
-				// config_pw("./FlatFile.txt");
-				if (config_pw(flatFileURI)) generateFlat();
+			if (!prettyPrint) {
+				if (associations == null) {
+					associations = AssociationIndex.build(this, ontology);
+				}
+				System.out.println("Removing associations to removed classes...");
+				report.begin("fixReferences");
+				fixReferences(associations);
+				report.end();
+
+				if (removeDuplicateRestrictions) {
+					System.out.println("Removing duplicate restrictions...");
+					report.begin("duplicateRestrictions");
+					removeDuplicateRestrictions();
+					report.end();
+				}
+			}
+
+			writeOutputs();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
 
+	/**
+	 * Run in stream mode. The input is scrubbed element by element and written
+	 * as it is read, so the ontology is never loaded in full.
+	 */
+	private void runStreaming() {
+		try {
+			ScrubRuleEngine engine = new ScrubRuleEngine(this);
+			Vector<URI> branchURIs = new Vector<URI>();
+			if (!prettyPrint) {
+				engine.addComplexRules(complexDataToDelete);
+				engine.addPropertyRules(propertiesToDelete);
+				if (branchesToDelete != null) {
+					for (String branch : branchesToDelete) {
+						branchURIs.add(createURI(branch));
+					}
+				}
+			}
+			if (constructSynonyms) {
+				System.out
+						.println("Constructing Synonyms is not available in stream mode.");
+			}
+			if (generateFlatFile) {
+				System.out
+						.println("Flat file generation is not available in stream mode.");
+			}
+			if (byCode) {
+				System.out
+						.println("Saving by code is not available in stream mode.");
+			}
+			if (removeDuplicateRestrictions) {
+				System.out
+						.println("Removing duplicate restrictions is not available in stream mode.");
 			}
-			System.out.println("Saving...");
-			saveOntology();
+			if (!outputRewrites.isEmpty()) {
+				System.out
+						.println("Output rewrites are not available in stream mode.");
+			}
+			StreamingScrubber streamer = new StreamingScrubber(this, engine,
+					scrubEmpty, suppressIndividuals);
+			if (previousSaveURI != null) {
+				if (outputEncoding.equals("ascii")) {
+					System.out
+							.println("Incremental scrub needs utf-8 output, scrubbing in full.");
+				} else if (new File(previousSaveURI).getCanonicalFile()
+						.equals(new File(saveURI).getCanonicalFile())) {
+					System.out
+							.println("The previous output is the output, scrubbing in full.");
+				} else {
+					streamer.setIncremental(new File(previousSaveURI),
+							verifyIncremental);
+				}
+			}
+			report.begin("stream");
+			streamer.scrub(new File(physicalURI), new File(saveURI),
+					branchURIs);
+			reportRules(engine);
+			report.end();
+			verifyMismatches += streamer.getMismatches();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -868,30 +1858,14 @@ public class OWLScrubber {
 	public Vector<String> getQualifiers(OWLClass c, String property,
 			String qualifier) {
 		Vector<String> v = new Vector<String>();
-		for (OWLAnnotation anno : c.getAnnotations(ontology)) {
-			String annotationValue = anno.toString();
-			if (annotationValue.contains("Annotation(" + property)) {
-				// get property value, return the new value
-				int pos1 = annotationValue.indexOf("<" + qualifier + ">");
-				int pos2 = annotationValue.indexOf("</" + qualifier + ">");
-
-				if (pos1 != -1 && pos2 != -1) {
-					try {
-						String value = annotationValue.substring(pos1
-								+ qualifier.length() + 2, pos2);
-						value = value.replace("&amp;", "&")
-								.replace("&lt;", "<");
-						if (!v.contains(value)) {
-							v.add(value);
-						}
-					} catch (Exception e) {
-						System.out
-								.println("Could not parse qualifier value from axiom for concept "
-										+ c.toString());
-						System.out.println("pos1 = " + pos1
-								+ qualifier.length() + 2);
-						System.out.println("pos2 = " + (pos2));
-						System.out.println(annotationValue);
+		URI propertyURI = createURI(property);
+		for (OWLAnnotation anno : c.getAnnotations(ontology, propertyURI)) {
+			OWLConstant constant = getConstant(anno);
+			if (constant != null) {
+				for (String value : ComplexValue.parse(constant.getLiteral())
+						.getValues(qualifier)) {
+					if (!v.contains(value)) {
+						v.add(value);
 					}
 				}
 			}
@@ -901,14 +1875,11 @@ public class OWLScrubber {
 
 	public String getSolePropertyValue(OWLClass c, String property) {
 		String v = new String("");
-		for (OWLAnnotation anno : c.getAnnotations(ontology)) {
-			String annotationValue = anno.toString();
-			if (annotationValue.contains("Annotation(" + property)) {
-				// get property value, return the new value
-				int beginning = annotationValue.indexOf("(");
-				int end = annotationValue.indexOf("^^");
-				v = annotationValue.substring(
-						beginning + property.length() + 3, end - 1);
+		URI propertyURI = createURI(property);
+		for (OWLAnnotation anno : c.getAnnotations(ontology, propertyURI)) {
+			OWLConstant constant = getConstant(anno);
+			if (constant != null) {
+				v = constant.getLiteral();
 				break;
 			}
 		}
@@ -917,15 +1888,11 @@ public class OWLScrubber {
 	
 	public Vector<String> getPropertyValues(OWLClass c, String property) {
 		Vector<String> v = new Vector<String>();
-		for (OWLAnnotation anno : c.getAnnotations(ontology)) {
-			String annotationValue = anno.toString();
-			if(annotationValue.contains("Annotation(" + property)) {
-				String value;
-				int beginning = annotationValue.indexOf("(");
-				int end = annotationValue.indexOf("^^");
-				value = annotationValue.substring(
-						beginning + property.length() + 3, end - 1);
-				v.add(value);
+		URI propertyURI = createURI(property);
+		for (OWLAnnotation anno : c.getAnnotations(ontology, propertyURI)) {
+			OWLConstant constant = getConstant(anno);
+			if (constant != null) {
+				v.add(constant.getLiteral());
 			}
 		}
 		Collections.sort(v);
@@ -934,10 +1901,11 @@ public class OWLScrubber {
 
 	private boolean isRetired(OWLClass c) {
 		boolean retired = false;
-		for (OWLAnnotation anno : c.getAnnotations(ontology)) {
-			String annotationValue = anno.toString();
-			if (annotationValue
-					.contains("Annotation(Concept_Status \"Retired_Concept")) {
+		for (OWLAnnotation anno : c.getAnnotations(ontology,
+				createURI("Concept_Status"))) {
+			OWLConstant constant = getConstant(anno);
+			if (constant != null
+					&& constant.getLiteral().startsWith("Retired_Concept")) {
 				retired = true;
 				break; // I've seen enough
 			}
@@ -945,200 +1913,111 @@ public class OWLScrubber {
 		return retired;
 	}
 
-	public void generateFlat() {
-		TreeMap<String, Vector<String>> idAndDatas = new TreeMap<String, Vector<String>>();
-		TreeMap<String, Vector<String>> idAndDatasRetired = new TreeMap<String, Vector<String>>();
-		OWLClassReasoner reasoner = new ToldClassHierarchyReasoner(manager);
-		try {
-			reasoner.loadOntologies(Collections.singleton(ontology));
-			reasoner.classify();
-			for (OWLClass c : ontology.getReferencedClasses()) {
-				Set<Set<OWLClass>> parents = reasoner.getSuperClasses(c);
-				// Set<OWLDescription> parents = c.getSuperClasses(ontology);
-				// Set<OWLDescription> parents2 =
-				// c.getEquivalentClasses(ontology);
-				// parents.addAll(parents2);
-				String code = getSolePropertyValue(c, "code");
-				String pn = getSolePropertyValue(c, "Preferred_Name");
-				Vector<String> definitions = getQualifiers(c, "DEFINITION",
-						prefix + "def-definition");
-				Vector<String> terms = getQualifiers(c, "FULL_SYN", prefix
-						+ "term-name");
-				Vector<String> dns = getPropertyValues(c, "Display_Name");
-				Vector<String> stys= getPropertyValues(c, "Semantic_Type");
-				Vector<String> statuses = getPropertyValues(c, "Concept_Status");
-
-				if (pn.equals("")) {
-					pn = c.asOWLClass().getURI().getFragment();
-				}
-
-				// 0- code
-				// 1- parents
-				// 2- terms
-				// 3- definition
-				// 4- display_name
-				// 5- concept_status
-				// 6- semantic_type				
-				Vector<String> datas = new Vector<String>();
-				Vector<String> parentV = new Vector<String>();
-				datas.add(code);
-
-				String parentsString = new String("");
-				String termsString = new String(pn);
-				String defString = new String("");
-				String dnString = new String("");
-				String styString = new String("");
-				String statusString = new String("");
-
-				for (Set<OWLClass> pSet : parents) {
-					for (OWLClass p : pSet) {
-						String parCode = getSolePropertyValue(p, "code");
-						String par = p.asOWLClass().getURI().getFragment();
-						if (par.equals("Thing")) {
-							par = "root_node";
-						}
-						if (parCode != null && parCode.length() > 0) { parentV.add(parCode);}
-						else {parentV.add(par);}
-					}
-				}
-				Collections.sort(parentV);
-				for (int i = 0; i < parentV.size(); i++) {
-					parentsString = parentV.elementAt(i) + "|" + parentsString;
-				}
-				if (parentsString.contains("|")) {
-					parentsString = parentsString.substring(0, parentsString
-							.length() - 1);
-				}
-
-				// if( parents.size() > 0 ) {
-				// OWLDescription[] parArray = parents.toArray(new
-				// OWLDescription[parents.size()]);
-				// Vector<String> parV = new Vector<String>();
-				// for( int i=0; i < parArray.length; i++) {
-				// if( !parArray[i].isAnonymous() ) {
-				// parV.add(parArray[i].asOWLClass().getURI().getFragment());
-				// }
-				// }
-				// for( int i=0; i < parV.size(); i++ ) {
-				// parentsString = parentsString + parV.elementAt(i);
-				// if( i != parV.size()-1 ) {
-				// parentsString = parentsString + "|";
-				// }
-				// }
-				// }
-
-				datas.add(parentsString);
-
-				while (terms.contains(pn)) {
-					terms.remove(pn);
-				}
-				Collections.sort(terms);
-				if (terms.size() > 0) {
-					for (int i = 0; i < terms.size(); i++) {
-						if (i == 0) {
-							termsString = termsString + "|";
-						}
-						termsString = termsString + terms.elementAt(i);
-						if (i != terms.size() - 1) {
-							termsString = termsString + "|";
-						}
-					}
-					datas.add(termsString);
-				} else {
-					datas.add(termsString);
-				}
-
-				if (definitions.size() > 0) {
-					datas.add(definitions.elementAt(0));
-				} else {
-					datas.add(defString);
-				}
-				
-				if( dns.size() >= 1 ) {
-					for( int i = 0; i < dns.size(); i++) {
-						if( i != dns.size() - 1) {
-							dnString = dnString + dns.elementAt(i) + "|";
-						}
-						else {
-							dnString = dnString + dns.elementAt(i);
-						}
-					}
-					datas.add(dnString);
-				} 
-				else {
-					datas.add(dnString);
-				}
-				
-				if( statuses.size() >= 1 ) {
-					for( int i = 0; i < statuses.size(); i++) {
-						if( i != statuses.size() - 1) {
-							statusString = statusString + statuses.elementAt(i) + "|";
-						}
-						else {
-							statusString = statusString + statuses.elementAt(i);
-						}
+	/**
+	 * Writes the flat file and the ontology at the same time, as the output
+	 * stage of the profile. The flat file builder is prepared first, on this
+	 * thread, since the parts of the OWL API it needs are not thread safe.
+	 */
+	private void writeOutputs() {
+		report.begin("output");
+		OutputStage stage = new OutputStage(manager, report);
+		// an output that cannot be set up fails alone, the others are written
+		if (generateFlatFile) {
+			System.out.println("Generating flat file...");
+			try {
+				File flatFile = new File(flatFileURI);
+				final FlatFileBuilder builder = new FlatFileBuilder(this,
+						ontology, ClassHierarchy.build(ontology), CodeIndex
+								.build(this, ontology));
+				builder.prepare();
+				stage.add("flat", new Callable<Object>() {
+					public Object call() throws Exception {
+						writeFlat(builder);
+						return null;
 					}
-					datas.add(statusString);
-				}
-				else {
-					datas.add(statusString);
+				}, flatFile);
+			} catch (Exception e) {
+				stage.fail("flat", e);
+			}
+		}
+		System.out.println("Saving...");
+		try {
+			File saveFile = new File(saveURI);
+			Vector<File> saveFiles = new Vector<File>();
+			saveFiles.add(saveFile);
+			if (outputEncoding.equals("both")) {
+				saveFiles.add(getAsciiFile(saveFile));
+			}
+			stage.add("save", new Callable<Object>() {
+				public Object call() throws Exception {
+					writeOntology();
+					return null;
 				}
+			}, saveFiles.toArray(new File[saveFiles.size()]));
+		} catch (Exception e) {
+			stage.fail("save", e);
+		}
+		failedOutputs += stage.run(getPool());
+		report.end();
+	}
 
-				if( stys.size() >= 1 ) {
-					for( int i = 0; i < stys.size(); i++) {
-						if( i != stys.size() - 1) {
-							styString = styString + stys.elementAt(i) + "|";
-						}
-						else {
-							styString = styString + stys.elementAt(i);
-						}
-					}
-					datas.add(styString);
-				}
-				else {
-					datas.add(styString);
-				}
+	public void generateFlat() {
+		try {
+			writeFlat(new FlatFileBuilder(this, ontology, ClassHierarchy
+					.build(ontology), CodeIndex.build(this, ontology)));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
 
+	/**
+	 * Writes the flat file.
+	 * 
+	 * @param builder
+	 *            the flat file builder
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void writeFlat(FlatFileBuilder builder) throws IOException {
+		FlatFileWriter writer = new FlatFileWriter(new File(flatFileURI),
+				flatMemoryBudget, ioBufferSize);
+		builder.write(writer, getPool());
+		report.detail("lines", writer.close());
+	}
 
-				// pw.println(datas);
-				if (isRetired(c)) {
-					idAndDatasRetired.put(c.toString(), datas);
-				} else {
-					idAndDatas.put(c.toString(), datas);
-				}
-			}
-			for (String key : idAndDatas.keySet()) {
-				Vector<String> data = idAndDatas.get(key);
-				pw.println(data.elementAt(0) + "\t" + key + "\t"
-						+ data.elementAt(1) + "\t" + data.elementAt(2) + "\t"
-						+ data.elementAt(3) + "\t" + data.elementAt(4) + "\t"
-						+ data.elementAt(5) + "\t" + data.elementAt(6));
-				pw.flush();
-			}
-			for (String key : idAndDatasRetired.keySet()) {
-				Vector<String> data = idAndDatasRetired.get(key);
-				pw.println(data.elementAt(0) + "\t" + key + "\t"
-						+ data.elementAt(1) + "\t" + data.elementAt(2) + "\t"
-						+ data.elementAt(3) + "\t" + data.elementAt(4) + "\t"
-						+ data.elementAt(5) + "\t" + data.elementAt(6));
-				pw.flush();
-			}
+	/**
+	 * Save ontology to the file specified in the properties By default encodes
+	 * to utf-8; output_encoding can make it ascii, or both at once. If by_code
+	 * is set, classes and properties with a code are written under their codes
+	 * in the same pass, and output_rewrites gives the formatOWL.pl rewrites
+	 * made as it is written.
+	 */
+	void saveOntology() {
+		try {
+			writeOntology();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Save ontology to the file specified in the properties By default encodes
-	 * to utf-8
+	 * Writes the ontology, as saveOntology does, throwing if it cannot.
+	 * 
+	 * @throws Exception
+	 *             if the ontology cannot be written
 	 */
-	private void saveOntology() {
+	private void writeOntology() throws Exception {
+		RDFXMLOntologyStorer storer = new RDFXMLOntologyStorer();
+		Writer out = openOutput(new File(saveURI));
+		OutputRewriter rewriter = null;
+		if (!outputRewrites.isEmpty()) {
+			rewriter = new OutputRewriter(out, outputRewrites,
+					propertiesToDelete, hasLiterals ? prefix.replace(":",
+							"") : null, ontologyNamespace);
+			out = rewriter;
+		}
 		try {
-			RDFXMLOntologyStorer storer = new RDFXMLOntologyStorer();
-			File newFile = new File(saveURI);
-			FileOutputStream out = new FileOutputStream(newFile);
-			WriterOutputTarget target = new WriterOutputTarget(
-					new BufferedWriter(new OutputStreamWriter(out, "UTF8")));
+			WriterOutputTarget target = new WriterOutputTarget(out);
 			OWLXMLOntologyFormat format = new OWLXMLOntologyFormat();
 			if (hasLiterals && prefix.contains("ncicp")) {
 				String prefixToAdd = prefix.replace(":", "");
@@ -1146,9 +2025,89 @@ public class OWLScrubber {
 						.addPrefixNamespaceMapping(prefixToAdd,
 								"http://ncicb.nci.nih.gov/xml/owl/EVS/ComplexProperties.xsd#");
 			}
-			storer.storeOntology(manager, ontology, target, format);
-		} catch (Exception e) {
-			e.printStackTrace();
+			report.examined(ontology.getAxiomCount());
+			if (byCode) {
+				CodeIndex codes = CodeIndex.build(this, ontology, true);
+				int entities = ontology.getReferencedClasses().size()
+						+ ontology.getReferencedObjectProperties().size()
+						+ ontology.getReferencedDataProperties().size();
+				int renamed = ByCodeXMLWriter.store(manager, ontology, target
+						.getWriter(), format, codes);
+				System.out.println("Wrote " + codes.size()
+						+ " classes and properties by code (" + renamed
+						+ " references), " + (entities - codes.size())
+						+ " without a code kept their names.");
+			} else {
+				storer.storeOntology(manager, ontology, target, format);
+			}
+		} finally {
+			// closed on failure too, so a .gz file's thread is not left waiting
+			out.close();
+		}
+		if (rewriter != null) {
+			System.out.println("Rewrote " + rewriter.getChanged()
+					+ " lines and dropped " + rewriter.getDropped()
+					+ " for output_rewrites.");
+			report.detail("linesRewritten", rewriter.getChanged());
+			report.detail("linesDropped", rewriter.getDropped());
+		}
+		reportAscii();
+	}
+
+	/**
+	 * Opens an output file in the output encoding. For utf-8 or ascii the file
+	 * is written in that encoding; for both, the file is written as utf-8 and
+	 * the same characters are written as ascii to ascii_saveURI, or else to
+	 * the file name followed by -iconv.owl, as runIconv.pl named it. A .gz
+	 * file is written compressed.
+	 * 
+	 * @param file
+	 *            the file
+	 * @return the writer
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	Writer openOutput(File file) throws IOException {
+		asciiOutput = null;
+		if (outputEncoding.equals("ascii")) {
+			asciiOutput = new AsciiWriter(FileStreams.openOutput(file,
+					ioBufferSize));
+			return asciiOutput;
+		}
+		Writer utf8 = new BufferedWriter(new OutputStreamWriter(FileStreams
+				.openOutput(file, ioBufferSize), "UTF8"));
+		if (outputEncoding.equals("both")) {
+			asciiOutput = new AsciiWriter(FileStreams.openOutput(
+					getAsciiFile(file), ioBufferSize));
+			return new TeeWriter(utf8, asciiOutput);
+		}
+		return utf8;
+	}
+
+	/**
+	 * Gets the file the ascii copy is written to when both encodings are.
+	 * 
+	 * @param file
+	 *            the output file
+	 * @return ascii_saveURI, or else the file name followed by -iconv.owl
+	 */
+	private File getAsciiFile(File file) {
+		return asciiSaveURI != null ? new File(asciiSaveURI) : FileStreams
+				.sibling(file, "-iconv.owl");
+	}
+
+	/**
+	 * Prints the characters transliterated by the ascii output, if there was
+	 * one.
+	 */
+	void reportAscii() {
+		if (asciiOutput != null) {
+			System.out.println("Transliterated "
+					+ asciiOutput.getTransliterated() + " characters to ascii, "
+					+ asciiOutput.getUnmappable() + " had no ascii form.");
+			report.detail("transliterated", asciiOutput.getTransliterated());
+			report.detail("unmappable", asciiOutput.getUnmappable());
+			asciiOutput = null;
 		}
 	}
 
@@ -0,0 +1,226 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.semanticweb.owl.model.OWLOntology;
+import org.semanticweb.owl.model.OWLOntologyManager;
+
+/**
+ * The ontologies the scrub daemon keeps loaded between jobs, least recently
+ * used first, by input file. A job takes the ontology of its input out of the
+ * cache, so no other job can see it while it is scrubbed, and puts it back
+ * once every profile has restored it to the loaded base. A job that fails
+ * part way never puts its ontology back, so a half scrubbed ontology is never
+ * handed to the next job.
+ *
+ * An entry is only used while the file has the length and modification time
+ * it had when it was loaded; a newer release of the same file is parsed
+ * again.
+ */
+final class OntologyCache {
+
+	/** The number of ontologies kept. */
+	private final int capacity;
+
+	/** The entries, by canonical path, least recently used first. */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	/**
+	 * Instantiates a new cache.
+	 *
+	 * @param capacity
+	 *            the number of ontologies kept, 0 for none
+	 */
+	OntologyCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Takes the ontology of an input file out of the cache. On a miss the
+	 * least recently used ontologies are dropped until there is room for the
+	 * one about to be loaded, so it is not parsed beside a full cache.
+	 *
+	 * @param input
+	 *            the input file
+	 * @return the entry, or null if the file is not loaded or has changed
+	 *         since it was
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	synchronized Entry take(File input) throws IOException {
+		String path = input.getCanonicalPath();
+		Entry entry = entries.remove(path);
+		if (entry != null && !entry.isCurrent(input)) {
+			System.out.println(input + " changed since it was loaded.");
+			entry = null;
+		}
+		if (entry == null) {
+			trim(capacity - 1);
+		}
+		return entry;
+	}
+
+	/**
+	 * Opens an entry for an ontology just loaded from a file. The file is
+	 * stamped before it is parsed, so a file replaced during the load is not
+	 * mistaken for the one that was read.
+	 *
+	 * @param input
+	 *            the input file
+	 * @return the entry, to be completed by {@link Entry#set}
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static Entry open(File input) throws IOException {
+		return new Entry(input.getCanonicalPath(), input.length(), input
+				.lastModified());
+	}
+
+	/**
+	 * Puts an ontology back, or in for the first time, once it is back to
+	 * what was loaded. An ontology whose axiom count differs from the one it
+	 * was loaded with is dropped, so a scrub that was not fully undone never
+	 * reaches the next job.
+	 *
+	 * @param entry
+	 *            the entry
+	 */
+	synchronized void put(Entry entry) {
+		if (capacity <= 0 || entry.ontology == null) {
+			return;
+		}
+		if (!entry.isRestored()) {
+			System.out.println("Dropped " + entry.path + ": it has "
+					+ entry.ontology.getAxiomCount() + " axioms, not the "
+					+ entry.axiomCount + " it was loaded with.");
+			return;
+		}
+		entries.put(entry.path, entry);
+		trim(capacity);
+	}
+
+	/**
+	 * Drops the least recently used ontologies.
+	 *
+	 * @param size
+	 *            the number of ontologies left
+	 */
+	private void trim(int size) {
+		Iterator<Entry> it = entries.values().iterator();
+		while (entries.size() > Math.max(size, 0) && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			System.out.println("Dropped " + eldest.path
+					+ " from the loaded ontologies.");
+		}
+	}
+
+	/**
+	 * Describes the cache for the daemon status, as JSON.
+	 *
+	 * @return the JSON array of the loaded files, least recently used first
+	 */
+	synchronized String toJSON() {
+		StringBuilder sb = new StringBuilder("[");
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			if (sb.length() > 1) {
+				sb.append(", ");
+			}
+			sb.append("{\"path\": ").append(RunReport.quote(e.getKey()))
+					.append(", \"axioms\": ").append(
+							e.getValue().ontology.getAxiomCount()).append(
+							", \"uses\": ").append(e.getValue().uses)
+					.append("}");
+		}
+		return sb.append("]").toString();
+	}
+
+	/**
+	 * A loaded ontology and the file it was loaded from.
+	 */
+	static final class Entry {
+
+		/** The canonical path of the file. */
+		final String path;
+
+		/** The length of the file when it was loaded. */
+		private final long length;
+
+		/** The modification time of the file when it was loaded. */
+		private final long lastModified;
+
+		/** The manager. */
+		OWLOntologyManager manager;
+
+		/** The ontology. */
+		OWLOntology ontology;
+
+		/** The number of axioms of the ontology as loaded. */
+		private int axiomCount;
+
+		/** The number of jobs that have taken the ontology. */
+		int uses = 0;
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param path
+		 *            the canonical path
+		 * @param length
+		 *            the file length
+		 * @param lastModified
+		 *            the modification time
+		 */
+		private Entry(String path, long length, long lastModified) {
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Sets the loaded ontology.
+		 *
+		 * @param manager
+		 *            the manager
+		 * @param ontology
+		 *            the ontology
+		 */
+		void set(OWLOntologyManager manager, OWLOntology ontology) {
+			this.manager = manager;
+			this.ontology = ontology;
+			this.axiomCount = ontology.getAxiomCount();
+		}
+
+		/**
+		 * Checks whether the ontology has as many axioms as when it was
+		 * loaded, as it should once a job has restored it.
+		 *
+		 * @return true, if the axiom count is unchanged
+		 */
+		boolean isRestored() {
+			return ontology != null && ontology.getAxiomCount() == axiomCount;
+		}
+
+		/**
+		 * Checks whether the file is still the one that was loaded.
+		 *
+		 * @param input
+		 *            the file
+		 * @return true, if its length and modification time are unchanged
+		 */
+		boolean isCurrent(File input) {
+			return input.length() == length
+					&& input.lastModified() == lastModified;
+		}
+	}
+}
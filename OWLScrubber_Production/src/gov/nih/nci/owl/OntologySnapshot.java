@@ -0,0 +1,1813 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.coode.owl.rdf.rdfxml.RDFXMLOntologyStorer;
+import org.coode.owlapi.owlxml.renderer.OWLXMLOntologyStorer;
+import org.semanticweb.owl.apibinding.OWLManager;
+import org.semanticweb.owl.model.AddAxiom;
+import org.semanticweb.owl.model.OWLAnnotation;
+import org.semanticweb.owl.model.OWLAntiSymmetricObjectPropertyAxiom;
+import org.semanticweb.owl.model.OWLAxiom;
+import org.semanticweb.owl.model.OWLAxiomAnnotationAxiom;
+import org.semanticweb.owl.model.OWLClass;
+import org.semanticweb.owl.model.OWLClassAssertionAxiom;
+import org.semanticweb.owl.model.OWLConstant;
+import org.semanticweb.owl.model.OWLConstantAnnotation;
+import org.semanticweb.owl.model.OWLDataAllRestriction;
+import org.semanticweb.owl.model.OWLDataComplementOf;
+import org.semanticweb.owl.model.OWLDataExactCardinalityRestriction;
+import org.semanticweb.owl.model.OWLDataFactory;
+import org.semanticweb.owl.model.OWLDataMaxCardinalityRestriction;
+import org.semanticweb.owl.model.OWLDataMinCardinalityRestriction;
+import org.semanticweb.owl.model.OWLDataOneOf;
+import org.semanticweb.owl.model.OWLDataProperty;
+import org.semanticweb.owl.model.OWLDataPropertyAssertionAxiom;
+import org.semanticweb.owl.model.OWLDataPropertyDomainAxiom;
+import org.semanticweb.owl.model.OWLDataPropertyExpression;
+import org.semanticweb.owl.model.OWLDataPropertyRangeAxiom;
+import org.semanticweb.owl.model.OWLDataRange;
+import org.semanticweb.owl.model.OWLDataRangeFacetRestriction;
+import org.semanticweb.owl.model.OWLDataRangeRestriction;
+import org.semanticweb.owl.model.OWLDataSomeRestriction;
+import org.semanticweb.owl.model.OWLDataSubPropertyAxiom;
+import org.semanticweb.owl.model.OWLDataType;
+import org.semanticweb.owl.model.OWLDataValueRestriction;
+import org.semanticweb.owl.model.OWLDeclarationAxiom;
+import org.semanticweb.owl.model.OWLDescription;
+import org.semanticweb.owl.model.OWLDifferentIndividualsAxiom;
+import org.semanticweb.owl.model.OWLDisjointClassesAxiom;
+import org.semanticweb.owl.model.OWLDisjointDataPropertiesAxiom;
+import org.semanticweb.owl.model.OWLDisjointObjectPropertiesAxiom;
+import org.semanticweb.owl.model.OWLDisjointUnionAxiom;
+import org.semanticweb.owl.model.OWLEntity;
+import org.semanticweb.owl.model.OWLEntityAnnotationAxiom;
+import org.semanticweb.owl.model.OWLEquivalentClassesAxiom;
+import org.semanticweb.owl.model.OWLEquivalentDataPropertiesAxiom;
+import org.semanticweb.owl.model.OWLEquivalentObjectPropertiesAxiom;
+import org.semanticweb.owl.model.OWLException;
+import org.semanticweb.owl.model.OWLFunctionalDataPropertyAxiom;
+import org.semanticweb.owl.model.OWLFunctionalObjectPropertyAxiom;
+import org.semanticweb.owl.model.OWLImportsDeclaration;
+import org.semanticweb.owl.model.OWLIndividual;
+import org.semanticweb.owl.model.OWLInverseFunctionalObjectPropertyAxiom;
+import org.semanticweb.owl.model.OWLInverseObjectPropertiesAxiom;
+import org.semanticweb.owl.model.OWLIrreflexiveObjectPropertyAxiom;
+import org.semanticweb.owl.model.OWLNegativeDataPropertyAssertionAxiom;
+import org.semanticweb.owl.model.OWLNegativeObjectPropertyAssertionAxiom;
+import org.semanticweb.owl.model.OWLObject;
+import org.semanticweb.owl.model.OWLObjectAllRestriction;
+import org.semanticweb.owl.model.OWLObjectAnnotation;
+import org.semanticweb.owl.model.OWLObjectComplementOf;
+import org.semanticweb.owl.model.OWLObjectExactCardinalityRestriction;
+import org.semanticweb.owl.model.OWLObjectIntersectionOf;
+import org.semanticweb.owl.model.OWLObjectMaxCardinalityRestriction;
+import org.semanticweb.owl.model.OWLObjectMinCardinalityRestriction;
+import org.semanticweb.owl.model.OWLObjectOneOf;
+import org.semanticweb.owl.model.OWLObjectProperty;
+import org.semanticweb.owl.model.OWLObjectPropertyAssertionAxiom;
+import org.semanticweb.owl.model.OWLObjectPropertyChainSubPropertyAxiom;
+import org.semanticweb.owl.model.OWLObjectPropertyDomainAxiom;
+import org.semanticweb.owl.model.OWLObjectPropertyExpression;
+import org.semanticweb.owl.model.OWLObjectPropertyInverse;
+import org.semanticweb.owl.model.OWLObjectPropertyRangeAxiom;
+import org.semanticweb.owl.model.OWLObjectSelfRestriction;
+import org.semanticweb.owl.model.OWLObjectSomeRestriction;
+import org.semanticweb.owl.model.OWLObjectSubPropertyAxiom;
+import org.semanticweb.owl.model.OWLObjectUnionOf;
+import org.semanticweb.owl.model.OWLObjectValueRestriction;
+import org.semanticweb.owl.model.OWLOntology;
+import org.semanticweb.owl.model.OWLOntologyAnnotationAxiom;
+import org.semanticweb.owl.model.OWLOntologyChange;
+import org.semanticweb.owl.model.OWLOntologyChangeException;
+import org.semanticweb.owl.model.OWLOntologyManager;
+import org.semanticweb.owl.model.OWLReflexiveObjectPropertyAxiom;
+import org.semanticweb.owl.model.OWLSameIndividualsAxiom;
+import org.semanticweb.owl.model.OWLSubClassAxiom;
+import org.semanticweb.owl.model.OWLSymmetricObjectPropertyAxiom;
+import org.semanticweb.owl.model.OWLTransitiveObjectPropertyAxiom;
+import org.semanticweb.owl.model.OWLTypedConstant;
+import org.semanticweb.owl.model.OWLUntypedConstant;
+import org.semanticweb.owl.model.RemoveAxiom;
+import org.semanticweb.owl.model.SWRLRule;
+import org.semanticweb.owl.util.NonMappingOntologyURIMapper;
+import org.semanticweb.owl.util.OWLObjectVisitorAdapter;
+import org.semanticweb.owl.vocab.OWLRestrictedDataRangeFacetVocabulary;
+
+import uk.ac.manchester.cs.owl.EmptyInMemOWLOntologyFactory;
+import uk.ac.manchester.cs.owl.OWLDataFactoryImpl;
+import uk.ac.manchester.cs.owl.OWLOntologyManagerImpl;
+import uk.ac.manchester.cs.owl.ParsableOWLOntologyFactory;
+
+/**
+ * A compact binary snapshot of a loaded ontology, so the next run against the
+ * same input can rebuild it without parsing the RDF/XML again. Snapshots are
+ * kept in the directory snapshot_dir names, one per input, under the SHA-1
+ * hash of the input file, so an input that changes in any way is parsed
+ * afresh.
+ *
+ * A snapshot holds each URI and string once, in a table, and each class,
+ * property, individual and constant once, in tables of their own; the axioms
+ * follow, in the order the parser added them, as trees of tags that refer to
+ * the tables by index. A snapshot is read by mapping the file into memory,
+ * and a checksum catches one that was damaged since it was written.
+ *
+ * The directory is kept under snapshot_max_mb: when a new snapshot is
+ * written, the least recently used ones are deleted until the rest fit. The
+ * -Z option invalidates the snapshot of the input, so it is parsed and
+ * written again. An ontology with SWRL rules, or that imports others, is not
+ * snapshotted.
+ */
+final class OntologySnapshot {
+
+	/** The first bytes of a snapshot file. */
+	private static final int MAGIC = 0x4f534e50;
+
+	/** The file format version. */
+	private static final int VERSION = 1;
+
+	/** The length of the input hash. */
+	private static final int HASH_LENGTH = 20;
+
+	/** The length of the file header. */
+	private static final int HEADER_LENGTH = 4 + 4 + HASH_LENGTH + 8 + 4 + 4;
+
+	/** The suffix of a snapshot file. */
+	private static final String SUFFIX = ".snapshot";
+
+	/** The default size limit of the snapshot directory. */
+	static final long DEFAULT_MAX_BYTES = 4096L * 1024 * 1024;
+
+	/** The number of axioms added to the ontology at a time. */
+	private static final int BATCH = 50000;
+
+	/** Entity kinds. */
+	private static final byte CLASS = 0, OBJECT_PROPERTY = 1,
+			DATA_PROPERTY = 2, INDIVIDUAL = 3, ANONYMOUS_INDIVIDUAL = 4,
+			DATATYPE = 5;
+
+	/** Constant kinds. */
+	private static final byte TYPED = 0, UNTYPED = 1, UNTYPED_LANG = 2;
+
+	/** Object tags: table references. */
+	private static final byte ENTITY = 1, CONSTANT = 2;
+
+	/** Object tags: descriptions and property expressions. */
+	private static final byte OBJECT_INTERSECTION = 10, OBJECT_UNION = 11,
+			OBJECT_COMPLEMENT = 12, OBJECT_ONE_OF = 13, OBJECT_SOME = 14,
+			OBJECT_ALL = 15, OBJECT_VALUE = 16, OBJECT_MIN = 17,
+			OBJECT_MAX = 18, OBJECT_EXACT = 19, OBJECT_SELF = 20,
+			DATA_SOME = 21, DATA_ALL = 22, DATA_VALUE = 23, DATA_MIN = 24,
+			DATA_MAX = 25, DATA_EXACT = 26, OBJECT_INVERSE = 27;
+
+	/** Object tags: data ranges and annotations. */
+	private static final byte DATA_ONE_OF = 30, DATA_COMPLEMENT = 31,
+			DATA_RANGE_RESTRICTION = 32, FACET_RESTRICTION = 33,
+			CONSTANT_ANNOTATION = 34, OBJECT_ANNOTATION = 35;
+
+	/** Object tags: axioms. */
+	private static final byte SUB_CLASS = 40, EQUIVALENT_CLASSES = 41,
+			DISJOINT_CLASSES = 42, DISJOINT_UNION = 43,
+			OBJECT_SUB_PROPERTY = 44, EQUIVALENT_OBJECT_PROPERTIES = 45,
+			DISJOINT_OBJECT_PROPERTIES = 46, OBJECT_DOMAIN = 47,
+			OBJECT_RANGE = 48, FUNCTIONAL_OBJECT = 49,
+			INVERSE_FUNCTIONAL = 50, INVERSE_PROPERTIES = 51,
+			SYMMETRIC = 52, ANTI_SYMMETRIC = 53, REFLEXIVE = 54,
+			IRREFLEXIVE = 55, TRANSITIVE = 56, PROPERTY_CHAIN = 57,
+			DATA_SUB_PROPERTY = 58, EQUIVALENT_DATA_PROPERTIES = 59,
+			DISJOINT_DATA_PROPERTIES = 60, DATA_DOMAIN = 61,
+			DATA_RANGE = 62, FUNCTIONAL_DATA = 63, CLASS_ASSERTION = 64,
+			OBJECT_ASSERTION = 65, DATA_ASSERTION = 66,
+			NEGATIVE_OBJECT_ASSERTION = 67, NEGATIVE_DATA_ASSERTION = 68,
+			SAME_INDIVIDUALS = 69, DIFFERENT_INDIVIDUALS = 70,
+			DECLARATION = 71, ENTITY_ANNOTATION = 72,
+			AXIOM_ANNOTATION = 73, ONTOLOGY_ANNOTATION = 74, IMPORTS = 75;
+
+	/** The snapshot directory. */
+	private final File dir;
+
+	/** The size limit of the snapshot directory. */
+	private final long maxBytes;
+
+	/** The size of the I/O buffers. */
+	private final int bufferSize;
+
+	/**
+	 * Instantiates a new snapshot directory.
+	 *
+	 * @param dir
+	 *            the snapshot directory, created if it is missing
+	 * @param maxBytes
+	 *            the size limit of the directory
+	 * @param bufferSize
+	 *            the size of the I/O buffers
+	 */
+	OntologySnapshot(File dir, long maxBytes, int bufferSize) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Hashes an input file, which names its snapshot.
+	 *
+	 * @param input
+	 *            the input file, hashed as it is on disk
+	 * @return the hash
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	byte[] hash(File input) throws IOException {
+		MessageDigest digest = ScrubCache.newDigest();
+		InputStream in = new FileInputStream(input);
+		try {
+			byte[] buffer = new byte[Math.max(bufferSize, 8192)];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Gets the snapshot file of an input.
+	 *
+	 * @param hash
+	 *            the hash of the input
+	 * @return the snapshot file
+	 */
+	private File getFile(byte[] hash) {
+		StringBuilder name = new StringBuilder();
+		for (byte b : hash) {
+			name.append(Character.forDigit((b >> 4) & 0xf, 16));
+			name.append(Character.forDigit(b & 0xf, 16));
+		}
+		return new File(dir, name + SUFFIX);
+	}
+
+	/**
+	 * Deletes the snapshot of an input.
+	 *
+	 * @param hash
+	 *            the hash of the input
+	 */
+	void invalidate(byte[] hash) {
+		File file = getFile(hash);
+		if (file.delete()) {
+			System.out.println("Deleted snapshot " + file + ".");
+		}
+	}
+
+	/**
+	 * Rebuilds the ontology from the snapshot of its input.
+	 *
+	 * @param manager
+	 *            the manager the ontology is created in
+	 * @param hash
+	 *            the hash of the input
+	 * @param physicalURI
+	 *            the input, recorded as the physical uri of the ontology
+	 * @return the ontology, or null if there is no usable snapshot
+	 * @throws OWLException
+	 *             if the ontology cannot be created
+	 */
+	OWLOntology load(OWLOntologyManager manager, byte[] hash, URI physicalURI)
+			throws OWLException {
+		File file = getFile(hash);
+		if (!file.exists()) {
+			System.out.println("No snapshot of " + physicalURI
+					+ ", parsing it.");
+			return null;
+		}
+		Decoder decoder;
+		try {
+			decoder = new Decoder(manager.getOWLDataFactory(), map(file));
+			if (!decoder.checkHeader(hash)) {
+				System.out.println(file
+						+ " is not a snapshot of this version, parsing the input.");
+				return null;
+			}
+			if (!decoder.checkBody()) {
+				System.out.println("Snapshot " + file
+						+ " is damaged, parsing the input.");
+				file.delete();
+				return null;
+			}
+			decoder.readTables();
+		} catch (IOException e) {
+			System.out.println("Unable to read snapshot " + file + ": "
+					+ e.getMessage() + ", parsing the input.");
+			return null;
+		} catch (RuntimeException e) {
+			System.out.println("Snapshot " + file + " is damaged ("
+					+ e + "), parsing the input.");
+			file.delete();
+			return null;
+		}
+		OWLOntology ontology = manager.createOntology(decoder.ontologyURI);
+		try {
+			decoder.readAxioms(manager, ontology);
+		} catch (RuntimeException e) {
+			manager.removeOntology(ontology.getURI());
+			System.out.println("Snapshot " + file + " is damaged ("
+					+ e + "), parsing the input.");
+			file.delete();
+			return null;
+		}
+		manager.setPhysicalURIForOntology(ontology, physicalURI);
+		// mark it used, for the least recently used eviction
+		file.setLastModified(System.currentTimeMillis());
+		System.out.println("Loaded " + ontology.getAxiomCount()
+				+ " axioms from snapshot " + file + ".");
+		return ontology;
+	}
+
+	/**
+	 * Maps a snapshot file into memory.
+	 *
+	 * @param file
+	 *            the snapshot file
+	 * @return the mapped file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// the mapping outlives the channel
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the snapshot of a freshly loaded ontology, then trims the
+	 * directory to its size limit. A failure is reported and leaves no
+	 * snapshot, as the run can go on without one.
+	 *
+	 * @param manager
+	 *            the manager of the ontology
+	 * @param ontology
+	 *            the ontology, as parsed, before any scrub
+	 * @param hash
+	 *            the hash of the input
+	 * @param axioms
+	 *            the axioms, in the order the parser added them
+	 */
+	void save(OWLOntologyManager manager, OWLOntology ontology, byte[] hash,
+			Set<OWLAxiom> axioms) {
+		if (manager.getOntologies().size() > 1) {
+			System.out.println("The input imports other ontologies, not writing a snapshot.");
+			return;
+		}
+		if (!ontology.getRules().isEmpty()) {
+			System.out.println("The input has SWRL rules, not writing a snapshot.");
+			return;
+		}
+		if (axioms == null || axioms.size() != ontology.getAxiomCount()) {
+			System.out.println("The parser's axiom order was not recorded, not writing a snapshot.");
+			return;
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			System.out.println("Unable to create snapshot directory " + dir
+					+ ", not writing a snapshot.");
+			return;
+		}
+		File file = getFile(hash);
+		File temp = new File(dir, file.getName() + ".tmp");
+		try {
+			write(ontology.getURI(), axioms, hash, temp);
+			if (temp.length() > Integer.MAX_VALUE) {
+				System.out.println("The snapshot is too large to map, not keeping it.");
+				temp.delete();
+				return;
+			}
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to rename " + temp + " to "
+						+ file);
+			}
+		} catch (IOException e) {
+			temp.delete();
+			System.out.println("Unable to write snapshot " + file + ": "
+					+ e.getMessage());
+			return;
+		}
+		System.out.println("Wrote snapshot " + file + " (" + file.length()
+				+ " bytes).");
+		evict(file);
+	}
+
+	/**
+	 * Writes a snapshot: the header, the axioms, then the tables they refer
+	 * to, whose offset is filled in the header last.
+	 *
+	 * @param ontologyURI
+	 *            the ontology uri
+	 * @param axioms
+	 *            the axioms, in the order the parser added them
+	 * @param hash
+	 *            the hash of the input
+	 * @param file
+	 *            the file to write
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void write(URI ontologyURI, Set<OWLAxiom> axioms, byte[] hash,
+			File file) throws IOException {
+		Encoder encoder = new Encoder();
+		Bytes bytes = encoder.out;
+		bytes.writeInt(MAGIC);
+		bytes.writeInt(VERSION);
+		bytes.write(hash, 0, hash.length);
+		bytes.writeLong(0);
+		bytes.writeInt(axioms.size());
+		bytes.writeInt(0);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file),
+				bufferSize);
+		long offset;
+		try {
+			bytes.drain(out);
+			// the checksum covers all but the header
+			bytes.checksum = new CRC32();
+			for (OWLAxiom axiom : axioms) {
+				axiom.accept(encoder);
+				if (bytes.length() > 1 << 16) {
+					bytes.drain(out);
+				}
+			}
+			offset = bytes.drain(out);
+			encoder.writeTables(ontologyURI);
+			bytes.drain(out);
+		} finally {
+			out.close();
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(8 + HASH_LENGTH);
+			raf.writeLong(offset);
+			raf.skipBytes(4);
+			raf.writeInt((int) bytes.checksum.getValue());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Deletes the least recently used snapshots until the directory is under
+	 * its size limit.
+	 *
+	 * @param keep
+	 *            the snapshot just written, which is kept unless it alone is
+	 *            over the limit
+	 */
+	private void evict(File keep) {
+		if (keep.length() > maxBytes) {
+			keep.delete();
+			System.out.println("Snapshot " + keep
+					+ " is larger than snapshot_max_mb, not keeping it.");
+			return;
+		}
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> snapshots = new ArrayList<File>();
+		long total = 0;
+		for (File file : files) {
+			if (file.getName().endsWith(SUFFIX)) {
+				snapshots.add(file);
+				total += file.length();
+			}
+		}
+		File[] oldest = snapshots.toArray(new File[snapshots.size()]);
+		Arrays.sort(oldest, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : d > 0 ? 1 : 0;
+			}
+		});
+		for (File file : oldest) {
+			if (total <= maxBytes) {
+				break;
+			}
+			if (!file.equals(keep)) {
+				total -= file.length();
+				if (file.delete()) {
+					System.out.println("Deleted snapshot " + file
+							+ " to stay under snapshot_max_mb.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * A manager that can record the order the parser adds the axioms in. The
+	 * ontology keeps its axioms in hash sets, and the order they went in
+	 * decides the order some of them are saved in, so the snapshot keeps the
+	 * parser's order and rebuilds the ontology in it, and the output is the
+	 * same either way. The manager does not tell its listeners of the changes
+	 * a load makes, so they are recorded here instead. It is set up as
+	 * OWLManager sets up its managers, with the storers this program uses.
+	 */
+	static final class RecordingManager extends OWLOntologyManagerImpl {
+
+		static {
+			// OWLManager registers the parsers the factories use when it is
+			// first loaded
+			new OWLManager();
+		}
+
+		/** The axioms added, in order, or null when not recording. */
+		private Set<OWLAxiom> recorded;
+
+		/**
+		 * Instantiates a new recording manager.
+		 */
+		RecordingManager() {
+			super(new OWLDataFactoryImpl());
+			addOntologyStorer(new RDFXMLOntologyStorer());
+			addOntologyStorer(new OWLXMLOntologyStorer());
+			addURIMapper(new NonMappingOntologyURIMapper());
+			addOntologyFactory(new EmptyInMemOWLOntologyFactory());
+			addOntologyFactory(new ParsableOWLOntologyFactory());
+		}
+
+		/**
+		 * Starts recording the axioms added.
+		 */
+		void startRecording() {
+			recorded = new LinkedHashSet<OWLAxiom>();
+		}
+
+		/**
+		 * Stops recording.
+		 *
+		 * @return the axioms added and not removed since recording started,
+		 *         in the order they were added
+		 */
+		Set<OWLAxiom> stopRecording() {
+			Set<OWLAxiom> axioms = recorded;
+			recorded = null;
+			return axioms;
+		}
+
+		/**
+		 * Records the changes made.
+		 *
+		 * @param changes
+		 *            the changes
+		 */
+		private void record(List<OWLOntologyChange> changes) {
+			if (recorded == null) {
+				return;
+			}
+			for (OWLOntologyChange change : changes) {
+				if (change instanceof AddAxiom) {
+					recorded.add(change.getAxiom());
+				} else if (change instanceof RemoveAxiom) {
+					recorded.remove(change.getAxiom());
+				}
+			}
+		}
+
+		@Override
+		public List<OWLOntologyChange> applyChange(OWLOntologyChange change)
+				throws OWLOntologyChangeException {
+			List<OWLOntologyChange> applied = super.applyChange(change);
+			record(applied);
+			return applied;
+		}
+
+		@Override
+		public List<OWLOntologyChange> applyChanges(
+				List<? extends OWLOntologyChange> changes)
+				throws OWLOntologyChangeException {
+			List<OWLOntologyChange> applied = super.applyChanges(changes);
+			record(applied);
+			return applied;
+		}
+	}
+
+	/**
+	 * A growing buffer of encoded bytes.
+	 */
+	private static final class Bytes {
+
+		/** The bytes not yet written. */
+		private byte[] bytes = new byte[1 << 17];
+
+		/** The number of bytes not yet written. */
+		private int length = 0;
+
+		/** The number of bytes written. */
+		private long written = 0;
+
+		/** The checksum of the bytes written, or null for none. */
+		CRC32 checksum;
+
+		/**
+		 * Gets the number of bytes not yet written.
+		 *
+		 * @return the number of bytes
+		 */
+		int length() {
+			return length;
+		}
+
+		/**
+		 * Writes the bytes held.
+		 *
+		 * @param out
+		 *            the output
+		 * @return the file offset after the bytes
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		long drain(OutputStream out) throws IOException {
+			out.write(bytes, 0, length);
+			if (checksum != null) {
+				checksum.update(bytes, 0, length);
+			}
+			written += length;
+			length = 0;
+			return written;
+		}
+
+		/**
+		 * Makes room for more bytes.
+		 *
+		 * @param n
+		 *            the number of bytes
+		 */
+		private void ensure(int n) {
+			if (length + n > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length
+						+ n));
+			}
+		}
+
+		/**
+		 * Writes a byte.
+		 *
+		 * @param b
+		 *            the byte
+		 */
+		void writeByte(int b) {
+			ensure(1);
+			bytes[length++] = (byte) b;
+		}
+
+		/**
+		 * Writes bytes.
+		 *
+		 * @param b
+		 *            the bytes
+		 * @param off
+		 *            the offset of the first byte
+		 * @param len
+		 *            the number of bytes
+		 */
+		void write(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, bytes, length, len);
+			length += len;
+		}
+
+		/**
+		 * Writes the bytes another buffer holds.
+		 *
+		 * @param other
+		 *            the other buffer
+		 */
+		void write(Bytes other) {
+			write(other.bytes, 0, other.length);
+		}
+
+		/**
+		 * Writes an int, high byte first.
+		 *
+		 * @param v
+		 *            the int
+		 */
+		void writeInt(int v) {
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				writeByte(v >>> shift);
+			}
+		}
+
+		/**
+		 * Writes a long, high byte first.
+		 *
+		 * @param v
+		 *            the long
+		 */
+		void writeLong(long v) {
+			writeInt((int) (v >>> 32));
+			writeInt((int) v);
+		}
+
+		/**
+		 * Writes a non-negative int in as few bytes as it needs, seven bits
+		 * to a byte.
+		 *
+		 * @param v
+		 *            the int
+		 */
+		void writeVarInt(int v) {
+			while ((v & ~0x7f) != 0) {
+				writeByte((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			writeByte(v);
+		}
+	}
+
+	/**
+	 * Encodes axioms, interning each string, entity and constant the first
+	 * time it is seen.
+	 */
+	private static final class Encoder extends OWLObjectVisitorAdapter {
+
+		/** The encoded axioms. */
+		final Bytes out = new Bytes();
+
+		/** The strings, by index. */
+		private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+		/** The string table in index order. */
+		private final List<String> stringList = new ArrayList<String>();
+
+		/** The entities, by index. */
+		private final Map<OWLEntity, Integer> entities = new HashMap<OWLEntity, Integer>();
+
+		/** The entity table: the kind and uri of each entity. */
+		private final Bytes entityTable = new Bytes();
+
+		/** The constants, by index. */
+		private final Map<OWLConstant, Integer> constants = new HashMap<OWLConstant, Integer>();
+
+		/** The constant table: kind, literal and datatype or language. */
+		private final Bytes constantTable = new Bytes();
+
+		/**
+		 * Writes a reference to a string.
+		 *
+		 * @param s
+		 *            the string
+		 */
+		void writeString(String s) {
+			out.writeVarInt(intern(s));
+		}
+
+		/**
+		 * Interns a string.
+		 *
+		 * @param s
+		 *            the string
+		 * @return its index
+		 */
+		private int intern(String s) {
+			Integer index = strings.get(s);
+			if (index == null) {
+				index = stringList.size();
+				strings.put(s, index);
+				stringList.add(s);
+			}
+			return index;
+		}
+
+		/**
+		 * Writes a reference to an entity.
+		 *
+		 * @param entity
+		 *            the entity
+		 * @param kind
+		 *            its kind
+		 */
+		private void entity(OWLEntity entity, byte kind) {
+			Integer index = entities.get(entity);
+			if (index == null) {
+				index = entities.size();
+				entities.put(entity, index);
+				entityTable.writeByte(kind);
+				entityTable.writeVarInt(intern(entity.getURI().toString()));
+			}
+			out.writeByte(ENTITY);
+			out.writeVarInt(index);
+		}
+
+		/**
+		 * Writes a reference to a constant.
+		 *
+		 * @param constant
+		 *            the constant
+		 */
+		private void constant(OWLConstant constant) {
+			Integer index = constants.get(constant);
+			if (index == null) {
+				index = constants.size();
+				constants.put(constant, index);
+				if (constant.isTyped()) {
+					constantTable.writeByte(TYPED);
+					constantTable.writeVarInt(intern(constant.getLiteral()));
+					constantTable.writeVarInt(intern(constant
+							.asOWLTypedConstant().getDataType().getURI()
+							.toString()));
+				} else if (constant.asOWLUntypedConstant().hasLang()) {
+					constantTable.writeByte(UNTYPED_LANG);
+					constantTable.writeVarInt(intern(constant.getLiteral()));
+					constantTable.writeVarInt(intern(constant
+							.asOWLUntypedConstant().getLang()));
+				} else {
+					constantTable.writeByte(UNTYPED);
+					constantTable.writeVarInt(intern(constant.getLiteral()));
+				}
+			}
+			out.writeByte(CONSTANT);
+			out.writeVarInt(index);
+		}
+
+		/**
+		 * Writes the tables the axioms refer to.
+		 *
+		 * @param ontologyURI
+		 *            the ontology uri
+		 */
+		void writeTables(URI ontologyURI) {
+			int uri = intern(ontologyURI.toString());
+			out.writeVarInt(stringList.size());
+			for (String s : stringList) {
+				byte[] utf8;
+				try {
+					utf8 = s.getBytes("UTF8");
+				} catch (java.io.UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+				out.writeVarInt(utf8.length);
+				out.write(utf8, 0, utf8.length);
+			}
+			out.writeVarInt(uri);
+			out.writeVarInt(entities.size());
+			out.write(entityTable);
+			out.writeVarInt(constants.size());
+			out.write(constantTable);
+		}
+
+		/**
+		 * Writes a tag and its objects.
+		 *
+		 * @param tag
+		 *            the tag
+		 * @param objects
+		 *            the objects
+		 */
+		private void node(byte tag, OWLObject... objects) {
+			out.writeByte(tag);
+			for (OWLObject object : objects) {
+				object.accept(this);
+			}
+		}
+
+		/**
+		 * Writes a tag and a set of objects.
+		 *
+		 * @param tag
+		 *            the tag
+		 * @param objects
+		 *            the objects
+		 */
+		private void set(byte tag, Iterable<? extends OWLObject> objects) {
+			out.writeByte(tag);
+			objects(objects);
+		}
+
+		/**
+		 * Writes a count of objects, then the objects.
+		 *
+		 * @param objects
+		 *            the objects
+		 */
+		private void objects(Iterable<? extends OWLObject> objects) {
+			int count = 0;
+			for (@SuppressWarnings("unused")
+			OWLObject object : objects) {
+				count++;
+			}
+			out.writeVarInt(count);
+			for (OWLObject object : objects) {
+				object.accept(this);
+			}
+		}
+
+		/**
+		 * Writes a cardinality restriction.
+		 *
+		 * @param tag
+		 *            the tag
+		 * @param cardinality
+		 *            the cardinality
+		 * @param property
+		 *            the property
+		 * @param filler
+		 *            the filler
+		 */
+		private void cardinality(byte tag, int cardinality, OWLObject property,
+				OWLObject filler) {
+			out.writeByte(tag);
+			out.writeVarInt(cardinality);
+			property.accept(this);
+			filler.accept(this);
+		}
+
+		@Override
+		public void visit(OWLClass desc) {
+			entity(desc, CLASS);
+		}
+
+		@Override
+		public void visit(OWLObjectProperty property) {
+			entity(property, OBJECT_PROPERTY);
+		}
+
+		@Override
+		public void visit(OWLDataProperty property) {
+			entity(property, DATA_PROPERTY);
+		}
+
+		@Override
+		public void visit(OWLIndividual individual) {
+			entity(individual, individual.isAnonymous() ? ANONYMOUS_INDIVIDUAL
+					: INDIVIDUAL);
+		}
+
+		@Override
+		public void visit(OWLDataType dataType) {
+			entity(dataType, DATATYPE);
+		}
+
+		@Override
+		public void visit(OWLTypedConstant node) {
+			constant(node);
+		}
+
+		@Override
+		public void visit(OWLUntypedConstant node) {
+			constant(node);
+		}
+
+		@Override
+		public void visit(OWLObjectIntersectionOf desc) {
+			set(OBJECT_INTERSECTION, desc.getOperands());
+		}
+
+		@Override
+		public void visit(OWLObjectUnionOf desc) {
+			set(OBJECT_UNION, desc.getOperands());
+		}
+
+		@Override
+		public void visit(OWLObjectComplementOf desc) {
+			node(OBJECT_COMPLEMENT, desc.getOperand());
+		}
+
+		@Override
+		public void visit(OWLObjectOneOf desc) {
+			set(OBJECT_ONE_OF, desc.getIndividuals());
+		}
+
+		@Override
+		public void visit(OWLObjectSomeRestriction desc) {
+			node(OBJECT_SOME, desc.getProperty(), desc.getFiller());
+		}
+
+		@Override
+		public void visit(OWLObjectAllRestriction desc) {
+			node(OBJECT_ALL, desc.getProperty(), desc.getFiller());
+		}
+
+		@Override
+		public void visit(OWLObjectValueRestriction desc) {
+			node(OBJECT_VALUE, desc.getProperty(), desc.getValue());
+		}
+
+		@Override
+		public void visit(OWLObjectMinCardinalityRestriction desc) {
+			cardinality(OBJECT_MIN, desc.getCardinality(), desc.getProperty(),
+					desc.getFiller());
+		}
+
+		@Override
+		public void visit(OWLObjectMaxCardinalityRestriction desc) {
+			cardinality(OBJECT_MAX, desc.getCardinality(), desc.getProperty(),
+					desc.getFiller());
+		}
+
+		@Override
+		public void visit(OWLObjectExactCardinalityRestriction desc) {
+			cardinality(OBJECT_EXACT, desc.getCardinality(),
+					desc.getProperty(), desc.getFiller());
+		}
+
+		@Override
+		public void visit(OWLObjectSelfRestriction desc) {
+			node(OBJECT_SELF, desc.getProperty());
+		}
+
+		@Override
+		public void visit(OWLDataSomeRestriction desc) {
+			node(DATA_SOME, desc.getProperty(), desc.getFiller());
+		}
+
+		@Override
+		public void visit(OWLDataAllRestriction desc) {
+			node(DATA_ALL, desc.getProperty(), desc.getFiller());
+		}
+
+		@Override
+		public void visit(OWLDataValueRestriction desc) {
+			node(DATA_VALUE, desc.getProperty(), desc.getValue());
+		}
+
+		@Override
+		public void visit(OWLDataMinCardinalityRestriction desc) {
+			cardinality(DATA_MIN, desc.getCardinality(), desc.getProperty(),
+					desc.getFiller());
+		}
+
+		@Override
+		public void visit(OWLDataMaxCardinalityRestriction desc) {
+			cardinality(DATA_MAX, desc.getCardinality(), desc.getProperty(),
+					desc.getFiller());
+		}
+
+		@Override
+		public void visit(OWLDataExactCardinalityRestriction desc) {
+			cardinality(DATA_EXACT, desc.getCardinality(), desc.getProperty(),
+					desc.getFiller());
+		}
+
+		@Override
+		public void visit(OWLObjectPropertyInverse property) {
+			node(OBJECT_INVERSE, property.getInverse());
+		}
+
+		@Override
+		public void visit(OWLDataOneOf node) {
+			set(DATA_ONE_OF, node.getValues());
+		}
+
+		@Override
+		public void visit(OWLDataComplementOf node) {
+			node(DATA_COMPLEMENT, node.getDataRange());
+		}
+
+		@Override
+		public void visit(OWLDataRangeRestriction node) {
+			node(DATA_RANGE_RESTRICTION, node.getDataRange());
+			objects(node.getFacetRestrictions());
+		}
+
+		@Override
+		public void visit(OWLDataRangeFacetRestriction node) {
+			out.writeByte(FACET_RESTRICTION);
+			out.writeVarInt(node.getFacet().ordinal());
+			node.getFacetValue().accept(this);
+		}
+
+		@Override
+		public void visit(OWLConstantAnnotation annotation) {
+			out.writeByte(CONSTANT_ANNOTATION);
+			writeString(annotation.getAnnotationURI().toString());
+			annotation.getAnnotationValue().accept(this);
+		}
+
+		@Override
+		public void visit(OWLObjectAnnotation annotation) {
+			out.writeByte(OBJECT_ANNOTATION);
+			writeString(annotation.getAnnotationURI().toString());
+			annotation.getAnnotationValue().accept(this);
+		}
+
+		@Override
+		public void visit(OWLSubClassAxiom axiom) {
+			node(SUB_CLASS, axiom.getSubClass(), axiom.getSuperClass());
+		}
+
+		@Override
+		public void visit(OWLEquivalentClassesAxiom axiom) {
+			set(EQUIVALENT_CLASSES, axiom.getDescriptions());
+		}
+
+		@Override
+		public void visit(OWLDisjointClassesAxiom axiom) {
+			set(DISJOINT_CLASSES, axiom.getDescriptions());
+		}
+
+		@Override
+		public void visit(OWLDisjointUnionAxiom axiom) {
+			node(DISJOINT_UNION, axiom.getOWLClass());
+			objects(axiom.getDescriptions());
+		}
+
+		@Override
+		public void visit(OWLObjectSubPropertyAxiom axiom) {
+			node(OBJECT_SUB_PROPERTY, axiom.getSubProperty(), axiom
+					.getSuperProperty());
+		}
+
+		@Override
+		public void visit(OWLEquivalentObjectPropertiesAxiom axiom) {
+			set(EQUIVALENT_OBJECT_PROPERTIES, axiom.getProperties());
+		}
+
+		@Override
+		public void visit(OWLDisjointObjectPropertiesAxiom axiom) {
+			set(DISJOINT_OBJECT_PROPERTIES, axiom.getProperties());
+		}
+
+		@Override
+		public void visit(OWLObjectPropertyDomainAxiom axiom) {
+			node(OBJECT_DOMAIN, axiom.getProperty(), axiom.getDomain());
+		}
+
+		@Override
+		public void visit(OWLObjectPropertyRangeAxiom axiom) {
+			node(OBJECT_RANGE, axiom.getProperty(), axiom.getRange());
+		}
+
+		@Override
+		public void visit(OWLFunctionalObjectPropertyAxiom axiom) {
+			node(FUNCTIONAL_OBJECT, axiom.getProperty());
+		}
+
+		@Override
+		public void visit(OWLInverseFunctionalObjectPropertyAxiom axiom) {
+			node(INVERSE_FUNCTIONAL, axiom.getProperty());
+		}
+
+		@Override
+		public void visit(OWLInverseObjectPropertiesAxiom axiom) {
+			node(INVERSE_PROPERTIES, axiom.getFirstProperty(), axiom
+					.getSecondProperty());
+		}
+
+		@Override
+		public void visit(OWLSymmetricObjectPropertyAxiom axiom) {
+			node(SYMMETRIC, axiom.getProperty());
+		}
+
+		@Override
+		public void visit(OWLAntiSymmetricObjectPropertyAxiom axiom) {
+			node(ANTI_SYMMETRIC, axiom.getProperty());
+		}
+
+		@Override
+		public void visit(OWLReflexiveObjectPropertyAxiom axiom) {
+			node(REFLEXIVE, axiom.getProperty());
+		}
+
+		@Override
+		public void visit(OWLIrreflexiveObjectPropertyAxiom axiom) {
+			node(IRREFLEXIVE, axiom.getProperty());
+		}
+
+		@Override
+		public void visit(OWLTransitiveObjectPropertyAxiom axiom) {
+			node(TRANSITIVE, axiom.getProperty());
+		}
+
+		@Override
+		public void visit(OWLObjectPropertyChainSubPropertyAxiom axiom) {
+			set(PROPERTY_CHAIN, axiom.getPropertyChain());
+			axiom.getSuperProperty().accept(this);
+		}
+
+		@Override
+		public void visit(OWLDataSubPropertyAxiom axiom) {
+			node(DATA_SUB_PROPERTY, axiom.getSubProperty(), axiom
+					.getSuperProperty());
+		}
+
+		@Override
+		public void visit(OWLEquivalentDataPropertiesAxiom axiom) {
+			set(EQUIVALENT_DATA_PROPERTIES, axiom.getProperties());
+		}
+
+		@Override
+		public void visit(OWLDisjointDataPropertiesAxiom axiom) {
+			set(DISJOINT_DATA_PROPERTIES, axiom.getProperties());
+		}
+
+		@Override
+		public void visit(OWLDataPropertyDomainAxiom axiom) {
+			node(DATA_DOMAIN, axiom.getProperty(), axiom.getDomain());
+		}
+
+		@Override
+		public void visit(OWLDataPropertyRangeAxiom axiom) {
+			node(DATA_RANGE, axiom.getProperty(), axiom.getRange());
+		}
+
+		@Override
+		public void visit(OWLFunctionalDataPropertyAxiom axiom) {
+			node(FUNCTIONAL_DATA, axiom.getProperty());
+		}
+
+		@Override
+		public void visit(OWLClassAssertionAxiom axiom) {
+			node(CLASS_ASSERTION, axiom.getIndividual(), axiom
+					.getDescription());
+		}
+
+		@Override
+		public void visit(OWLObjectPropertyAssertionAxiom axiom) {
+			node(OBJECT_ASSERTION, axiom.getSubject(), axiom.getProperty(),
+					axiom.getObject());
+		}
+
+		@Override
+		public void visit(OWLDataPropertyAssertionAxiom axiom) {
+			node(DATA_ASSERTION, axiom.getSubject(), axiom.getProperty(),
+					axiom.getObject());
+		}
+
+		@Override
+		public void visit(OWLNegativeObjectPropertyAssertionAxiom axiom) {
+			node(NEGATIVE_OBJECT_ASSERTION, axiom.getSubject(), axiom
+					.getProperty(), axiom.getObject());
+		}
+
+		@Override
+		public void visit(OWLNegativeDataPropertyAssertionAxiom axiom) {
+			node(NEGATIVE_DATA_ASSERTION, axiom.getSubject(), axiom
+					.getProperty(), axiom.getObject());
+		}
+
+		@Override
+		public void visit(OWLSameIndividualsAxiom axiom) {
+			set(SAME_INDIVIDUALS, axiom.getIndividuals());
+		}
+
+		@Override
+		public void visit(OWLDifferentIndividualsAxiom axiom) {
+			set(DIFFERENT_INDIVIDUALS, axiom.getIndividuals());
+		}
+
+		@Override
+		public void visit(OWLDeclarationAxiom axiom) {
+			node(DECLARATION, axiom.getEntity());
+		}
+
+		@Override
+		public void visit(OWLEntityAnnotationAxiom axiom) {
+			node(ENTITY_ANNOTATION, axiom.getSubject(), axiom.getAnnotation());
+		}
+
+		@Override
+		public void visit(OWLAxiomAnnotationAxiom axiom) {
+			node(AXIOM_ANNOTATION, axiom.getSubject(), axiom.getAnnotation());
+		}
+
+		@Override
+		public void visit(OWLOntologyAnnotationAxiom axiom) {
+			node(ONTOLOGY_ANNOTATION, axiom.getAnnotation());
+		}
+
+		@Override
+		public void visit(OWLImportsDeclaration axiom) {
+			out.writeByte(IMPORTS);
+			writeString(axiom.getImportedOntologyURI().toString());
+		}
+
+		@Override
+		public void visit(SWRLRule rule) {
+			// save() leaves out ontologies with rules
+			throw new UnsupportedOperationException("SWRL rules");
+		}
+	}
+
+	/**
+	 * Rebuilds an ontology from a mapped snapshot.
+	 */
+	private static final class Decoder {
+
+		/** The data factory. */
+		private final OWLDataFactory factory;
+
+		/** The mapped snapshot. */
+		private final ByteBuffer buffer;
+
+		/** The string table. */
+		private String[] strings;
+
+		/** The uris made from the string table, made as they are needed. */
+		private URI[] uris;
+
+		/** The entity table. */
+		private OWLEntity[] entities;
+
+		/** The constant table. */
+		private OWLConstant[] constants;
+
+		/** The ontology uri. */
+		URI ontologyURI;
+
+		/** The ontology being rebuilt. */
+		private OWLOntology ontology;
+
+		/** The offset of the tables. */
+		private long tablesOffset;
+
+		/** The number of axioms. */
+		private int axiomCount;
+
+		/** The checksum of all but the header. */
+		private int checksum;
+
+		/**
+		 * Instantiates a new decoder.
+		 *
+		 * @param factory
+		 *            the data factory
+		 * @param buffer
+		 *            the mapped snapshot
+		 */
+		Decoder(OWLDataFactory factory, ByteBuffer buffer) {
+			this.factory = factory;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Reads the header.
+		 *
+		 * @param hash
+		 *            the hash of the input
+		 * @return true, if the file is a snapshot of this version and input
+		 */
+		boolean checkHeader(byte[] hash) {
+			if (buffer.limit() < HEADER_LENGTH || buffer.getInt() != MAGIC
+					|| buffer.getInt() != VERSION) {
+				return false;
+			}
+			byte[] previous = new byte[HASH_LENGTH];
+			buffer.get(previous);
+			tablesOffset = buffer.getLong();
+			axiomCount = buffer.getInt();
+			checksum = buffer.getInt();
+			return Arrays.equals(previous, hash) && tablesOffset > 0;
+		}
+
+		/**
+		 * Checks the checksum of all but the header.
+		 *
+		 * @return true, if the snapshot is as it was written
+		 */
+		boolean checkBody() {
+			CRC32 crc = new CRC32();
+			buffer.position(HEADER_LENGTH);
+			crc.update(buffer);
+			return (int) crc.getValue() == checksum;
+		}
+
+		/**
+		 * Reads the string, entity and constant tables.
+		 */
+		void readTables() {
+			buffer.position((int) tablesOffset);
+			strings = new String[readVarInt()];
+			byte[] utf8 = new byte[256];
+			for (int i = 0; i < strings.length; i++) {
+				int n = readVarInt();
+				if (n > utf8.length) {
+					utf8 = new byte[Math.max(n, utf8.length * 2)];
+				}
+				buffer.get(utf8, 0, n);
+				try {
+					strings[i] = new String(utf8, 0, n, "UTF8");
+				} catch (java.io.UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			uris = new URI[strings.length];
+			ontologyURI = readURI();
+			entities = new OWLEntity[readVarInt()];
+			for (int i = 0; i < entities.length; i++) {
+				byte kind = buffer.get();
+				URI uri = readURI();
+				switch (kind) {
+				case CLASS:
+					entities[i] = factory.getOWLClass(uri);
+					break;
+				case OBJECT_PROPERTY:
+					entities[i] = factory.getOWLObjectProperty(uri);
+					break;
+				case DATA_PROPERTY:
+					entities[i] = factory.getOWLDataProperty(uri);
+					break;
+				case INDIVIDUAL:
+					entities[i] = factory.getOWLIndividual(uri);
+					break;
+				case ANONYMOUS_INDIVIDUAL:
+					entities[i] = factory.getOWLAnonymousIndividual(uri);
+					break;
+				case DATATYPE:
+					entities[i] = factory.getOWLDataType(uri);
+					break;
+				default:
+					throw new IllegalStateException("Unknown entity kind "
+							+ kind);
+				}
+			}
+			constants = new OWLConstant[readVarInt()];
+			for (int i = 0; i < constants.length; i++) {
+				byte kind = buffer.get();
+				String literal = strings[readVarInt()];
+				switch (kind) {
+				case TYPED:
+					constants[i] = factory.getOWLTypedConstant(literal,
+							factory.getOWLDataType(readURI()));
+					break;
+				case UNTYPED_LANG:
+					constants[i] = factory.getOWLUntypedConstant(literal,
+							strings[readVarInt()]);
+					break;
+				case UNTYPED:
+					constants[i] = factory.getOWLUntypedConstant(literal);
+					break;
+				default:
+					throw new IllegalStateException("Unknown constant kind "
+							+ kind);
+				}
+			}
+		}
+
+		/**
+		 * Reads the axioms into the ontology, a batch at a time.
+		 *
+		 * @param manager
+		 *            the manager of the ontology
+		 * @param ontology
+		 *            the new, empty ontology
+		 * @throws OWLException
+		 *             if the axioms cannot be added
+		 */
+		void readAxioms(OWLOntologyManager manager, OWLOntology ontology)
+				throws OWLException {
+			this.ontology = ontology;
+			buffer.position(HEADER_LENGTH);
+			List<OWLOntologyChange> changes = new ArrayList<OWLOntologyChange>(
+					Math.min(axiomCount, BATCH));
+			for (int i = 0; i < axiomCount; i++) {
+				changes.add(new AddAxiom(ontology, (OWLAxiom) read()));
+				if (changes.size() == BATCH) {
+					manager.applyChanges(changes);
+					changes.clear();
+				}
+			}
+			manager.applyChanges(changes);
+			if (buffer.position() != tablesOffset) {
+				throw new IllegalStateException("The axioms end at "
+						+ buffer.position() + ", not at the tables");
+			}
+		}
+
+		/**
+		 * Reads a non-negative int written by Encoder.writeVarInt.
+		 *
+		 * @return the int
+		 */
+		private int readVarInt() {
+			int v = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = buffer.get();
+				v |= (b & 0x7f) << shift;
+				if (b >= 0) {
+					return v;
+				}
+			}
+		}
+
+		/**
+		 * Reads a reference to a string that is a uri.
+		 *
+		 * @return the uri
+		 */
+		private URI readURI() {
+			int index = readVarInt();
+			URI uri = uris[index];
+			if (uri == null) {
+				uri = URI.create(strings[index]);
+				uris[index] = uri;
+			}
+			return uri;
+		}
+
+		/**
+		 * Reads a set of objects.
+		 *
+		 * @param <T>
+		 *            the type of the objects
+		 * @return the set
+		 */
+		@SuppressWarnings("unchecked")
+		private <T extends OWLObject> Set<T> readSet() {
+			int count = readVarInt();
+			Set<T> set = new HashSet<T>(count * 2);
+			for (int i = 0; i < count; i++) {
+				set.add((T) read());
+			}
+			return set;
+		}
+
+		/**
+		 * Reads an object.
+		 *
+		 * @param <T>
+		 *            the type of the object
+		 * @return the object
+		 */
+		@SuppressWarnings("unchecked")
+		private <T extends OWLObject> T read() {
+			return (T) readObject();
+		}
+
+		/**
+		 * Reads an object: a tag, then what the tag needs.
+		 *
+		 * @return the object
+		 */
+		private OWLObject readObject() {
+			byte tag = buffer.get();
+			switch (tag) {
+			case ENTITY:
+				return entities[readVarInt()];
+			case CONSTANT:
+				return constants[readVarInt()];
+			case OBJECT_INTERSECTION:
+				return factory.getOWLObjectIntersectionOf(this
+						.<OWLDescription> readSet());
+			case OBJECT_UNION:
+				return factory.getOWLObjectUnionOf(this
+						.<OWLDescription> readSet());
+			case OBJECT_COMPLEMENT:
+				return factory.getOWLObjectComplementOf(this
+						.<OWLDescription> read());
+			case OBJECT_ONE_OF:
+				return factory.getOWLObjectOneOf(this
+						.<OWLIndividual> readSet());
+			case OBJECT_SOME:
+				return factory.getOWLObjectSomeRestriction(this
+						.<OWLObjectPropertyExpression> read(), this
+						.<OWLDescription> read());
+			case OBJECT_ALL:
+				return factory.getOWLObjectAllRestriction(this
+						.<OWLObjectPropertyExpression> read(), this
+						.<OWLDescription> read());
+			case OBJECT_VALUE:
+				return factory.getOWLObjectValueRestriction(this
+						.<OWLObjectPropertyExpression> read(), this
+						.<OWLIndividual> read());
+			case OBJECT_MIN: {
+				int n = readVarInt();
+				return factory.getOWLObjectMinCardinalityRestriction(this
+						.<OWLObjectPropertyExpression> read(), n, this
+						.<OWLDescription> read());
+			}
+			case OBJECT_MAX: {
+				int n = readVarInt();
+				return factory.getOWLObjectMaxCardinalityRestriction(this
+						.<OWLObjectPropertyExpression> read(), n, this
+						.<OWLDescription> read());
+			}
+			case OBJECT_EXACT: {
+				int n = readVarInt();
+				return factory.getOWLObjectExactCardinalityRestriction(this
+						.<OWLObjectPropertyExpression> read(), n, this
+						.<OWLDescription> read());
+			}
+			case OBJECT_SELF:
+				return factory.getOWLObjectSelfRestriction(this
+						.<OWLObjectPropertyExpression> read());
+			case DATA_SOME:
+				return factory.getOWLDataSomeRestriction(this
+						.<OWLDataPropertyExpression> read(), this
+						.<OWLDataRange> read());
+			case DATA_ALL:
+				return factory.getOWLDataAllRestriction(this
+						.<OWLDataPropertyExpression> read(), this
+						.<OWLDataRange> read());
+			case DATA_VALUE:
+				return factory.getOWLDataValueRestriction(this
+						.<OWLDataPropertyExpression> read(), this
+						.<OWLConstant> read());
+			case DATA_MIN: {
+				int n = readVarInt();
+				return factory.getOWLDataMinCardinalityRestriction(this
+						.<OWLDataPropertyExpression> read(), n, this
+						.<OWLDataRange> read());
+			}
+			case DATA_MAX: {
+				int n = readVarInt();
+				return factory.getOWLDataMaxCardinalityRestriction(this
+						.<OWLDataPropertyExpression> read(), n, this
+						.<OWLDataRange> read());
+			}
+			case DATA_EXACT: {
+				int n = readVarInt();
+				return factory.getOWLDataExactCardinalityRestriction(this
+						.<OWLDataPropertyExpression> read(), n, this
+						.<OWLDataRange> read());
+			}
+			case OBJECT_INVERSE:
+				return factory.getOWLObjectPropertyInverse(this
+						.<OWLObjectPropertyExpression> read());
+			case DATA_ONE_OF:
+				return factory.getOWLDataOneOf(this.<OWLConstant> readSet());
+			case DATA_COMPLEMENT:
+				return factory.getOWLDataComplementOf(this
+						.<OWLDataRange> read());
+			case DATA_RANGE_RESTRICTION:
+				return factory.getOWLDataRangeRestriction(this
+						.<OWLDataRange> read(), this
+						.<OWLDataRangeFacetRestriction> readSet());
+			case FACET_RESTRICTION:
+				return factory.getOWLDataRangeFacetRestriction(
+						OWLRestrictedDataRangeFacetVocabulary.values()[readVarInt()],
+						this.<OWLTypedConstant> read());
+			case CONSTANT_ANNOTATION:
+				return factory.getOWLConstantAnnotation(readURI(), this
+						.<OWLConstant> read());
+			case OBJECT_ANNOTATION:
+				return factory.getOWLObjectAnnotation(readURI(), this
+						.<OWLIndividual> read());
+			case SUB_CLASS:
+				return factory.getOWLSubClassAxiom(this
+						.<OWLDescription> read(), this.<OWLDescription> read());
+			case EQUIVALENT_CLASSES:
+				return factory.getOWLEquivalentClassesAxiom(this
+						.<OWLDescription> readSet());
+			case DISJOINT_CLASSES:
+				return factory.getOWLDisjointClassesAxiom(this
+						.<OWLDescription> readSet());
+			case DISJOINT_UNION:
+				return factory.getOWLDisjointUnionAxiom(
+						this.<OWLClass> read(), this.<OWLDescription> readSet());
+			case OBJECT_SUB_PROPERTY:
+				return factory.getOWLSubObjectPropertyAxiom(this
+						.<OWLObjectPropertyExpression> read(), this
+						.<OWLObjectPropertyExpression> read());
+			case EQUIVALENT_OBJECT_PROPERTIES:
+				return factory.getOWLEquivalentObjectPropertiesAxiom(this
+						.<OWLObjectPropertyExpression> readSet());
+			case DISJOINT_OBJECT_PROPERTIES:
+				return factory.getOWLDisjointObjectPropertiesAxiom(this
+						.<OWLObjectPropertyExpression> readSet());
+			case OBJECT_DOMAIN:
+				return factory.getOWLObjectPropertyDomainAxiom(this
+						.<OWLObjectPropertyExpression> read(), this
+						.<OWLDescription> read());
+			case OBJECT_RANGE:
+				return factory.getOWLObjectPropertyRangeAxiom(this
+						.<OWLObjectPropertyExpression> read(), this
+						.<OWLDescription> read());
+			case FUNCTIONAL_OBJECT:
+				return factory.getOWLFunctionalObjectPropertyAxiom(this
+						.<OWLObjectPropertyExpression> read());
+			case INVERSE_FUNCTIONAL:
+				return factory.getOWLInverseFunctionalObjectPropertyAxiom(this
+						.<OWLObjectPropertyExpression> read());
+			case INVERSE_PROPERTIES:
+				return factory.getOWLInverseObjectPropertiesAxiom(this
+						.<OWLObjectPropertyExpression> read(), this
+						.<OWLObjectPropertyExpression> read());
+			case SYMMETRIC:
+				return factory.getOWLSymmetricObjectPropertyAxiom(this
+						.<OWLObjectPropertyExpression> read());
+			case ANTI_SYMMETRIC:
+				return factory.getOWLAntiSymmetricObjectPropertyAxiom(this
+						.<OWLObjectPropertyExpression> read());
+			case REFLEXIVE:
+				return factory.getOWLReflexiveObjectPropertyAxiom(this
+						.<OWLObjectPropertyExpression> read());
+			case IRREFLEXIVE:
+				return factory.getOWLIrreflexiveObjectPropertyAxiom(this
+						.<OWLObjectPropertyExpression> read());
+			case TRANSITIVE:
+				return factory.getOWLTransitiveObjectPropertyAxiom(this
+						.<OWLObjectPropertyExpression> read());
+			case PROPERTY_CHAIN: {
+				int count = readVarInt();
+				List<OWLObjectPropertyExpression> chain = new ArrayList<OWLObjectPropertyExpression>(
+						count);
+				for (int i = 0; i < count; i++) {
+					chain.add(this.<OWLObjectPropertyExpression> read());
+				}
+				return factory.getOWLObjectPropertyChainSubPropertyAxiom(chain,
+						this.<OWLObjectPropertyExpression> read());
+			}
+			case DATA_SUB_PROPERTY:
+				return factory.getOWLSubDataPropertyAxiom(this
+						.<OWLDataPropertyExpression> read(), this
+						.<OWLDataPropertyExpression> read());
+			case EQUIVALENT_DATA_PROPERTIES:
+				return factory.getOWLEquivalentDataPropertiesAxiom(this
+						.<OWLDataPropertyExpression> readSet());
+			case DISJOINT_DATA_PROPERTIES:
+				return factory.getOWLDisjointDataPropertiesAxiom(this
+						.<OWLDataPropertyExpression> readSet());
+			case DATA_DOMAIN:
+				return factory.getOWLDataPropertyDomainAxiom(this
+						.<OWLDataPropertyExpression> read(), this
+						.<OWLDescription> read());
+			case DATA_RANGE:
+				return factory.getOWLDataPropertyRangeAxiom(this
+						.<OWLDataPropertyExpression> read(), this
+						.<OWLDataRange> read());
+			case FUNCTIONAL_DATA:
+				return factory.getOWLFunctionalDataPropertyAxiom(this
+						.<OWLDataPropertyExpression> read());
+			case CLASS_ASSERTION:
+				return factory.getOWLClassAssertionAxiom(this
+						.<OWLIndividual> read(), this.<OWLDescription> read());
+			case OBJECT_ASSERTION:
+				return factory.getOWLObjectPropertyAssertionAxiom(this
+						.<OWLIndividual> read(), this
+						.<OWLObjectPropertyExpression> read(), this
+						.<OWLIndividual> read());
+			case DATA_ASSERTION:
+				return factory.getOWLDataPropertyAssertionAxiom(this
+						.<OWLIndividual> read(), this
+						.<OWLDataPropertyExpression> read(), this
+						.<OWLConstant> read());
+			case NEGATIVE_OBJECT_ASSERTION:
+				return factory.getOWLNegativeObjectPropertyAssertionAxiom(this
+						.<OWLIndividual> read(), this
+						.<OWLObjectPropertyExpression> read(), this
+						.<OWLIndividual> read());
+			case NEGATIVE_DATA_ASSERTION:
+				return factory.getOWLNegativeDataPropertyAssertionAxiom(this
+						.<OWLIndividual> read(), this
+						.<OWLDataPropertyExpression> read(), this
+						.<OWLConstant> read());
+			case SAME_INDIVIDUALS:
+				return factory.getOWLSameIndividualsAxiom(this
+						.<OWLIndividual> readSet());
+			case DIFFERENT_INDIVIDUALS:
+				return factory.getOWLDifferentIndividualsAxiom(this
+						.<OWLIndividual> readSet());
+			case DECLARATION:
+				return factory.getOWLDeclarationAxiom(this.<OWLEntity> read());
+			case ENTITY_ANNOTATION:
+				return factory.getOWLEntityAnnotationAxiom(this
+						.<OWLEntity> read(), this
+						.<OWLAnnotation<?>> read());
+			case AXIOM_ANNOTATION:
+				return factory.getOWLAxiomAnnotationAxiom(this
+						.<OWLAxiom> read(), this
+						.<OWLAnnotation<?>> read());
+			case ONTOLOGY_ANNOTATION:
+				return factory.getOWLOntologyAnnotationAxiom(ontology, this
+						.<OWLAnnotation<?>> read());
+			case IMPORTS:
+				return factory.getOWLImportsDeclarationAxiom(ontology,
+						readURI());
+			default:
+				throw new IllegalStateException("Unknown tag " + tag + " at "
+						+ (buffer.position() - 1));
+			}
+		}
+	}
+}
@@ -0,0 +1,551 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites the RDF/XML as the renderer writes it into the form formatOWL.pl
+ * made of the saved file (the fixedNS file), so the pipeline no longer reads
+ * and writes the whole ontology a second time. Each rewrite is one pass of the
+ * script, chosen by name in output_rewrites; the passes are run one after
+ * another on each line as it is written, which gives the same result as
+ * running them over the whole file in turn. Only a class is held back, until
+ * its closing tag shows whether it is retired.
+ */
+final class OutputRewriter extends Writer {
+
+	/**
+	 * The rewrites, in the order formatOWL.pl made them.
+	 */
+	enum Rewrite {
+		/** Drop the declarations of the deleted annotation properties. */
+		DECLARATIONS,
+		/** Drop the ranges of annotation and datatype properties. */
+		RANGES,
+		/** Expand entity references such as &amp;xsd; in attribute values. */
+		ENTITIES,
+		/** Drop CDATA markers from literals. */
+		CDATA,
+		/** Drop the lines that mention owl:Thing. */
+		THING,
+		/** Drop the prefix declaration of the ontology namespace. */
+		NAMESPACE,
+		/** Write XML literals as parseType="Literal" with their tags unescaped. */
+		LITERALS,
+		/** Write anyURI values as rdf:resource references. */
+		ASSOCIATIONS,
+		/** Write retired classes as owl:DeprecatedClass. */
+		DEPRECATED,
+		/** Drop the one line comments naming each entity. */
+		COMMENTS
+	}
+
+	/** The anyURI data type. */
+	private static final String ANY_URI = "http://www.w3.org/2001/XMLSchema#anyURI";
+
+	/** The rdf:type of a deprecated class. */
+	private static final String CLASS_TYPE = "<rdf:type rdf:resource=\"http://www.w3.org/2002/07/owl#Class\"/>";
+
+	/** The writer getting the rewritten lines. */
+	private final Writer out;
+
+	/** The rewrites to make. */
+	private final EnumSet<Rewrite> rewrites;
+
+	/** The annotation properties whose declarations are dropped. */
+	private final Set<String> deletedProperties;
+
+	/** The prefix of the XML literals, e.g. ncicp, or null. */
+	private final String literalPrefix;
+
+	/** The prefix declaration value of the ontology namespace. */
+	private final String namespaceDeclaration;
+
+	/** The namespaces declared so far, by prefix. */
+	private final Map<String, String> namespaces = new HashMap<String, String>();
+
+	/** The line being written. */
+	private final StringBuilder line = new StringBuilder(256);
+
+	/** The closing tag of the property whose ranges are dropped, or null. */
+	private String propertyEnd;
+
+	/** Whether the line is inside a dropped range. */
+	private boolean inRange = false;
+
+	/** The association tag whose value is on the next line, or null. */
+	private String associationTag;
+
+	/** The indent of that association. */
+	private String associationIndent;
+
+	/** The lines of the class held back, or null. */
+	private List<String> classLines;
+
+	/** The indent and name of that class. */
+	private String classIndent, className;
+
+	/** Whether that class is a subclass of Retired_Concept. */
+	private boolean retired;
+
+	/** The number of lines changed and dropped. */
+	private long changed = 0, dropped = 0;
+
+	/**
+	 * Instantiates a new output rewriter.
+	 *
+	 * @param out
+	 *            the writer getting the rewritten lines
+	 * @param rewrites
+	 *            the rewrites to make
+	 * @param deletedProperties
+	 *            the annotation properties whose declarations are dropped
+	 * @param literalPrefix
+	 *            the prefix of the XML literals, e.g. ncicp, or null
+	 * @param namespace
+	 *            the ontology namespace
+	 */
+	OutputRewriter(Writer out, EnumSet<Rewrite> rewrites,
+			Collection<String> deletedProperties, String literalPrefix,
+			String namespace) {
+		this.out = out;
+		this.rewrites = rewrites;
+		this.deletedProperties = deletedProperties == null ? new HashSet<String>()
+				: new HashSet<String>(deletedProperties);
+		this.literalPrefix = literalPrefix;
+		this.namespaceDeclaration = "=\"" + namespace + "#\"";
+	}
+
+	/**
+	 * Parses the output_rewrites property: rewrite names separated by commas,
+	 * or all for everything formatOWL.pl did.
+	 *
+	 * @param value
+	 *            the property value, or null
+	 * @return the rewrites
+	 * @throws IllegalArgumentException
+	 *             if a name is not a rewrite
+	 */
+	static EnumSet<Rewrite> parse(String value) {
+		EnumSet<Rewrite> rewrites = EnumSet.noneOf(Rewrite.class);
+		if (value == null) {
+			return rewrites;
+		}
+		for (String name : value.split(",")) {
+			name = name.trim();
+			if (name.equalsIgnoreCase("all")) {
+				rewrites.addAll(EnumSet.allOf(Rewrite.class));
+			} else if (name.length() > 0) {
+				rewrites.add(Rewrite.valueOf(name.toUpperCase()));
+			}
+		}
+		return rewrites;
+	}
+
+	/**
+	 * Gets the number of lines changed.
+	 *
+	 * @return the lines changed
+	 */
+	long getChanged() {
+		return changed;
+	}
+
+	/**
+	 * Gets the number of lines dropped.
+	 *
+	 * @return the lines dropped
+	 */
+	long getDropped() {
+		return dropped;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		if (c == '\n') {
+			endLine();
+		} else {
+			line.append((char) c);
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		int start = off;
+		for (int i = off; i < off + len; i++) {
+			if (cbuf[i] == '\n') {
+				line.append(cbuf, start, i - start);
+				endLine();
+				start = i + 1;
+			}
+		}
+		line.append(cbuf, start, off + len - start);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		int start = off;
+		for (int i = str.indexOf('\n', off); i >= 0 && i < off + len; i = str
+				.indexOf('\n', i + 1)) {
+			line.append(str, start, i);
+			endLine();
+			start = i + 1;
+		}
+		line.append(str, start, off + len);
+	}
+
+	/**
+	 * Rewrites a finished line.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void endLine() throws IOException {
+		String s = line.toString();
+		line.setLength(0);
+		String r = rewrite(s);
+		if (r == null) {
+			dropped++;
+		} else if (!r.equals(s)) {
+			changed++;
+		}
+		if (r != null) {
+			holdOrWrite(r);
+		}
+	}
+
+	/**
+	 * Makes the rewrites that need only the line itself and what came before
+	 * it.
+	 *
+	 * @param s
+	 *            the line
+	 * @return the rewritten line, or null to drop it
+	 */
+	private String rewrite(String s) {
+		s = rewriteProperties(s);
+		if (s == null) {
+			return null;
+		}
+		if (rewrites.contains(Rewrite.ENTITIES)) {
+			s = expandEntity(s);
+		}
+		if (rewrites.contains(Rewrite.CDATA) && s.contains("CDATA")) {
+			s = s.replace("&lt;![CDATA[", "").replace("]]>", "");
+		}
+		if (rewrites.contains(Rewrite.THING) && s.contains("owl#Thing")) {
+			return null;
+		}
+		if (rewrites.contains(Rewrite.NAMESPACE) && s.contains("xmlns:")
+				&& s.contains(namespaceDeclaration)) {
+			return null;
+		}
+		if (rewrites.contains(Rewrite.LITERALS)) {
+			s = renderLiteral(s);
+		}
+		if (rewrites.contains(Rewrite.ASSOCIATIONS)) {
+			s = rewriteAssociation(s);
+		}
+		return s;
+	}
+
+	/**
+	 * Reads the namespace declarations and drops the deleted property
+	 * declarations and the property ranges, the first pass of formatOWL.pl.
+	 *
+	 * @param s
+	 *            the line
+	 * @return the line, or null to drop it
+	 */
+	private String rewriteProperties(String s) {
+		if (propertyEnd != null) {
+			if (s.contains(propertyEnd)) {
+				propertyEnd = null;
+			} else if (inRange) {
+				inRange = !s.contains("</rdfs:range>");
+				return null;
+			} else if (s.contains("<rdfs:range>")) {
+				inRange = true;
+				return null;
+			} else {
+				int r = s.lastIndexOf("<rdfs:range rdf:resource=\"");
+				if (r >= 0 && s.indexOf("/>", r) >= 0) {
+					return null;
+				}
+			}
+			return s;
+		}
+		readNamespace(s);
+		if (rewrites.contains(Rewrite.DECLARATIONS)
+				&& deletedProperties.contains(declared(s,
+						"<owl:AnnotationProperty rdf:about=\"#", "\"/>"))) {
+			return null;
+		}
+		if (rewrites.contains(Rewrite.RANGES)) {
+			for (String type : new String[] { "AnnotationProperty",
+					"DatatypeProperty" }) {
+				if (declared(s, "<owl:" + type + " rdf:about=\"#", "\">") != null) {
+					propertyEnd = "</owl:" + type + ">";
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Writes an anyURI value as an rdf:resource reference. The renderer puts
+	 * the value on the line after the tag, so the tag is dropped and the
+	 * reference written in place of the value.
+	 *
+	 * @param s
+	 *            the line
+	 * @return the line, or null to drop it
+	 */
+	private String rewriteAssociation(String s) {
+		if (associationTag != null) {
+			String tag = associationTag;
+			associationTag = null;
+			int e = s.lastIndexOf("</" + tag + ">");
+			int gt = e < 1 ? -1 : s.lastIndexOf('>', e - 1);
+			if (gt < 0) {
+				return s;
+			}
+			return associationIndent + "<" + tag + " rdf:resource=\""
+					+ s.substring(gt + 1, e) + "\"/>";
+		}
+		int d = s.lastIndexOf(" rdf:datatype=\"" + ANY_URI + "\"");
+		int lt = d < 1 ? -1 : s.lastIndexOf('<', d - 1);
+		if (lt < 0) {
+			return s;
+		}
+		String indent = s.substring(0, lt);
+		String tag = s.substring(lt + 1, d);
+		String end = "</" + tag + ">";
+		int gt = s.indexOf('>', d);
+		if (gt >= 0 && s.endsWith(end)) {
+			// a short value is on the same line
+			return indent + "<" + tag + " rdf:resource=\""
+					+ s.substring(gt + 1, s.length() - end.length()) + "\"/>";
+		}
+		associationTag = tag;
+		associationIndent = indent;
+		return null;
+	}
+
+	/**
+	 * Gets the name an element declares, if the line holds one.
+	 *
+	 * @param s
+	 *            the line
+	 * @param start
+	 *            the text before the name
+	 * @param end
+	 *            the text after the name
+	 * @return the name, or null
+	 */
+	private static String declared(String s, String start, String end) {
+		int e = s.lastIndexOf(end);
+		int i = e < 0 ? -1 : s.lastIndexOf(start, e - start.length());
+		if (i < 0) {
+			return null;
+		}
+		return s.substring(i + start.length(), e);
+	}
+
+	/**
+	 * Records the namespace a line declares, for expanding entities.
+	 *
+	 * @param s
+	 *            the line
+	 */
+	private void readNamespace(String s) {
+		if (!s.contains("xmlns:")) {
+			return;
+		}
+		int q = s.lastIndexOf('"');
+		int eq = q < 2 ? -1 : s.lastIndexOf("=\"", q - 2);
+		int x = eq < 6 ? -1 : s.lastIndexOf("xmlns:", eq - 6);
+		if (x >= 0) {
+			namespaces.put(s.substring(x + 6, eq), s.substring(eq + 2, q));
+		}
+	}
+
+	/**
+	 * Expands the last entity reference opening an attribute value, if its
+	 * namespace has been declared.
+	 *
+	 * @param s
+	 *            the line
+	 * @return the line
+	 */
+	private String expandEntity(String s) {
+		for (int p = s.lastIndexOf("=\"&"); p >= 0; p = s.lastIndexOf("=\"&",
+				p - 1)) {
+			String rest = s.substring(p + 3);
+			int quote = rest.lastIndexOf('"');
+			int semi = quote < 1 ? -1 : rest.lastIndexOf(';', quote - 1);
+			if (semi < 0) {
+				continue;
+			}
+			String key = rest.substring(0, semi + 1);
+			int first = key.indexOf(';');
+			key = key.substring(0, first) + key.substring(first + 1);
+			String uri = namespaces.get(key);
+			if (uri == null) {
+				return s;
+			}
+			return s.substring(0, p) + "=\"" + uri + rest.substring(semi + 1);
+		}
+		return s;
+	}
+
+	/**
+	 * Writes an XML literal as parseType="Literal" and unescapes the tags of
+	 * complex values.
+	 *
+	 * @param s
+	 *            the line
+	 * @return the line
+	 */
+	private String renderLiteral(String s) {
+		int d = s.indexOf("rdf:datatype=\"");
+		if (d >= 0) {
+			int x = s.lastIndexOf("XMLLiteral\"");
+			if (x >= d + 14) {
+				s = s.substring(0, d) + "rdf:parseType=\"Literal\""
+						+ s.substring(x + 11);
+			}
+		}
+		if (literalPrefix == null) {
+			return s;
+		}
+		int p = s.indexOf(literalPrefix + ":");
+		if (p < 0) {
+			return s;
+		}
+		boolean tagged = s.contains(literalPrefix + ":Complex");
+		for (int i = p + literalPrefix.length() + 1; !tagged && i < s.length(); i++) {
+			tagged = s.charAt(i) == '>' || s.charAt(i) == ' ';
+		}
+		if (tagged) {
+			s = s.replace("&lt;" + literalPrefix + ":", "<" + literalPrefix
+					+ ":").replace("&lt;/" + literalPrefix + ":",
+					"</" + literalPrefix + ":");
+		}
+		return s;
+	}
+
+	/**
+	 * Holds back the lines of a class until its closing tag, to write it as
+	 * owl:DeprecatedClass if it is retired, and writes the rest.
+	 *
+	 * @param s
+	 *            the rewritten line
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void holdOrWrite(String s) throws IOException {
+		if (!rewrites.contains(Rewrite.DEPRECATED)) {
+			writeLine(s);
+			return;
+		}
+		if (classLines == null) {
+			String name = s.endsWith("\">") ? declared(s,
+					"<owl:Class rdf:about=\"#", "\">") : null;
+			if (name == null) {
+				writeLine(s);
+				return;
+			}
+			classIndent = s.substring(0, s.lastIndexOf("<owl:Class "));
+			className = name;
+			retired = false;
+			classLines = new ArrayList<String>();
+			classLines.add(s);
+			return;
+		}
+		if (s.equals(classIndent + "</owl:Class>")) {
+			if (retired) {
+				classLines.set(0, classIndent + "<owl:DeprecatedClass rdf:about=\"#"
+						+ className + "\">");
+				s = classIndent + "    " + CLASS_TYPE + "\n" + classIndent
+						+ "</owl:DeprecatedClass>";
+				changed += 2;
+			}
+			List<String> lines = classLines;
+			classLines = null;
+			for (String l : lines) {
+				writeLine(l);
+			}
+			writeLine(s);
+			return;
+		}
+		if (s.contains("<rdfs:subClassOf rdf:resource=\"#Retired_Concept")
+				&& s.endsWith("\"/>")) {
+			retired = true;
+		}
+		if (s.endsWith(CLASS_TYPE)) {
+			dropped++;
+			return;
+		}
+		classLines.add(s);
+	}
+
+	/**
+	 * Writes a line unless it is an entity comment.
+	 *
+	 * @param s
+	 *            the line
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void writeLine(String s) throws IOException {
+		if (rewrites.contains(Rewrite.COMMENTS)) {
+			int c = s.indexOf("<!--", 1);
+			if (c > 0 && s.indexOf("-->", c + 4) >= 0) {
+				dropped++;
+				return;
+			}
+		}
+		out.write(s);
+		out.write('\n');
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (classLines != null) {
+				for (String l : classLines) {
+					writeLine(l);
+				}
+				classLines = null;
+			}
+			if (line.length() > 0) {
+				// the last line has no line end
+				String s = rewrite(line.toString());
+				if (s != null) {
+					out.write(s);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
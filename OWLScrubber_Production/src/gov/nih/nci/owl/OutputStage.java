@@ -0,0 +1,192 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.semanticweb.owl.model.OWLOntologyChange;
+import org.semanticweb.owl.model.OWLOntologyChangeListener;
+import org.semanticweb.owl.model.OWLOntologyManager;
+
+/**
+ * The last stage of a profile: writes its outputs, such as the flat file and
+ * the ontology, at the same time. Once the scrub is done the writers only
+ * read the ontology, so the last output added is written on the calling
+ * thread and the others in the worker pool, and the stage takes as long as
+ * the slowest writer rather than all of them in turn.
+ *
+ * The OWL API cannot make an ontology read only, so the stage listens for
+ * changes instead, and a change made while the outputs are written fails
+ * every output. The outputs are separate files, so a writer that fails does
+ * not stop the others. A failed output has its files deleted, so no
+ * truncated file is left behind looking complete, and its error is printed;
+ * the caller is told how many failed.
+ */
+final class OutputStage implements OWLOntologyChangeListener {
+
+	/** The manager, whose changes are watched. */
+	private final OWLOntologyManager manager;
+
+	/** The run report. */
+	private final RunReport report;
+
+	/** The outputs, in the order added. */
+	private final List<Output> outputs = new ArrayList<Output>();
+
+	/** Whether the ontology changed while the outputs were written. */
+	private volatile boolean changed = false;
+
+	/**
+	 * Instantiates a new output stage.
+	 *
+	 * @param manager
+	 *            the manager of the ontology being written
+	 * @param report
+	 *            the run report
+	 */
+	OutputStage(OWLOntologyManager manager, RunReport report) {
+		this.manager = manager;
+		this.report = report;
+	}
+
+	/**
+	 * Adds an output.
+	 *
+	 * @param name
+	 *            the output name, e.g. flat or save
+	 * @param writer
+	 *            writes the output, throwing if it cannot
+	 * @param files
+	 *            the files the writer writes, deleted if it fails
+	 */
+	void add(String name, Callable<?> writer, File... files) {
+		outputs.add(new Output(name, writer, files));
+	}
+
+	/**
+	 * Adds an output that could not even be set up, e.g. for a bad file URI,
+	 * so it is reported and counted as failed while the others are written.
+	 *
+	 * @param name
+	 *            the output name
+	 * @param failure
+	 *            why it could not be set up
+	 */
+	void fail(String name, Throwable failure) {
+		Output output = new Output(name, null, new File[0]);
+		output.failure = failure;
+		outputs.add(output);
+	}
+
+	/**
+	 * Writes the outputs and waits for them all.
+	 *
+	 * @param pool
+	 *            the pool the outputs other than the last are written in
+	 * @return the number of outputs that failed
+	 */
+	int run(ForkJoinPool pool) {
+		if (outputs.isEmpty()) {
+			return 0;
+		}
+		List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		manager.addOntologyChangeListener(this);
+		try {
+			for (int i = 0; i < outputs.size() - 1; i++) {
+				tasks.add(pool.submit(outputs.get(i)));
+			}
+			outputs.get(outputs.size() - 1).run();
+			for (ForkJoinTask<?> task : tasks) {
+				// outputs catch their own failures, so this only waits
+				task.join();
+			}
+		} finally {
+			manager.removeOntologyChangeListener(this);
+		}
+		int failed = 0;
+		for (Output output : outputs) {
+			report.detail(output.name + "Nanos", output.nanos);
+			if (changed && output.failure == null) {
+				output.failure = new IllegalStateException(
+						"The ontology changed while it was being written.");
+			}
+			if (output.failure != null) {
+				failed++;
+				output.failure.printStackTrace();
+				for (File file : output.files) {
+					if (file.delete()) {
+						System.out.println("Deleted " + file + ".");
+					}
+				}
+				System.out.println("Unable to write the " + output.name
+						+ " output: " + output.failure.getMessage());
+			}
+		}
+		if (failed > 0) {
+			report.detail("outputsFailed", failed);
+		}
+		return failed;
+	}
+
+	public void ontologiesChanged(List<? extends OWLOntologyChange> changes) {
+		changed = true;
+	}
+
+	/**
+	 * One output: its writer, its files and, once written, how it went.
+	 */
+	private static final class Output implements Runnable {
+
+		/** The output name. */
+		final String name;
+
+		/** The writer. */
+		final Callable<?> writer;
+
+		/** The files written. */
+		final File[] files;
+
+		/** The failure of the writer, or null if it succeeded. */
+		Throwable failure;
+
+		/** The wall time of the writer. */
+		long nanos;
+
+		/**
+		 * Instantiates a new output.
+		 *
+		 * @param name
+		 *            the output name
+		 * @param writer
+		 *            the writer
+		 * @param files
+		 *            the files written
+		 */
+		Output(String name, Callable<?> writer, File[] files) {
+			this.name = name;
+			this.writer = writer;
+			this.files = files;
+		}
+
+		public void run() {
+			if (failure != null) {
+				return;
+			}
+			long start = System.nanoTime();
+			try {
+				writer.call();
+			} catch (Throwable t) {
+				failure = t;
+			}
+			nanos = System.nanoTime() - start;
+		}
+	}
+}
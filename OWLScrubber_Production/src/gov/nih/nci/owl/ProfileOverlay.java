@@ -0,0 +1,98 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.semanticweb.owl.model.AddAxiom;
+import org.semanticweb.owl.model.OWLException;
+import org.semanticweb.owl.model.OWLOntologyChange;
+import org.semanticweb.owl.model.OWLOntologyManager;
+import org.semanticweb.owl.model.RemoveAxiom;
+
+/**
+ * The changes one profile makes to the shared ontology. While the overlay is
+ * open it records every change the manager actually applies; closing it
+ * applies the inverse changes in reverse order, which brings the ontology back
+ * to the loaded base for the next profile without ever copying it.
+ *
+ * The changes are recorded from the list applyChanges returns rather than by
+ * listening to the manager: the manager tells its listeners about every change
+ * asked for, including adding an axiom already there or removing one that is
+ * not, and undoing those would damage the base.
+ */
+final class ProfileOverlay {
+
+	/** The manager. */
+	private final OWLOntologyManager manager;
+
+	/** The applied changes, in order. */
+	private final List<OWLOntologyChange> changes = new ArrayList<OWLOntologyChange>();
+
+	/**
+	 * Opens an overlay on the ontologies of a manager.
+	 *
+	 * @param manager
+	 *            the manager
+	 */
+	ProfileOverlay(OWLOntologyManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * Checks whether the overlay records the changes of a manager.
+	 *
+	 * @param m
+	 *            the manager
+	 * @return true, if it is the manager of the base
+	 */
+	boolean covers(OWLOntologyManager m) {
+		return m == manager;
+	}
+
+	/**
+	 * Records changes the manager has applied.
+	 *
+	 * @param applied
+	 *            the changes that took effect, as returned by applyChanges
+	 */
+	void record(List<OWLOntologyChange> applied) {
+		changes.addAll(applied);
+	}
+
+	/**
+	 * Gets the number of changes recorded.
+	 *
+	 * @return the size
+	 */
+	int size() {
+		return changes.size();
+	}
+
+	/**
+	 * Undoes the recorded changes.
+	 *
+	 * @throws OWLException
+	 *             the OWL exception
+	 */
+	void close() throws OWLException {
+		List<OWLOntologyChange> inverse = new ArrayList<OWLOntologyChange>(
+				changes.size());
+		for (int i = changes.size() - 1; i >= 0; i--) {
+			OWLOntologyChange change = changes.get(i);
+			if (change instanceof AddAxiom) {
+				inverse.add(new RemoveAxiom(change.getOntology(), change
+						.getAxiom()));
+			} else if (change instanceof RemoveAxiom) {
+				inverse.add(new AddAxiom(change.getOntology(), change
+						.getAxiom()));
+			}
+		}
+		changes.clear();
+		manager.applyChanges(inverse);
+	}
+}
@@ -0,0 +1,223 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The qualifier tags used by the complex_del and qualified props_del rules of
+ * one property, compiled into a single Aho-Corasick automaton over their
+ * opening tags (e.g. &lt;ncicp:def-source&gt;). One scan of a literal finds
+ * every tag it holds and so every rule that can match it, in time linear in
+ * the length of the literal whatever the number of rules.
+ *
+ * A qualifier of a {@link ComplexValue} is always written as its opening tag,
+ * so a rule the scan does not report cannot match; a reported rule still has
+ * to be confirmed on the parsed value, since the tag may be that of a wrapping
+ * element or the qualifier value may differ.
+ *
+ * The automaton is not changed once built, so the sweep partitions share it.
+ */
+final class QualifierAutomaton {
+
+	/** The number of character classes, class 0 being any other character. */
+	private final int classCount;
+
+	/** The character class of each character up to the highest one used. */
+	private final int[] classes;
+
+	/** The transitions, by state times class count plus class. */
+	private final int[] next;
+
+	/** The patterns ending at each state, or null for none. */
+	private final int[][] outputs;
+
+	/** The rule indexes (in ruleIds) needing each pattern. */
+	private final int[][] patternRules;
+
+	/** The number of distinct patterns each rule needs. */
+	private final int[] needed;
+
+	/** The id of each rule. */
+	private final int[] ruleIds;
+
+	/** The ids of the rules without qualifiers, which match any literal. */
+	private final BitSet unqualified = new BitSet();
+
+	/**
+	 * Compiles the automaton for the tags of some rules.
+	 *
+	 * @param rules
+	 *            the complex and qualified property rules of one property
+	 */
+	QualifierAutomaton(List<ScrubRule> rules) {
+		Map<String, Integer> patternIds = new HashMap<String, Integer>();
+		List<String> patterns = new ArrayList<String>();
+		List<List<Integer>> users = new ArrayList<List<Integer>>();
+		ruleIds = new int[rules.size()];
+		needed = new int[rules.size()];
+		for (int r = 0; r < rules.size(); r++) {
+			ScrubRule rule = rules.get(r);
+			ruleIds[r] = rule.id;
+			List<String> tags = new ArrayList<String>();
+			if (rule.type == ScrubRule.Type.COMPLEX) {
+				tags.add(rule.tag);
+			} else {
+				for (String[] q : rule.qualifiers) {
+					tags.add(q[0]);
+				}
+			}
+			for (String tag : tags) {
+				String pattern = "<" + tag + ">";
+				Integer id = patternIds.get(pattern);
+				if (id == null) {
+					id = patterns.size();
+					patternIds.put(pattern, id);
+					patterns.add(pattern);
+					users.add(new ArrayList<Integer>());
+				}
+				List<Integer> u = users.get(id);
+				if (u.isEmpty() || u.get(u.size() - 1) != r) {
+					u.add(r);
+					needed[r]++;
+				}
+			}
+		}
+		for (int r = 0; r < needed.length; r++) {
+			if (needed[r] == 0) {
+				unqualified.set(ruleIds[r]);
+			}
+		}
+		patternRules = new int[patterns.size()][];
+		for (int p = 0; p < patternRules.length; p++) {
+			List<Integer> u = users.get(p);
+			patternRules[p] = new int[u.size()];
+			for (int i = 0; i < u.size(); i++) {
+				patternRules[p][i] = u.get(i);
+			}
+		}
+
+		// the characters of the patterns, each its own class
+		char maxChar = 0;
+		for (String pattern : patterns) {
+			for (int i = 0; i < pattern.length(); i++) {
+				maxChar = (char) Math.max(maxChar, pattern.charAt(i));
+			}
+		}
+		classes = new int[maxChar + 1];
+		int count = 1;
+		for (String pattern : patterns) {
+			for (int i = 0; i < pattern.length(); i++) {
+				char c = pattern.charAt(i);
+				if (classes[c] == 0) {
+					classes[c] = count++;
+				}
+			}
+		}
+		classCount = count;
+
+		// the trie of the patterns
+		List<int[]> trie = new ArrayList<int[]>();
+		List<List<Integer>> ends = new ArrayList<List<Integer>>();
+		trie.add(new int[classCount]);
+		ends.add(new ArrayList<Integer>());
+		for (int p = 0; p < patterns.size(); p++) {
+			String pattern = patterns.get(p);
+			int state = 0;
+			for (int i = 0; i < pattern.length(); i++) {
+				int c = classes[pattern.charAt(i)];
+				if (trie.get(state)[c] == 0) {
+					trie.get(state)[c] = trie.size();
+					trie.add(new int[classCount]);
+					ends.add(new ArrayList<Integer>());
+				}
+				state = trie.get(state)[c];
+			}
+			ends.get(state).add(p);
+		}
+
+		// complete the transitions along the failure links, breadth first
+		int states = trie.size();
+		next = new int[states * classCount];
+		outputs = new int[states][];
+		int[] fail = new int[states];
+		int[] queue = new int[states];
+		int head = 0;
+		int tail = 0;
+		for (int c = 1; c < classCount; c++) {
+			int child = trie.get(0)[c];
+			next[c] = child;
+			if (child != 0) {
+				queue[tail++] = child;
+			}
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			ends.get(state).addAll(ends.get(fail[state]));
+			for (int c = 1; c < classCount; c++) {
+				int child = trie.get(state)[c];
+				int fallback = next[fail[state] * classCount + c];
+				if (child != 0) {
+					fail[child] = fallback;
+					next[state * classCount + c] = child;
+					queue[tail++] = child;
+				} else {
+					next[state * classCount + c] = fallback;
+				}
+			}
+		}
+		for (int s = 0; s < states; s++) {
+			List<Integer> e = ends.get(s);
+			if (!e.isEmpty()) {
+				outputs[s] = new int[e.size()];
+				for (int i = 0; i < e.size(); i++) {
+					outputs[s][i] = e.get(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scans a literal for the tags of the rules.
+	 *
+	 * @param literal
+	 *            the literal
+	 * @return the ids of the rules whose tags all occur in the literal
+	 */
+	BitSet scan(String literal) {
+		BitSet candidates = (BitSet) unqualified.clone();
+		boolean[] seen = new boolean[patternRules.length];
+		int[] found = new int[needed.length];
+		int left = patternRules.length;
+		int state = 0;
+		for (int i = 0, n = literal.length(); i < n && left > 0; i++) {
+			char ch = literal.charAt(i);
+			int c = ch < classes.length ? classes[ch] : 0;
+			state = c == 0 ? 0 : next[state * classCount + c];
+			int[] out = outputs[state];
+			if (out == null) {
+				continue;
+			}
+			for (int p : out) {
+				if (seen[p]) {
+					continue;
+				}
+				seen[p] = true;
+				left--;
+				for (int r : patternRules[p]) {
+					if (++found[r] == needed[r]) {
+						candidates.set(ruleIds[r]);
+					}
+				}
+			}
+		}
+		return candidates;
+	}
+}
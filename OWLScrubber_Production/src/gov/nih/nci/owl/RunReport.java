@@ -0,0 +1,466 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the phases of a run: load, branches, individuals, the rule sweep,
+ * fixReferences and the output stage. For each phase it records the wall
+ * time, the CPU time of the process, the bytes allocated by all threads, the heap
+ * high-water mark (the sum of the peaks of the heap pools) and the axioms
+ * examined and changed, plus per item counts such as the classes removed
+ * under each branch or the values matched by each rule. On a JVM with the
+ * Flight Recorder every phase is also committed as a {@link ScrubPhaseEvent},
+ * and the whole run can be written out as JSON.
+ *
+ * Phases run one after another: begin ends the phase before it. Counts
+ * given while no phase is open are ignored, so the scrubber methods can
+ * report unconditionally. Counts may come from several threads at once, as
+ * in the output stage, where the flat file and the ontology are written
+ * together.
+ */
+final class RunReport {
+
+	/** The threads, for CPU time and allocation. */
+	private static final ThreadMXBean THREADS = ManagementFactory
+			.getThreadMXBean();
+
+	/** The allocation counters, or null if the JVM has none. */
+	private static final com.sun.management.ThreadMXBean ALLOCATION;
+
+	/** The process CPU time, or null if the JVM does not give it. */
+	private static final com.sun.management.OperatingSystemMXBean OS;
+
+	/**
+	 * The Flight Recorder event class, or null if the JVM has no jdk.jfr. It
+	 * is only loaded by name, so the scrubber runs, and builds, without it.
+	 */
+	private static final Class<?> EVENT;
+
+	static {
+		if (THREADS instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) THREADS)
+						.isThreadAllocatedMemorySupported()) {
+			ALLOCATION = (com.sun.management.ThreadMXBean) THREADS;
+			ALLOCATION.setThreadAllocatedMemoryEnabled(true);
+		} else {
+			ALLOCATION = null;
+		}
+		Object os = ManagementFactory.getOperatingSystemMXBean();
+		OS = os instanceof com.sun.management.OperatingSystemMXBean ? (com.sun.management.OperatingSystemMXBean) os
+				: null;
+		if (THREADS.isCurrentThreadCpuTimeSupported()) {
+			THREADS.setThreadCpuTimeEnabled(true);
+		}
+		Class<?> event = null;
+		try {
+			Class.forName("jdk.jfr.Event");
+			event = Class.forName("gov.nih.nci.owl.ScrubPhaseEvent");
+		} catch (ClassNotFoundException e) {
+			// no Flight Recorder, or built without the event
+		} catch (LinkageError e) {
+			// no Flight Recorder
+		}
+		EVENT = event;
+	}
+
+	/** The heap memory pools, for the high-water mark. */
+	private final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+
+	/** The finished phases. */
+	private final List<Phase> phases = new ArrayList<Phase>();
+
+	/** The open phase, or null. */
+	private Phase current;
+
+	/** The profile the next phases belong to. */
+	private String profile = "";
+
+	/** When the run started. */
+	private final Date started = new Date();
+
+	/**
+	 * Instantiates a new run report.
+	 */
+	RunReport() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				heapPools.add(pool);
+			}
+		}
+	}
+
+	/**
+	 * Sets the profile the next phases belong to.
+	 *
+	 * @param profile
+	 *            the profile name, or null for none
+	 */
+	void setProfile(String profile) {
+		this.profile = profile == null ? "" : profile;
+	}
+
+	/**
+	 * Begins a phase, ending the open one if there is one.
+	 *
+	 * @param name
+	 *            the phase name
+	 */
+	synchronized void begin(String name) {
+		end();
+		for (MemoryPoolMXBean pool : heapPools) {
+			if (pool.isValid()) {
+				pool.resetPeakUsage();
+			}
+		}
+		current = new Phase(profile, name);
+	}
+
+	/**
+	 * Ends the open phase, if there is one.
+	 */
+	synchronized void end() {
+		if (current == null) {
+			return;
+		}
+		long heapPeak = 0;
+		for (MemoryPoolMXBean pool : heapPools) {
+			if (pool.isValid()) {
+				heapPeak += pool.getPeakUsage().getUsed();
+			}
+		}
+		current.finish(heapPeak);
+		phases.add(current);
+		current = null;
+	}
+
+	/**
+	 * Adds to the axioms examined by the open phase.
+	 *
+	 * @param count
+	 *            the number of axioms
+	 */
+	synchronized void examined(long count) {
+		if (current != null) {
+			current.examined += count;
+		}
+	}
+
+	/**
+	 * Adds to the axioms changed by the open phase.
+	 *
+	 * @param count
+	 *            the number of axioms
+	 */
+	synchronized void changed(long count) {
+		if (current != null) {
+			current.changed += count;
+		}
+	}
+
+	/**
+	 * Adds to a count of the open phase, such as the classes removed under a
+	 * branch or the values matched by a rule.
+	 *
+	 * @param item
+	 *            the branch, rule or other item counted
+	 * @param count
+	 *            the count
+	 */
+	synchronized void detail(String item, long count) {
+		if (current != null) {
+			Long old = current.details.get(item);
+			current.details.put(item, old == null ? count : old + count);
+		}
+	}
+
+	/**
+	 * Checks whether a phase is open.
+	 *
+	 * @return true, if counts are being recorded
+	 */
+	synchronized boolean isRecording() {
+		return current != null;
+	}
+
+	/**
+	 * Writes the report as JSON.
+	 *
+	 * @param file
+	 *            the file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void write(String file) throws IOException {
+		PrintWriter pw = new PrintWriter(new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+		try {
+			write(pw);
+		} finally {
+			pw.close();
+		}
+	}
+
+	/**
+	 * Writes the report as JSON, e.g. into the status of a daemon job.
+	 *
+	 * @param pw
+	 *            the writer, left open
+	 */
+	synchronized void write(PrintWriter pw) {
+		end();
+		pw.println("{");
+		pw.println("  \"started\": "
+				+ quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ")
+						.format(started)) + ",");
+		pw.println("  \"processors\": "
+				+ Runtime.getRuntime().availableProcessors() + ",");
+		pw.println("  \"maxHeapBytes\": " + Runtime.getRuntime().maxMemory()
+				+ ",");
+		pw.println("  \"phases\": [");
+		for (int i = 0; i < phases.size(); i++) {
+			Phase p = phases.get(i);
+			pw.print("    {\"profile\": " + quote(p.profile)
+					+ ", \"phase\": " + quote(p.name) + ", \"wallNanos\": "
+					+ p.wall + ", \"cpuNanos\": " + p.cpu
+					+ ", \"allocatedBytes\": " + p.allocated
+					+ ", \"heapPeakBytes\": " + p.heapPeak
+					+ ", \"axiomsExamined\": " + p.examined
+					+ ", \"axiomsChanged\": " + p.changed);
+			if (!p.details.isEmpty()) {
+				pw.print(", \"details\": {");
+				boolean first = true;
+				for (Map.Entry<String, Long> e : p.details.entrySet()) {
+					pw.print((first ? "" : ", ") + quote(e.getKey()) + ": "
+							+ e.getValue());
+					first = false;
+				}
+				pw.print("}");
+			}
+			pw.println(i == phases.size() - 1 ? "}" : "},");
+		}
+		pw.println("  ]");
+		pw.println("}");
+	}
+
+	/**
+	 * Quotes a string for JSON.
+	 *
+	 * @param s
+	 *            the string
+	 * @return the quoted string
+	 */
+	static String quote(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * Gets the CPU time used so far, by the whole process if the JVM says,
+	 * otherwise by the current thread.
+	 *
+	 * @return the CPU time in nanoseconds
+	 */
+	private static long cpuTime() {
+		if (OS != null) {
+			long time = OS.getProcessCpuTime();
+			if (time >= 0) {
+				return time;
+			}
+		}
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS
+				.getCurrentThreadCpuTime() : 0;
+	}
+
+	/**
+	 * Gets the bytes allocated so far by each live thread.
+	 *
+	 * @return the bytes by thread id
+	 */
+	private static Map<Long, Long> allocatedBytes() {
+		Map<Long, Long> bytes = new HashMap<Long, Long>();
+		if (ALLOCATION != null) {
+			long[] ids = ALLOCATION.getAllThreadIds();
+			long[] allocated = ALLOCATION.getThreadAllocatedBytes(ids);
+			for (int i = 0; i < ids.length; i++) {
+				if (allocated[i] >= 0) {
+					bytes.put(ids[i], allocated[i]);
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Starts a Flight Recorder event for a phase.
+	 *
+	 * @return the event, or null if the JVM has no Flight Recorder
+	 */
+	private static PhaseEvent beginEvent() {
+		if (EVENT == null) {
+			return null;
+		}
+		try {
+			PhaseEvent event = (PhaseEvent) EVENT.getDeclaredConstructor()
+					.newInstance();
+			event.begin();
+			return event;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * A Flight Recorder event of a phase, implemented by
+	 * {@link ScrubPhaseEvent} on a JVM that has one.
+	 */
+	interface PhaseEvent {
+
+		/**
+		 * Starts timing the event.
+		 */
+		void begin();
+
+		/**
+		 * Stops timing the event and commits it with the figures of the
+		 * phase, if the recording wants it.
+		 *
+		 * @param profile
+		 *            the profile
+		 * @param phase
+		 *            the phase name
+		 * @param cpuTime
+		 *            the CPU time
+		 * @param allocated
+		 *            the bytes allocated
+		 * @param heapPeak
+		 *            the heap high-water mark
+		 * @param examined
+		 *            the axioms examined
+		 * @param changed
+		 *            the axioms changed
+		 */
+		void finish(String profile, String phase, long cpuTime,
+				long allocated, long heapPeak, long examined, long changed);
+	}
+
+	/**
+	 * The figures of one phase.
+	 */
+	private static final class Phase {
+
+		/** The profile. */
+		final String profile;
+
+		/** The phase name. */
+		final String name;
+
+		/** The Flight Recorder event, or null. */
+		final PhaseEvent event;
+
+		/** The start times. */
+		final long wallStart, cpuStart;
+
+		/** The bytes allocated by each thread at the start. */
+		final Map<Long, Long> allocatedStart;
+
+		/** The wall time, CPU time and bytes allocated. */
+		long wall, cpu, allocated;
+
+		/** The heap high-water mark. */
+		long heapPeak;
+
+		/** The axioms examined and changed. */
+		long examined, changed;
+
+		/** The per item counts. */
+		final Map<String, Long> details = new LinkedHashMap<String, Long>();
+
+		/**
+		 * Starts a phase.
+		 *
+		 * @param profile
+		 *            the profile
+		 * @param name
+		 *            the phase name
+		 */
+		Phase(String profile, String name) {
+			this.profile = profile;
+			this.name = name;
+			event = beginEvent();
+			allocatedStart = allocatedBytes();
+			cpuStart = cpuTime();
+			wallStart = System.nanoTime();
+		}
+
+		/**
+		 * Takes the figures at the end of the phase and commits its event.
+		 * Threads are counted from their allocation at the start, or from
+		 * zero if they started during the phase; a thread that both started
+		 * and ended during the phase is missed, which is why the scrubber
+		 * keeps one worker pool for the whole run.
+		 *
+		 * @param heapPeak
+		 *            the heap high-water mark
+		 */
+		void finish(long heapPeak) {
+			wall = System.nanoTime() - wallStart;
+			cpu = cpuTime() - cpuStart;
+			for (Map.Entry<Long, Long> e : allocatedBytes().entrySet()) {
+				Long start = allocatedStart.get(e.getKey());
+				allocated += e.getValue() - (start == null ? 0 : start);
+			}
+			this.heapPeak = heapPeak;
+			if (event != null) {
+				event.finish(profile, name, cpu, allocated, heapPeak,
+						examined, changed);
+			}
+		}
+	}
+}
@@ -0,0 +1,380 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The hashes of the top level elements of a stream mode output, kept beside
+ * it in a .hashes file so the next release can be scrubbed incrementally.
+ * For each element of the input it holds the hash of the element, taken with
+ * whether each class it names was removed, and where the scrubbed element
+ * went in the output, or that it was dropped. The scrubbed form of an element
+ * depends on nothing else but the scrub settings, whose hash heads the file,
+ * so an element of the new input whose hash is found can be copied from the
+ * previous output instead of scrubbed again.
+ *
+ * A cache is either read, for the previous output, or recorded, for the new
+ * one.
+ */
+final class ScrubCache {
+
+	/** The first bytes of a .hashes file. */
+	private static final int MAGIC = 0x4f534843;
+
+	/** The file format version. */
+	private static final int VERSION = 1;
+
+	/** The hash algorithm. */
+	private static final String ALGORITHM = "SHA-1";
+
+	/** The length of a hash. */
+	private static final int HASH_LENGTH = 20;
+
+	/** The number of counts kept for each element. */
+	static final int COUNTS = 4;
+
+	/** The hash of the scrub settings. */
+	private final byte[] settings;
+
+	/** The entries read, by hash. */
+	private final Map<ByteBuffer, Entry> entries;
+
+	/** The entries recorded, in the .hashes format. */
+	private final ByteArrayOutputStream recorded;
+
+	/** The entries recorded, as data. */
+	private final DataOutputStream data;
+
+	/** The number of entries recorded. */
+	private int size = 0;
+
+	/** The previous output, for the cache read. */
+	private final File output;
+
+	/** The size of the read buffer. */
+	private final int bufferSize;
+
+	/** The reader of the previous output. */
+	private Reader reader;
+
+	/** The character position of the reader. */
+	private long position;
+
+	/** The copy buffer. */
+	private final char[] chars = new char[8192];
+
+	/**
+	 * Instantiates a new cache to record.
+	 *
+	 * @param settings
+	 *            the hash of the scrub settings
+	 */
+	ScrubCache(byte[] settings) {
+		this.settings = settings;
+		this.entries = null;
+		this.recorded = new ByteArrayOutputStream(1 << 16);
+		this.data = new DataOutputStream(recorded);
+		this.output = null;
+		this.bufferSize = 0;
+	}
+
+	/**
+	 * Instantiates a cache read from a .hashes file.
+	 *
+	 * @param settings
+	 *            the hash of the scrub settings
+	 * @param entries
+	 *            the entries
+	 * @param output
+	 *            the previous output
+	 * @param bufferSize
+	 *            the size of the read buffer
+	 */
+	private ScrubCache(byte[] settings, Map<ByteBuffer, Entry> entries,
+			File output, int bufferSize) {
+		this.settings = settings;
+		this.entries = entries;
+		this.recorded = null;
+		this.data = null;
+		this.output = output;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Creates a digest for the element and settings hashes.
+	 *
+	 * @return the digest
+	 */
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM
+					+ " is required by the Java platform", e);
+		}
+	}
+
+	/**
+	 * Gets the .hashes file of an output.
+	 *
+	 * @param output
+	 *            the output file
+	 * @return the .hashes file, compressed if the output is
+	 */
+	static File getFile(File output) {
+		return FileStreams.sibling(output, ".hashes");
+	}
+
+	/**
+	 * Reads the cache of a previous output, if it can be used.
+	 *
+	 * @param output
+	 *            the previous output
+	 * @param settings
+	 *            the hash of the scrub settings
+	 * @param bufferSize
+	 *            the size of the read buffer
+	 * @return the cache, or null if there is none or it was made with other
+	 *         settings or for another file
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	static ScrubCache read(File output, byte[] settings, int bufferSize)
+			throws IOException {
+		File file = getFile(output);
+		if (!file.exists() || !output.exists()) {
+			System.out.println("No hashes for " + output
+					+ ", scrubbing in full.");
+			return null;
+		}
+		DataInputStream in = new DataInputStream(FileStreams.openInput(file,
+				bufferSize));
+		try {
+			byte[] previous = new byte[HASH_LENGTH];
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				System.out.println(file
+						+ " is not a hashes file of this version, scrubbing in full.");
+				return null;
+			}
+			in.readFully(previous);
+			if (!Arrays.equals(previous, settings)) {
+				System.out.println("The scrub settings changed since " + output
+						+ " was written, scrubbing in full.");
+				return null;
+			}
+			if (in.readLong() != output.length()) {
+				System.out.println(output
+						+ " changed since its hashes were written, scrubbing in full.");
+				return null;
+			}
+			int count = in.readInt();
+			Map<ByteBuffer, Entry> entries = new HashMap<ByteBuffer, Entry>(
+					count * 2);
+			for (int i = 0; i < count; i++) {
+				byte[] hash = new byte[HASH_LENGTH];
+				in.readFully(hash);
+				long offset = in.readLong();
+				int length = in.readInt();
+				int[] counts = new int[COUNTS];
+				for (int c = 0; c < COUNTS; c++) {
+					counts[c] = in.readInt();
+				}
+				entries.put(ByteBuffer.wrap(hash), new Entry(offset, length,
+						counts));
+			}
+			return new ScrubCache(settings, entries, output, bufferSize);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Gets the number of entries.
+	 *
+	 * @return the number of elements read or recorded
+	 */
+	int size() {
+		return entries != null ? entries.size() : size;
+	}
+
+	/**
+	 * Looks up an element of the previous output.
+	 *
+	 * @param hash
+	 *            the hash of the element
+	 * @return the entry, or null if the element is new or changed
+	 */
+	Entry get(byte[] hash) {
+		return entries.get(ByteBuffer.wrap(hash));
+	}
+
+	/**
+	 * Copies a scrubbed element from the previous output. Elements come in
+	 * about the order of the previous output, so it is read forward and only
+	 * reopened when an element is further back.
+	 *
+	 * @param entry
+	 *            the entry of the element, which was not dropped
+	 * @param out
+	 *            the writer the element is copied to
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void copy(Entry entry, Writer out) throws IOException {
+		if (reader == null || entry.offset < position) {
+			if (reader != null) {
+				reader.close();
+			}
+			reader = new InputStreamReader(FileStreams.openInput(output,
+					bufferSize), "UTF8");
+			position = 0;
+		}
+		long skip = entry.offset - position;
+		while (skip > 0) {
+			long n = reader.skip(skip);
+			if (n <= 0) {
+				throw new EOFException(output + " ended before offset "
+						+ entry.offset);
+			}
+			skip -= n;
+		}
+		int remaining = entry.length;
+		while (remaining > 0) {
+			int n = reader.read(chars, 0, Math.min(remaining, chars.length));
+			if (n < 0) {
+				throw new EOFException(output + " ended within the element at "
+						+ entry.offset);
+			}
+			out.write(chars, 0, n);
+			remaining -= n;
+		}
+		position = entry.offset + entry.length;
+	}
+
+	/**
+	 * Closes the previous output.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void close() throws IOException {
+		if (reader != null) {
+			reader.close();
+			reader = null;
+		}
+	}
+
+	/**
+	 * Records an element of the new output.
+	 *
+	 * @param hash
+	 *            the hash of the element
+	 * @param offset
+	 *            the character offset of the scrubbed element in the output,
+	 *            or -1 if it was dropped
+	 * @param length
+	 *            the length of the scrubbed element in characters
+	 * @param counts
+	 *            the classes, values and individuals the scrub removed or
+	 *            changed
+	 */
+	void add(byte[] hash, long offset, int length, int[] counts) {
+		try {
+			data.write(hash);
+			data.writeLong(offset);
+			data.writeInt(length);
+			for (int c = 0; c < COUNTS; c++) {
+				data.writeInt(counts[c]);
+			}
+		} catch (IOException e) {
+			// a ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		size++;
+	}
+
+	/**
+	 * Writes the recorded entries beside the new output, once it is closed.
+	 *
+	 * @param output
+	 *            the new output
+	 * @param bufferSize
+	 *            the size of the write buffer
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void write(File output, int bufferSize) throws IOException {
+		OutputStream os = FileStreams.openOutput(getFile(output), bufferSize);
+		try {
+			DataOutputStream out = new DataOutputStream(os);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.write(settings);
+			out.writeLong(output.length());
+			out.writeInt(size);
+			recorded.writeTo(out);
+			out.flush();
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Where a scrubbed element went in an output.
+	 */
+	static final class Entry {
+
+		/** The character offset, or -1 if the element was dropped. */
+		final long offset;
+
+		/** The length in characters. */
+		final int length;
+
+		/** The classes, values and individuals the scrub removed or changed. */
+		final int[] counts;
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param offset
+		 *            the character offset, or -1 if the element was dropped
+		 * @param length
+		 *            the length in characters
+		 * @param counts
+		 *            the counts of the scrub
+		 */
+		Entry(long offset, int length, int[] counts) {
+			this.offset = offset;
+			this.length = length;
+			this.counts = counts;
+		}
+
+		/**
+		 * Checks whether the element was dropped.
+		 *
+		 * @return true, if the scrub dropped the element
+		 */
+		boolean isDropped() {
+			return offset < 0;
+		}
+	}
+}
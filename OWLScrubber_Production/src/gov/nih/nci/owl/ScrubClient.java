@@ -0,0 +1,213 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * The command line of the scrub daemon: takes the OWLScrubber flags, runs
+ * them as a job of the daemon, prints what the job prints and exits with the
+ * job's exit status, so a script can call it in place of OWLScrubber. If no
+ * daemon is listening, the scrub runs in this process instead.
+ *
+ * The daemon resolves relative paths against its own working directory. Its
+ * requests carry the token the daemon of this user wrote for the port, see
+ * {@link DaemonToken}.
+ */
+public class ScrubClient {
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments: optionally --Port [port], then --Status,
+	 *            --Stop or the OWLScrubber options
+	 */
+	public static void main(String[] args) {
+		int port = ScrubServer.DEFAULT_PORT;
+		if (args.length > 1 && args[0].equalsIgnoreCase("--Port")) {
+			port = Integer.parseInt(args[1]);
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		String base = "http://127.0.0.1:" + port;
+		try {
+			String token = DaemonToken.read(port);
+			if (args.length == 1 && args[0].equalsIgnoreCase("--Status")) {
+				System.out.print(request(base + "/status", "GET", null, token));
+				return;
+			}
+			if (args.length == 1 && args[0].equalsIgnoreCase("--Stop")) {
+				System.out.print(request(base + "/shutdown", "POST", "", token));
+				return;
+			}
+			StringBuilder body = new StringBuilder();
+			for (String arg : args) {
+				body.append(arg).append('\n');
+			}
+			String job;
+			try {
+				if (token == null) {
+					throw new ConnectException("No token for port " + port);
+				}
+				job = request(base + "/jobs", "POST", body.toString(), token);
+			} catch (ConnectException e) {
+				System.out.println("No scrub daemon on port " + port
+						+ ", scrubbing in this process.");
+				OWLScrubber.main(args);
+				return;
+			}
+			String id = field(job, "id");
+			follow(base + "/jobs/" + id + "/output", System.out, token);
+			String status = field(request(base + "/jobs/" + id, "GET", null,
+					token), "exitStatus");
+			System.exit(Integer.parseInt(status));
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Makes a request of the daemon.
+	 *
+	 * @param url
+	 *            the url
+	 * @param method
+	 *            GET or POST
+	 * @param body
+	 *            the body of a POST, or null
+	 * @param token
+	 *            the daemon's token, or null
+	 * @return the response
+	 * @throws IOException
+	 *             if the daemon cannot be reached or refuses the request
+	 */
+	private static String request(String url, String method, String body,
+			String token) throws IOException {
+		HttpURLConnection conn = open(url, token);
+		conn.setRequestMethod(method);
+		conn.setRequestProperty("X-Directory", System.getProperty("user.dir"));
+		if (body != null) {
+			conn.setDoOutput(true);
+			conn.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+			OutputStream os = conn.getOutputStream();
+			try {
+				os.write(body.getBytes("UTF-8"));
+			} finally {
+				os.close();
+			}
+		}
+		int code = conn.getResponseCode();
+		InputStream in = code < 300 ? conn.getInputStream() : conn
+				.getErrorStream();
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		copy(in, response);
+		String text = response.toString("UTF-8");
+		if (code >= 300) {
+			throw new IOException("The scrub daemon refused the request ("
+					+ code + "): " + text.trim());
+		}
+		return text;
+	}
+
+	/**
+	 * Copies what a job prints, as it prints it.
+	 *
+	 * @param url
+	 *            the url of the job output
+	 * @param out
+	 *            the stream copied to
+	 * @param token
+	 *            the daemon's token
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void follow(String url, OutputStream out, String token)
+			throws IOException {
+		copy(open(url, token).getInputStream(), out);
+	}
+
+	/**
+	 * Opens a connection to the daemon.
+	 *
+	 * @param url
+	 *            the url
+	 * @param token
+	 *            the daemon's token, or null
+	 * @return the connection
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static HttpURLConnection open(String url, String token)
+			throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(url)
+				.openConnection();
+		if (token != null) {
+			conn.setRequestProperty(DaemonToken.HEADER, token);
+		}
+		return conn;
+	}
+
+	/**
+	 * Copies a stream to the end, flushing as it goes.
+	 *
+	 * @param in
+	 *            the stream, closed at the end
+	 * @param out
+	 *            the stream copied to
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void copy(InputStream in, OutputStream out)
+			throws IOException {
+		if (in == null) {
+			return;
+		}
+		byte[] buffer = new byte[8192];
+		try {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+				out.flush();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a number from the daemon's JSON.
+	 *
+	 * @param json
+	 *            the JSON object
+	 * @param name
+	 *            the field, whose value is a number
+	 * @return the value
+	 * @throws IOException
+	 *             if the field is missing
+	 */
+	private static String field(String json, String name) throws IOException {
+		String key = "\"" + name + "\": ";
+		int start = json.indexOf(key);
+		if (start < 0) {
+			throw new IOException("No " + name + " in " + json);
+		}
+		start += key.length();
+		int end = start;
+		while (end < json.length()
+				&& (Character.isDigit(json.charAt(end)) || json.charAt(end) == '-')) {
+			end++;
+		}
+		return json.substring(start, end);
+	}
+}
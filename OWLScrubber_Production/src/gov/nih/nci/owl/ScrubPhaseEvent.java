@@ -0,0 +1,75 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A Flight Recorder event for one phase of a scrub run, committed by
+ * {@link RunReport} with the same figures it writes to the run report.
+ * Record a run with -XX:StartFlightRecording to see the phases on the
+ * timeline next to the GC and allocation events.
+ *
+ * RunReport loads this class by name and only if jdk.jfr is there (JDK 11,
+ * or 8u262 and later); the build leaves it out on a JDK without it.
+ */
+@Name("gov.nih.nci.owl.ScrubPhase")
+@Label("Scrub Phase")
+@Category("OWLScrubber")
+@Description("One phase of a scrub run")
+class ScrubPhaseEvent extends jdk.jfr.Event implements RunReport.PhaseEvent {
+
+	/** The profile, empty for the load. */
+	@Label("Profile")
+	String profile;
+
+	/** The phase. */
+	@Label("Phase")
+	String phase;
+
+	/** The process CPU time used. */
+	@Label("CPU Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long cpuTime;
+
+	/** The bytes allocated. */
+	@Label("Allocated")
+	@DataAmount
+	long allocated;
+
+	/** The heap high-water mark. */
+	@Label("Heap Peak")
+	@DataAmount
+	long heapPeak;
+
+	/** The axioms examined. */
+	@Label("Axioms Examined")
+	long examined;
+
+	/** The axioms changed. */
+	@Label("Axioms Changed")
+	long changed;
+
+	public void finish(String profile, String phase, long cpuTime,
+			long allocated, long heapPeak, long examined, long changed) {
+		end();
+		if (shouldCommit()) {
+			this.profile = profile;
+			this.phase = phase;
+			this.cpuTime = cpuTime;
+			this.allocated = allocated;
+			this.heapPeak = heapPeak;
+			this.examined = examined;
+			this.changed = changed;
+			commit();
+		}
+	}
+}
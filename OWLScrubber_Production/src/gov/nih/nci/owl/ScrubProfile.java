@@ -0,0 +1,95 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.net.URI;
+import java.util.EnumSet;
+import java.util.Vector;
+
+/**
+ * The settings read from one owlscrubber.properties file: where to read and
+ * write, and the branch_delete, props_delete, complex_delete and
+ * complex_simplify rules. Several profiles (e.g. NCI, MEME and FTP) can be run
+ * against one loaded ontology.
+ */
+final class ScrubProfile {
+
+	/** The properties file the profile was read from. */
+	final String configFile;
+
+	/** The ontology namespace. */
+	String namespace;
+
+	/** The uri of the input file. */
+	URI inputURI;
+
+	/** The uri where the output file should be written. */
+	URI saveURI;
+
+	/** The uri where the flat file should be written, or null for none. */
+	URI flatFileURI;
+
+	/** The estimated bytes of flat file lines held before spilling to disk. */
+	long flatMemoryBudget = FlatFileWriter.DEFAULT_MEMORY_BUDGET;
+
+	/** The size of the file I/O buffers. */
+	int ioBufferSize = FileStreams.DEFAULT_BUFFER_SIZE;
+
+	/** The directory of the input snapshots, or null for none. */
+	String snapshotDir;
+
+	/** The size limit of the snapshot directory. */
+	long snapshotMaxBytes = OntologySnapshot.DEFAULT_MAX_BYTES;
+
+	/** The file listing each association removed by fixReferences (optional) */
+	String associationReportFile;
+
+	/** Should classes and properties be saved under their codes. */
+	boolean byCode = false;
+
+	/** The output encoding: utf-8, ascii or both. */
+	String outputEncoding = "utf-8";
+
+	/** The uri of the ascii copy when both encodings are written, or null. */
+	URI asciiSaveURI;
+
+	/** The formatOWL.pl rewrites made as the output is written. */
+	EnumSet<OutputRewriter.Rewrite> outputRewrites = EnumSet
+			.noneOf(OutputRewriter.Rewrite.class);
+
+	/** The share of the axioms removed at once that rebuilds the ontology. */
+	double rebuildRatio = 0;
+
+	/** Should subclass restrictions repeated in an equivalent class go. */
+	boolean removeDuplicateRestrictions = false;
+
+	/** The branches to delete. */
+	Vector<String> branchesToDelete;
+
+	/** The properties to delete. */
+	Vector<String> propertiesToDelete;
+
+	/** The complex data to delete. */
+	Vector<String> complexDataToDelete;
+
+	/** The complex properties to simplify. */
+	Vector<String> complexPropsToSimplify;
+
+	/**
+	 * Instantiates a new scrub profile.
+	 *
+	 * @param configFile
+	 *            the properties file
+	 */
+	ScrubProfile(String configFile) {
+		this.configFile = configFile;
+	}
+
+	@Override
+	public String toString() {
+		return configFile;
+	}
+}
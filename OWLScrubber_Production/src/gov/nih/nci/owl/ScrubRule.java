@@ -0,0 +1,155 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+/**
+ * A single scrub rule, compiled from one line of complex_del.txt or
+ * props_del.txt.
+ */
+class ScrubRule {
+
+	/** The kinds of rule the scrubber knows how to apply. */
+	enum Type {
+		/** Remove one qualifier tag from a complex property value */
+		COMPLEX,
+		/** Remove every value of a property */
+		PROPERTY,
+		/** Remove the values of a property that carry all given qualifiers */
+		QUALIFIED_PROPERTY,
+		/** Construct a simple property from a qualifier of a complex one */
+		CLEAN_PROPERTY
+	}
+
+	/** The rule type. */
+	final Type type;
+
+	/** The id of the property the rule applies to. */
+	final String property;
+
+	/**
+	 * The tag. For COMPLEX rules the (prefixed) qualifier to be removed, for
+	 * CLEAN_PROPERTY rules the qualifier whose value is copied.
+	 */
+	final String tag;
+
+	/**
+	 * The target. For CLEAN_PROPERTY rules the id of the property to be
+	 * created.
+	 */
+	final String target;
+
+	/**
+	 * The qualifiers. For QUALIFIED_PROPERTY rules the (prefixed) tag and value
+	 * pairs that must all be present.
+	 */
+	final String[][] qualifiers;
+
+	/**
+	 * The number of values the rule removed, rewrote or, for CLEAN_PROPERTY
+	 * rules, created.
+	 */
+	int hits = 0;
+
+	/** The position of the rule in its engine, which counts hits by it. */
+	int id = -1;
+
+	/**
+	 * Instantiates a new scrub rule.
+	 *
+	 * @param type
+	 *            the type
+	 * @param property
+	 *            the property
+	 * @param tag
+	 *            the tag
+	 * @param target
+	 *            the target
+	 * @param qualifiers
+	 *            the qualifiers
+	 */
+	private ScrubRule(Type type, String property, String tag, String target,
+			String[][] qualifiers) {
+		this.type = type;
+		this.property = property;
+		this.tag = tag;
+		this.target = target;
+		this.qualifiers = qualifiers;
+	}
+
+	/**
+	 * Creates a rule removing a qualifier from a complex property.
+	 *
+	 * @param property
+	 *            the complex property
+	 * @param tag
+	 *            the prefixed qualifier tag
+	 * @return the scrub rule
+	 */
+	static ScrubRule complex(String property, String tag) {
+		return new ScrubRule(Type.COMPLEX, property, tag, null, null);
+	}
+
+	/**
+	 * Creates a rule removing every value of a property.
+	 *
+	 * @param property
+	 *            the property
+	 * @return the scrub rule
+	 */
+	static ScrubRule property(String property) {
+		return new ScrubRule(Type.PROPERTY, property, null, null, null);
+	}
+
+	/**
+	 * Creates a rule removing the values of a property having all of the given
+	 * qualifiers.
+	 *
+	 * @param property
+	 *            the property
+	 * @param qualifiers
+	 *            the prefixed tag and value pairs
+	 * @return the scrub rule
+	 */
+	static ScrubRule qualifiedProperty(String property, String[][] qualifiers) {
+		return new ScrubRule(Type.QUALIFIED_PROPERTY, property, null, null,
+				qualifiers);
+	}
+
+	/**
+	 * Creates a rule constructing a clean property from a complex one.
+	 *
+	 * @param cleanProperty
+	 *            the id of the clean property to be created
+	 * @param complexProperty
+	 *            the id of the complex property to be processed
+	 * @param tag
+	 *            the qualifier holding the value
+	 * @return the scrub rule
+	 */
+	static ScrubRule cleanProperty(String cleanProperty,
+			String complexProperty, String tag) {
+		return new ScrubRule(Type.CLEAN_PROPERTY, complexProperty, tag,
+				cleanProperty, null);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(type.toString());
+		sb.append(' ').append(property);
+		if (tag != null) {
+			sb.append(' ').append(tag);
+		}
+		if (target != null) {
+			sb.append(" -> ").append(target);
+		}
+		if (qualifiers != null) {
+			for (String[] q : qualifiers) {
+				sb.append(' ').append(q[0]).append('=').append(q[1]);
+			}
+		}
+		return sb.toString();
+	}
+}
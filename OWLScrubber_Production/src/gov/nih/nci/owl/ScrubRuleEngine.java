@@ -0,0 +1,672 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.semanticweb.owl.model.AddAxiom;
+import org.semanticweb.owl.model.OWLAnnotationAxiom;
+import org.semanticweb.owl.model.OWLAxiom;
+import org.semanticweb.owl.model.OWLConstant;
+import org.semanticweb.owl.model.OWLEntity;
+import org.semanticweb.owl.model.OWLEntityAnnotationAxiom;
+import org.semanticweb.owl.model.OWLOntology;
+import org.semanticweb.owl.model.OWLOntologyChange;
+import org.semanticweb.owl.model.RemoveAxiom;
+
+/**
+ * Compiles the complex_del and props_del rules, plus empty value scrubbing,
+ * into one rule set that is evaluated in a single sweep of the axioms.
+ *
+ * Each axiom is run through the complex rules in file order (each rule seeing
+ * the result of the previous one), then checked against the property rules,
+ * the empty check and the clean property rules. The merged change list is the
+ * same as applying removeComplex, removeProperty, constructCleanProperty and
+ * removeEmpty one after another.
+ *
+ * Rules are keyed by the URI of the property they apply to, so an annotation
+ * axiom is only looked at by the rules for its own property and matching is
+ * done on the annotation URI and constant rather than on a rendering of the
+ * axiom.
+ *
+ * The sweep only reads the ontology, so a large one is cut into partitions
+ * evaluated at once in the worker pool. Each partition keeps its own changes,
+ * counts and associations, and these are merged in partition order, so the
+ * change list is the same as that of a sweep on one thread.
+ *
+ * The qualifier tags of the complex and qualified property rules of each
+ * property are compiled into one {@link QualifierAutomaton}, so a value is
+ * scanned once for all of them and only the rules whose tags it holds are
+ * checked against the parsed value.
+ */
+class ScrubRuleEngine {
+
+	/** The fewest axioms worth a partition of their own. */
+	private static final int MIN_PARTITION = 4096;
+
+	/** The partitions per worker thread, to even out uneven partitions. */
+	private static final int PARTITIONS_PER_THREAD = 4;
+
+	/** The scrubber providing namespace, prefix and axiom helpers. */
+	private final OWLScrubber scrubber;
+
+	/** The complex rules by property, in the order they were read. */
+	private final Map<URI, Vector<ScrubRule>> complexRules = new HashMap<URI, Vector<ScrubRule>>();
+
+	/** The simple and qualified property rules by property. */
+	private final Map<URI, Vector<ScrubRule>> propertyRules = new HashMap<URI, Vector<ScrubRule>>();
+
+	/** The clean property rules by complex property. */
+	private final Map<URI, Vector<ScrubRule>> cleanPropertyRules = new HashMap<URI, Vector<ScrubRule>>();
+
+	/** The data properties to be removed once their values are gone. */
+	private final Set<URI> dataPropertiesToRemove = new HashSet<URI>();
+
+	/** The qualifier automata by property, or null until compiled. */
+	private Map<URI, QualifierAutomaton> automata;
+
+	/** Every rule, in the order it was added. */
+	private final Vector<ScrubRule> allRules = new Vector<ScrubRule>();
+
+	/** Should empty values be scrubbed */
+	private boolean scrubEmpty = false;
+
+	/** The number of values removed for being empty. */
+	private int emptyRemoved = 0;
+
+	/** Receives the associations kept by the sweep (optional) */
+	private AssociationIndex associations;
+
+	/**
+	 * Instantiates a new scrub rule engine.
+	 *
+	 * @param scrubber
+	 *            the scrubber
+	 */
+	ScrubRuleEngine(OWLScrubber scrubber) {
+		this.scrubber = scrubber;
+	}
+
+	/**
+	 * Adds the rules from complex_del.txt.
+	 *
+	 * @param lines
+	 *            the lines of the file, may be null
+	 */
+	void addComplexRules(Vector<String> lines) {
+		if (lines != null) {
+			for (String line : lines) {
+				addComplexRule(line);
+			}
+		}
+	}
+
+	/**
+	 * Adds a complex rule of the form property\ttag.
+	 *
+	 * @param complex
+	 *            the line from complex_del.txt
+	 */
+	void addComplexRule(String complex) {
+		if (complex.contains("\t")) {
+			String[] values = complex.split("\t");
+			if (values.length > 1 && values[0] != null && values[1] != null) {
+				String tag = values[1];
+				if (scrubber.hasLiterals()) {
+					tag = scrubber.getPrefix() + tag;
+				}
+				addRule(complexRules, ScrubRule.complex(values[0], tag));
+			} else {
+				System.err
+						.println("Invalid parameters exist in file complex_del.txt");
+			}
+		} else {
+			System.err
+					.println("Invalid input format exists in file complex_del.txt.  Use <property>\\t<tag>");
+		}
+	}
+
+	/**
+	 * Adds the rules from props_del.txt.
+	 *
+	 * @param lines
+	 *            the lines of the file, may be null
+	 */
+	void addPropertyRules(Vector<String> lines) {
+		if (lines != null) {
+			for (String line : lines) {
+				addPropertyRule(line);
+			}
+		}
+	}
+
+	/**
+	 * Adds a property rule. A line without tabs removes the property, a line of
+	 * the form property\ttag\tvalue[\ttag\tvalue...] removes only the values
+	 * carrying all of the given qualifiers.
+	 *
+	 * @param property
+	 *            the line from props_del.txt
+	 */
+	void addPropertyRule(String property) {
+		if (!property.contains("\t")) {
+			addRule(propertyRules, ScrubRule.property(property));
+			dataPropertiesToRemove.add(scrubber.createURI(property));
+		} else {
+			String[] values = property.split("\t");
+			property = values[0];
+			if (values.length % 2 == 1) {
+				int pSize = (values.length - 1) / 2;
+				String[][] p = new String[pSize][2];
+				int pCount = 0;
+				for (int i = 1; i < values.length; i++) {
+					if (scrubber.hasLiterals()) {
+						p[pCount][0] = scrubber.getPrefix() + values[i];
+					} else {
+						p[pCount][0] = values[i];
+					}
+					p[pCount][1] = values[++i];
+					pCount++;
+				}
+				addQualifiedPropertyRule(property, p, pSize);
+			} else {
+				System.out
+						.println("Invalid input format exists for property ("
+								+ property + ") in file prop_del.txt.");
+			}
+		}
+	}
+
+	/**
+	 * Adds a qualified property rule.
+	 *
+	 * @param property
+	 *            the id of the property
+	 * @param p
+	 *            the prefixed tag and value pairs
+	 * @param pSize
+	 *            the number of pairs to use
+	 */
+	void addQualifiedPropertyRule(String property, String[][] p, int pSize) {
+		String[][] qualifiers = new String[pSize][];
+		for (int i = 0; i < pSize; i++) {
+			qualifiers[i] = new String[] { p[i][0], p[i][1] };
+		}
+		addRule(propertyRules, ScrubRule.qualifiedProperty(property,
+				qualifiers));
+	}
+
+	/**
+	 * Adds a clean property rule.
+	 *
+	 * @param cleanProperty
+	 *            the id of the clean property to be created
+	 * @param complexProperty
+	 *            the id of the complex property to be processed
+	 * @param complexTagName
+	 *            the qualifier holding the value
+	 */
+	void addCleanPropertyRule(String cleanProperty, String complexProperty,
+			String complexTagName) {
+		addRule(cleanPropertyRules, ScrubRule.cleanProperty(cleanProperty,
+				complexProperty, complexTagName));
+	}
+
+	/**
+	 * Adds a rule to a rule map under the uri of its property.
+	 *
+	 * @param rules
+	 *            the rule map
+	 * @param rule
+	 *            the rule
+	 */
+	private void addRule(Map<URI, Vector<ScrubRule>> rules, ScrubRule rule) {
+		URI propertyURI = scrubber.createURI(rule.property);
+		Vector<ScrubRule> v = rules.get(propertyURI);
+		if (v == null) {
+			v = new Vector<ScrubRule>();
+			rules.put(propertyURI, v);
+		}
+		v.add(rule);
+		rule.id = allRules.size();
+		allRules.add(rule);
+		automata = null;
+	}
+
+	/**
+	 * Compiles the qualifier automata of the rules, unless already done.
+	 */
+	private void compile() {
+		if (automata != null) {
+			return;
+		}
+		Map<URI, List<ScrubRule>> tagRules = new HashMap<URI, List<ScrubRule>>();
+		for (Map.Entry<URI, Vector<ScrubRule>> e : complexRules.entrySet()) {
+			tagRules.put(e.getKey(), new ArrayList<ScrubRule>(e.getValue()));
+		}
+		for (Map.Entry<URI, Vector<ScrubRule>> e : propertyRules.entrySet()) {
+			for (ScrubRule rule : e.getValue()) {
+				if (rule.type == ScrubRule.Type.QUALIFIED_PROPERTY) {
+					List<ScrubRule> v = tagRules.get(e.getKey());
+					if (v == null) {
+						v = new ArrayList<ScrubRule>();
+						tagRules.put(e.getKey(), v);
+					}
+					v.add(rule);
+				}
+			}
+		}
+		Map<URI, QualifierAutomaton> compiled = new HashMap<URI, QualifierAutomaton>();
+		for (Map.Entry<URI, List<ScrubRule>> e : tagRules.entrySet()) {
+			compiled.put(e.getKey(), new QualifierAutomaton(e.getValue()));
+		}
+		automata = compiled;
+	}
+
+	/**
+	 * Sets whether empty values should be scrubbed.
+	 *
+	 * @param scrubEmpty
+	 *            the new scrub empty
+	 */
+	void setScrubEmpty(boolean scrubEmpty) {
+		this.scrubEmpty = scrubEmpty;
+	}
+
+	/**
+	 * Sets the index that should receive every association kept by the
+	 * sweep, so fixReferences does not need to scan the ontology again.
+	 *
+	 * @param associations
+	 *            the association index
+	 */
+	void setAssociationIndex(AssociationIndex associations) {
+		this.associations = associations;
+	}
+
+	/**
+	 * Checks if the engine has nothing to do.
+	 *
+	 * @return true, if there are no rules and empty values are kept
+	 */
+	boolean isEmpty() {
+		return complexRules.isEmpty() && propertyRules.isEmpty()
+				&& cleanPropertyRules.isEmpty() && !scrubEmpty;
+	}
+
+	/**
+	 * Gets the rules, in the order they were added. Each carries the number
+	 * of values it matched so far.
+	 *
+	 * @return the rules
+	 */
+	Vector<ScrubRule> getRules() {
+		return allRules;
+	}
+
+	/**
+	 * Gets the number of values removed for being empty.
+	 *
+	 * @return the count
+	 */
+	int getEmptyRemoved() {
+		return emptyRemoved;
+	}
+
+	/**
+	 * Gets the data properties that should be removed after the sweep.
+	 *
+	 * @return the data property uris
+	 */
+	Set<URI> getDataPropertiesToRemove() {
+		return dataPropertiesToRemove;
+	}
+
+	/**
+	 * Sweeps the axioms of the ontology once, evaluating every rule against
+	 * each axiom.
+	 *
+	 * @param ontology
+	 *            the ontology
+	 * @return the merged changes, removals first
+	 */
+	List<OWLOntologyChange> sweep(OWLOntology ontology) {
+		return sweep(ontology, null);
+	}
+
+	/**
+	 * Sweeps the axioms of the ontology once, in partitions evaluated in the
+	 * worker pool when there are enough axioms. The ontology is not changed,
+	 * so the caller applies the changes on its own thread.
+	 *
+	 * @param ontology
+	 *            the ontology
+	 * @param pool
+	 *            the worker pool, or null to sweep on the calling thread
+	 * @return the merged changes, removals first
+	 */
+	List<OWLOntologyChange> sweep(final OWLOntology ontology, ForkJoinPool pool) {
+		compile();
+		final OWLAxiom[] axioms = ontology.getAxioms().toArray(
+				new OWLAxiom[0]);
+		int partitions = 1;
+		if (pool != null && pool.getParallelism() > 1) {
+			partitions = Math.min(pool.getParallelism()
+					* PARTITIONS_PER_THREAD, axioms.length / MIN_PARTITION);
+		}
+		if (partitions <= 1) {
+			Tally tally = new Tally();
+			for (OWLAxiom ax : axioms) {
+				evaluate(ontology, ax, tally);
+			}
+			return merge(Collections.singletonList(tally));
+		}
+		List<ForkJoinTask<Tally>> tasks = new ArrayList<ForkJoinTask<Tally>>(
+				partitions);
+		for (int p = 0; p < partitions; p++) {
+			final int from = (int) ((long) axioms.length * p / partitions);
+			final int to = (int) ((long) axioms.length * (p + 1) / partitions);
+			tasks.add(pool.submit(new Callable<Tally>() {
+				public Tally call() {
+					Tally tally = new Tally();
+					for (int i = from; i < to; i++) {
+						evaluate(ontology, axioms[i], tally);
+					}
+					return tally;
+				}
+			}));
+		}
+		List<Tally> tallies = new ArrayList<Tally>(partitions);
+		for (ForkJoinTask<Tally> task : tasks) {
+			tallies.add(task.join());
+		}
+		return merge(tallies);
+	}
+
+	/**
+	 * Merges the tallies of a sweep in axiom order: all removals, then all
+	 * additions, as one sequential sweep orders them. The counts go to the
+	 * rules and the associations to the association index.
+	 *
+	 * @param tallies
+	 *            the tallies, in partition order
+	 * @return the changes
+	 */
+	private List<OWLOntologyChange> merge(List<Tally> tallies) {
+		int size = 0;
+		for (Tally tally : tallies) {
+			size += tally.removals.size() + tally.additions.size();
+		}
+		List<OWLOntologyChange> changes = new ArrayList<OWLOntologyChange>(
+				size);
+		for (Tally tally : tallies) {
+			changes.addAll(tally.removals);
+		}
+		for (Tally tally : tallies) {
+			changes.addAll(tally.additions);
+			for (ScrubRule rule : allRules) {
+				rule.hits += tally.hits[rule.id];
+			}
+			emptyRemoved += tally.emptyRemoved;
+			if (associations != null) {
+				associations.addAll(tally.associations);
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Evaluates all rules against one axiom.
+	 *
+	 * @param ontology
+	 *            the ontology
+	 * @param ax
+	 *            the axiom
+	 * @param tally
+	 *            receives the changes, counts and associations
+	 */
+	private void evaluate(OWLOntology ontology, OWLAxiom ax, Tally tally) {
+		List<OWLOntologyChange> removals = tally.removals;
+		List<OWLOntologyChange> additions = tally.additions;
+		if (!(ax instanceof OWLAnnotationAxiom)) {
+			if (scrubEmpty && scrubber.isEmpty(ax)) {
+				removals.add(new RemoveAxiom(ontology, ax));
+				tally.emptyRemoved++;
+			}
+			return;
+		}
+		URI propertyURI = ((OWLAnnotationAxiom<?>) ax).getAnnotation()
+				.getAnnotationURI();
+		OWLAxiom current = ax;
+		OWLConstant constant = scrubber.getConstant(ax);
+		String literal = constant == null ? null : constant.getLiteral();
+
+		String scrubbed = scrubLiteral(propertyURI, literal,
+				ax instanceof OWLEntityAnnotationAxiom, tally);
+		boolean remove = scrubbed == null;
+		if (!remove && scrubbed != literal) {
+			OWLEntity ent = ((OWLEntityAnnotationAxiom) ax).getSubject();
+			current = scrubber.createComplexAxiom(ent, complexRules.get(
+					propertyURI).get(0).property, scrubbed);
+			literal = scrubbed;
+		}
+		if (!remove && scrubEmpty && scrubber.isEmpty(current)) {
+			remove = true;
+			tally.emptyRemoved++;
+		}
+
+		boolean changed = current != ax;
+		if (remove || changed) {
+			removals.add(new RemoveAxiom(ontology, ax));
+		}
+		if (remove) {
+			return;
+		}
+		if (changed) {
+			additions.add(new AddAxiom(ontology, current));
+		}
+		if (associations != null && current instanceof OWLEntityAnnotationAxiom) {
+			tally.associations.addIfAssociation(scrubber,
+					(OWLEntityAnnotationAxiom) current);
+		}
+
+		Vector<ScrubRule> rules = cleanPropertyRules.get(propertyURI);
+		if (rules != null && literal != null
+				&& ax instanceof OWLEntityAnnotationAxiom) {
+			ComplexValue value = ComplexValue.parse(literal);
+			OWLEntity ent = ((OWLEntityAnnotationAxiom) ax).getSubject();
+			for (ScrubRule rule : rules) {
+				String termName = value.getRaw(scrubber.getPrefix() + rule.tag);
+				if (termName != null) {
+					OWLAxiom clean = scrubber.createStringAxiom(ent,
+							rule.target, termName);
+					if (!(scrubEmpty && scrubber.isEmpty(clean))) {
+						additions.add(new AddAxiom(ontology, clean));
+						tally.hits[rule.id]++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the complex and property rules to one value of a property. The
+	 * literal is scanned once for the qualifier tags of the rules, and parsed
+	 * at most once, only if a rule whose tags it holds needs it.
+	 *
+	 * @param propertyURI
+	 *            the uri of the property
+	 * @param literal
+	 *            the literal value, or null if the value is not a constant
+	 * @param rewrite
+	 *            whether complex rules may rewrite the value
+	 * @return null if the value should be removed, the literal itself if no
+	 *         rule changed it, otherwise the rewritten literal
+	 */
+	String scrubLiteral(URI propertyURI, String literal, boolean rewrite) {
+		compile();
+		return scrubLiteral(propertyURI, literal, rewrite, null);
+	}
+
+	/**
+	 * Applies the complex and property rules to one value of a property,
+	 * counting the hits in a tally.
+	 *
+	 * @param propertyURI
+	 *            the uri of the property
+	 * @param literal
+	 *            the literal value, or null if the value is not a constant
+	 * @param rewrite
+	 *            whether complex rules may rewrite the value
+	 * @param tally
+	 *            the tally of the sweep, or null to count on the rules
+	 * @return null if the value should be removed, the literal itself if no
+	 *         rule changed it, otherwise the rewritten literal
+	 */
+	private String scrubLiteral(URI propertyURI, String literal,
+			boolean rewrite, Tally tally) {
+		ComplexValue value = null;
+		String result = literal;
+		QualifierAutomaton automaton = automata.get(propertyURI);
+		BitSet candidates = automaton == null || literal == null ? null
+				: automaton.scan(literal);
+
+		Vector<ScrubRule> rules = complexRules.get(propertyURI);
+		if (rules != null && literal != null && rewrite) {
+			ComplexValue newValue = null;
+			for (ScrubRule rule : rules) {
+				if (!candidates.get(rule.id)) {
+					continue;
+				}
+				if (newValue == null) {
+					value = ComplexValue.parse(literal);
+					newValue = value;
+				}
+				ComplexValue next = newValue.without(rule.tag);
+				if (next != newValue) {
+					hit(rule, tally);
+					newValue = next;
+				}
+			}
+			if (newValue != value) {
+				value = newValue;
+				result = newValue.toString();
+			}
+		}
+
+		rules = propertyRules.get(propertyURI);
+		if (rules != null) {
+			for (ScrubRule rule : rules) {
+				if (rule.type == ScrubRule.Type.QUALIFIED_PROPERTY) {
+					if (candidates == null || !candidates.get(rule.id)) {
+						continue;
+					}
+					if (value == null) {
+						value = ComplexValue.parse(result);
+					}
+				}
+				if (matches(rule, value)) {
+					hit(rule, tally);
+					return null;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Counts a value matched by a rule.
+	 *
+	 * @param rule
+	 *            the rule
+	 * @param tally
+	 *            the tally of the sweep, or null to count on the rule
+	 */
+	private static void hit(ScrubRule rule, Tally tally) {
+		if (tally != null) {
+			tally.hits[rule.id]++;
+		} else {
+			rule.hits++;
+		}
+	}
+
+	/**
+	 * Checks whether every value of a property is removed.
+	 *
+	 * @param propertyURI
+	 *            the uri of the property
+	 * @return true, if a simple property rule exists for it
+	 */
+	boolean removesProperty(URI propertyURI) {
+		Vector<ScrubRule> rules = propertyRules.get(propertyURI);
+		if (rules != null) {
+			for (ScrubRule rule : rules) {
+				if (rule.type == ScrubRule.Type.PROPERTY) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a property rule matches the value of an axiom for its
+	 * property.
+	 *
+	 * @param rule
+	 *            the rule
+	 * @param value
+	 *            the parsed value of the axiom, may be null
+	 * @return true, if the axiom should be removed
+	 */
+	private boolean matches(ScrubRule rule, ComplexValue value) {
+		if (rule.type == ScrubRule.Type.QUALIFIED_PROPERTY) {
+			if (value == null) {
+				return false;
+			}
+			for (String[] q : rule.qualifiers) {
+				if (!value.has(q[0], q[1])) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The changes, counts and associations of a sweep over some of the axioms.
+	 * Each partition has its own, so the threads share nothing they write.
+	 */
+	private final class Tally {
+
+		/** The axioms to be removed. */
+		final List<OWLOntologyChange> removals = new ArrayList<OWLOntologyChange>();
+
+		/** The axioms to be added. */
+		final List<OWLOntologyChange> additions = new ArrayList<OWLOntologyChange>();
+
+		/** The values matched, by rule id. */
+		final int[] hits = new int[allRules.size()];
+
+		/** The number of values removed for being empty. */
+		int emptyRemoved = 0;
+
+		/** The associations kept. */
+		final AssociationIndex associations = new AssociationIndex();
+	}
+}
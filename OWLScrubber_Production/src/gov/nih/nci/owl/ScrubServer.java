@@ -0,0 +1,784 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The scrub daemon: a long running JVM that takes scrub jobs over HTTP on the
+ * loopback interface, so the processing scripts pay for JVM start up, a cold
+ * JIT and the parse of an unchanged input once rather than on every run. A job
+ * is the OWLScrubber command line; {@link ScrubClient} sends it with the
+ * flags the scripts already use and prints what the job prints.
+ *
+ * <pre>
+ *   POST /jobs             one argument per line; queues a job, returns its status
+ *   GET  /jobs             the status of the recent jobs
+ *   GET  /jobs/{id}        the status of a job, with its run report once finished
+ *   GET  /jobs/{id}/output what the job printed, streamed until it finishes
+ *   GET  /status           the daemon, its queue and its loaded ontologies
+ *   POST /shutdown         finishes the queued jobs and stops
+ * </pre>
+ *
+ * At most --Jobs jobs run at once and at most --Queue wait; a job beyond that
+ * is refused. The OWL API is not safe to use from two jobs at once (its data
+ * factory and renderer are shared), so jobs that load the ontology take turns
+ * in the order they were queued, while stream mode jobs run beside them. The
+ * CPU time and heap peak in a job's run report are those of the whole
+ * process, so they include any job that ran beside it.
+ *
+ * A job runs as the daemon's user and can write any file that user can, so
+ * the daemon only listens on the loopback interface and only serves requests
+ * that carry the secret of its {@link DaemonToken}, which only that user can
+ * read. Requests with an Origin header, which browsers add when a web page
+ * posts to the daemon, and requests for a host name other than the loopback
+ * one are refused as well.
+ */
+public class ScrubServer {
+
+	/** The default port. */
+	static final int DEFAULT_PORT = 8410;
+
+	/** The number of finished jobs whose status is kept. */
+	private static final int HISTORY = 100;
+
+	/** The timestamp format of the job status. */
+	private static final String TIMESTAMP = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+	/** The HTTP server. */
+	private final HttpServer http;
+
+	/** The port. */
+	private final int port;
+
+	/** The secret the requests must carry. */
+	private final DaemonToken token;
+
+	/** The threads that run the jobs. */
+	private final ThreadPoolExecutor executor;
+
+	/** The ontologies kept loaded between jobs. */
+	private final OntologyCache cache;
+
+	/** Taken by the jobs that use the OWL API, in the order they queued. */
+	private final ReentrantLock modelLock = new ReentrantLock(true);
+
+	/** The jobs, by id, oldest first. */
+	private final LinkedHashMap<Long, Job> jobs = new LinkedHashMap<Long, Job>();
+
+	/** The id of the next job. */
+	private long nextId = 1;
+
+	/** When the daemon started. */
+	private final Date started = new Date();
+
+	/** Counted down when the daemon has stopped. */
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * The main method. Starts the daemon and waits until it is shut down.
+	 *
+	 * @param args
+	 *            the arguments
+	 */
+	public static void main(String[] args) {
+		int port = DEFAULT_PORT;
+		int jobs = 2;
+		int queue = 16;
+		int cached = 1;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String option = args[i];
+				if (option.equalsIgnoreCase("--Port")) {
+					port = Integer.parseInt(args[++i]);
+				} else if (option.equalsIgnoreCase("--Jobs")) {
+					jobs = Integer.parseInt(args[++i]);
+				} else if (option.equalsIgnoreCase("--Queue")) {
+					queue = Integer.parseInt(args[++i]);
+				} else if (option.equalsIgnoreCase("--Cache")) {
+					cached = Integer.parseInt(args[++i]);
+				} else {
+					printHelp();
+				}
+			}
+		} catch (RuntimeException e) {
+			printHelp();
+		}
+		if (jobs < 1 || queue < 1 || cached < 0) {
+			printHelp();
+		}
+		JobOutput.install();
+		try {
+			ScrubServer server = new ScrubServer(port, jobs, queue, cached);
+			System.out.println("Scrub daemon listening on 127.0.0.1:" + port
+					+ ", " + jobs + " jobs at once, " + cached
+					+ " ontologies kept loaded; token in "
+					+ DaemonToken.getFile(port) + ".");
+			server.stopped.await();
+			System.out.println("Scrub daemon stopped.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Prints the help.
+	 */
+	private static void printHelp() {
+		System.out.println("");
+		System.out.println("Usage: ScrubServer [OPTIONS] ");
+		System.out.println(" ");
+		System.out.println("  --Port [port]\t\tLoopback port to listen on, "
+				+ DEFAULT_PORT + " by default");
+		System.out.println("  --Jobs [n]\t\tJobs run at once, 2 by default");
+		System.out
+				.println("  --Queue [n]\t\tJobs waiting before more are refused, 16 by default");
+		System.out
+				.println("  --Cache [n]\t\tOntologies kept loaded between jobs, 1 by default");
+		System.out.println("");
+		System.exit(1);
+	}
+
+	/**
+	 * Instantiates a new daemon and starts listening.
+	 *
+	 * @param port
+	 *            the loopback port
+	 * @param jobs
+	 *            the number of jobs run at once
+	 * @param queue
+	 *            the number of jobs that may wait
+	 * @param cached
+	 *            the number of ontologies kept loaded
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	ScrubServer(int port, int jobs, int queue, int cached) throws IOException {
+		this.port = port;
+		this.token = DaemonToken.create(port);
+		this.cache = new OntologyCache(cached);
+		this.executor = new ThreadPoolExecutor(jobs, jobs, 0L,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue));
+		this.http = HttpServer.create(new InetSocketAddress(InetAddress
+				.getLoopbackAddress(), port), 0);
+		http.createContext("/jobs", new JobsHandler());
+		http.createContext("/status", new StatusHandler());
+		http.createContext("/shutdown", new ShutdownHandler());
+		// requests that follow a job's output wait, so each gets a thread
+		ExecutorService requests = Executors.newCachedThreadPool();
+		http.setExecutor(requests);
+		http.start();
+	}
+
+	/**
+	 * Queues a job.
+	 *
+	 * @param args
+	 *            the OWLScrubber command line
+	 * @param directory
+	 *            the working directory of the client, or null
+	 * @return the job, or null if the queue is full
+	 */
+	private Job submit(String[] args, String directory) {
+		Job job;
+		synchronized (jobs) {
+			job = new Job(nextId++, args);
+			jobs.put(job.id, job);
+			Iterator<Job> it = jobs.values().iterator();
+			while (jobs.size() > HISTORY && it.hasNext()) {
+				if (it.next().isFinished()) {
+					it.remove();
+				}
+			}
+		}
+		String here = System.getProperty("user.dir");
+		if (directory != null && !directory.equals(here)) {
+			job.output.print("The daemon runs in " + here
+					+ ", relative paths are resolved there.\n");
+		}
+		try {
+			executor.execute(job);
+		} catch (RejectedExecutionException e) {
+			synchronized (jobs) {
+				jobs.remove(job.id);
+			}
+			return null;
+		}
+		return job;
+	}
+
+	/**
+	 * Gets a job.
+	 *
+	 * @param id
+	 *            the job id
+	 * @return the job, or null if there is none or it is forgotten
+	 */
+	private Job getJob(long id) {
+		synchronized (jobs) {
+			return jobs.get(id);
+		}
+	}
+
+	/**
+	 * Stops taking jobs, waits for the queued ones and stops the daemon.
+	 */
+	private void shutdown() {
+		Thread t = new Thread("scrub daemon shutdown") {
+			@Override
+			public void run() {
+				executor.shutdown();
+				try {
+					executor.awaitTermination(Long.MAX_VALUE,
+							TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					// stop anyway
+				}
+				http.stop(1);
+				((ExecutorService) http.getExecutor()).shutdownNow();
+				token.delete();
+				stopped.countDown();
+			}
+		};
+		t.start();
+	}
+
+	/**
+	 * Formats a time for the status.
+	 *
+	 * @param date
+	 *            the time, or null
+	 * @return the quoted timestamp, or null
+	 */
+	private static String timestamp(Date date) {
+		return date == null ? "null" : RunReport.quote(new SimpleDateFormat(
+				TIMESTAMP).format(date));
+	}
+
+	/**
+	 * Sends a response.
+	 *
+	 * @param exchange
+	 *            the exchange
+	 * @param code
+	 *            the HTTP status
+	 * @param body
+	 *            the body, JSON unless the status is an error
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private static void send(HttpExchange exchange, int code, String body)
+			throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type",
+				code < 300 ? "application/json" : "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(code, bytes.length);
+		OutputStream os = exchange.getResponseBody();
+		try {
+			os.write(bytes);
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Checks that a request is the daemon user's own before it is handled.
+	 */
+	private abstract class GuardedHandler implements HttpHandler {
+
+		public final void handle(HttpExchange exchange) throws IOException {
+			if (exchange.getRequestHeaders().containsKey("Origin")) {
+				send(exchange, 403, "Requests from web pages are refused.\n");
+			} else if (!isLoopbackHost(exchange.getRequestHeaders().getFirst(
+					"Host"))) {
+				send(exchange, 403, "Unexpected host.\n");
+			} else if (!token.matches(exchange.getRequestHeaders().getFirst(
+					DaemonToken.HEADER))) {
+				send(exchange, 401, "Missing or wrong " + DaemonToken.HEADER
+						+ " header.\n");
+			} else {
+				serve(exchange);
+			}
+		}
+
+		/**
+		 * Handles a request that passed the checks.
+		 *
+		 * @param exchange
+		 *            the exchange
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 */
+		abstract void serve(HttpExchange exchange) throws IOException;
+	}
+
+	/**
+	 * Checks the Host header of a request, so a host name that a web page
+	 * rebinds to the loopback address is refused.
+	 *
+	 * @param host
+	 *            the Host header, or null
+	 * @return true, if it names the loopback interface on the daemon's port
+	 */
+	private boolean isLoopbackHost(String host) {
+		return host != null
+				&& (host.equals("127.0.0.1:" + port)
+						|| host.equals("localhost:" + port) || host
+						.equals("[::1]:" + port));
+	}
+
+	/**
+	 * Handles /jobs.
+	 */
+	private final class JobsHandler extends GuardedHandler {
+
+		@Override
+		void serve(HttpExchange exchange) throws IOException {
+			try {
+				String method = exchange.getRequestMethod();
+				String[] path = exchange.getRequestURI().getPath().split("/");
+				// path[0] is empty, path[1] is "jobs"
+				if (path.length == 2 && method.equals("POST")) {
+					List<String> args = new ArrayList<String>();
+					BufferedReader in = new BufferedReader(
+							new InputStreamReader(exchange.getRequestBody(),
+									"UTF-8"));
+					String line;
+					while ((line = in.readLine()) != null) {
+						args.add(line);
+					}
+					Job job = submit(args.toArray(new String[args.size()]),
+							exchange.getRequestHeaders().getFirst(
+									"X-Directory"));
+					if (job == null) {
+						send(exchange, 503, "The job queue is full.\n");
+					} else {
+						send(exchange, 202, job.toJSON(false));
+					}
+				} else if (path.length == 2 && method.equals("GET")) {
+					StringBuilder sb = new StringBuilder("[");
+					synchronized (jobs) {
+						for (Job job : jobs.values()) {
+							sb.append(sb.length() > 1 ? ",\n" : "\n");
+							sb.append(job.toJSON(false));
+						}
+					}
+					send(exchange, 200, sb.append("\n]\n").toString());
+				} else if (path.length >= 3 && method.equals("GET")) {
+					Job job = null;
+					try {
+						job = getJob(Long.parseLong(path[2]));
+					} catch (NumberFormatException e) {
+						// not a job
+					}
+					if (job == null) {
+						send(exchange, 404, "No job " + path[2] + ".\n");
+					} else if (path.length == 3) {
+						send(exchange, 200, job.toJSON(true));
+					} else if (path.length == 4 && path[3].equals("output")) {
+						exchange.getResponseHeaders().set("Content-Type",
+								"text/plain");
+						exchange.sendResponseHeaders(200, 0);
+						OutputStream os = exchange.getResponseBody();
+						try {
+							job.output.copyTo(os);
+						} finally {
+							os.close();
+						}
+					} else {
+						send(exchange, 404, "Not found.\n");
+					}
+				} else {
+					send(exchange, 405, "Unsupported request.\n");
+				}
+			} catch (InterruptedException e) {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * Handles /status.
+	 */
+	private final class StatusHandler extends GuardedHandler {
+
+		@Override
+		void serve(HttpExchange exchange) throws IOException {
+			Runtime rt = Runtime.getRuntime();
+			int finished = 0;
+			synchronized (jobs) {
+				for (Job job : jobs.values()) {
+					if (job.isFinished()) {
+						finished++;
+					}
+				}
+			}
+			send(exchange, 200, "{\"started\": " + timestamp(started)
+					+ ", \"running\": " + executor.getActiveCount()
+					+ ", \"maxRunning\": " + executor.getMaximumPoolSize()
+					+ ", \"queued\": " + executor.getQueue().size()
+					+ ", \"queueRemaining\": "
+					+ executor.getQueue().remainingCapacity()
+					+ ", \"completed\": " + executor.getCompletedTaskCount()
+					+ ", \"finishedKept\": " + finished
+					+ ", \"heapUsedBytes\": "
+					+ (rt.totalMemory() - rt.freeMemory())
+					+ ", \"maxHeapBytes\": " + rt.maxMemory()
+					+ ", \"loaded\": " + cache.toJSON() + "}\n");
+		}
+	}
+
+	/**
+	 * Handles /shutdown.
+	 */
+	private final class ShutdownHandler extends GuardedHandler {
+
+		@Override
+		void serve(HttpExchange exchange) throws IOException {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				send(exchange, 405, "Use POST.\n");
+				return;
+			}
+			send(exchange, 200, "{\"queued\": " + executor.getQueue().size()
+					+ "}\n");
+			System.out.println("Shutting down once the queued jobs finish...");
+			shutdown();
+		}
+	}
+
+	/**
+	 * A scrub job: the command line, what it printed and how it went.
+	 */
+	private final class Job implements Runnable {
+
+		/** The job id. */
+		final long id;
+
+		/** The OWLScrubber command line. */
+		final String[] args;
+
+		/** What the job printed. */
+		final JobOutput output = new JobOutput();
+
+		/** When the job was queued. */
+		final Date submitted = new Date();
+
+		/** When the job started and finished, or null. */
+		volatile Date start, finish;
+
+		/** The nanos spent waiting to run, and running. */
+		volatile long queueNanos, runNanos;
+
+		/** The exit status, once finished. */
+		volatile int exitStatus = -1;
+
+		/** The scrubber, once configured. */
+		volatile OWLScrubber scrubber;
+
+		/** The nano time the job was queued. */
+		private final long queued = System.nanoTime();
+
+		/**
+		 * Instantiates a new job.
+		 *
+		 * @param id
+		 *            the id
+		 * @param args
+		 *            the command line
+		 */
+		Job(long id, String[] args) {
+			this.id = id;
+			this.args = args;
+		}
+
+		/**
+		 * Checks whether the job has finished.
+		 *
+		 * @return true, if it has
+		 */
+		boolean isFinished() {
+			return finish != null;
+		}
+
+		/**
+		 * Checks whether the job is in stream mode, which does not use the
+		 * OWL API.
+		 *
+		 * @return true, if the command line has -S
+		 */
+		private boolean isStreaming() {
+			for (String arg : args) {
+				if (arg.equalsIgnoreCase("-S")
+						|| arg.equalsIgnoreCase("--Stream")) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public void run() {
+			start = new Date();
+			long begin = System.nanoTime();
+			queueNanos = begin - queued;
+			System.out.println("Job " + id + ": "
+					+ Arrays.asList(args).toString());
+			JobOutput.route(output);
+			boolean model = !isStreaming();
+			int status;
+			try {
+				if (model) {
+					modelLock.lock();
+				}
+				try {
+					OWLScrubber s = new OWLScrubber();
+					s.setResident(cache);
+					scrubber = s;
+					s.configure(args);
+					s.run();
+					status = s.getExitStatus();
+				} finally {
+					if (model) {
+						modelLock.unlock();
+					}
+				}
+			} catch (OWLScrubber.ExitException e) {
+				status = e.status;
+			} catch (Throwable t) {
+				t.printStackTrace();
+				status = 1;
+			}
+			runNanos = System.nanoTime() - begin;
+			JobOutput.route(null);
+			System.out.println("Job " + id + " finished with status " + status
+					+ " in " + runNanos / 1000000 + " ms.");
+			exitStatus = status;
+			finish = new Date();
+			output.close();
+		}
+
+		/**
+		 * Describes the job as JSON.
+		 *
+		 * @param withReport
+		 *            should the run report of a finished job be included
+		 * @return the JSON object
+		 */
+		String toJSON(boolean withReport) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"id\": ").append(id);
+			sb.append(", \"state\": ").append(
+					RunReport.quote(finish != null ? "finished"
+							: start != null ? "running" : "queued"));
+			sb.append(", \"args\": [");
+			for (int i = 0; i < args.length; i++) {
+				sb.append(i > 0 ? ", " : "").append(RunReport.quote(args[i]));
+			}
+			sb.append("], \"submitted\": ").append(timestamp(submitted));
+			sb.append(", \"started\": ").append(timestamp(start));
+			sb.append(", \"finished\": ").append(timestamp(finish));
+			sb.append(", \"queueNanos\": ").append(
+					start != null ? queueNanos : System.nanoTime() - queued);
+			sb.append(", \"runNanos\": ").append(runNanos);
+			sb.append(", \"exitStatus\": ").append(
+					finish != null ? String.valueOf(exitStatus) : "null");
+			OWLScrubber s = scrubber;
+			if (withReport && finish != null && s != null) {
+				StringWriter report = new StringWriter();
+				PrintWriter pw = new PrintWriter(report);
+				s.getReport().write(pw);
+				pw.flush();
+				sb.append(", \"report\": ").append(report.toString().trim());
+			}
+			return sb.append("}\n").toString();
+		}
+	}
+
+	/**
+	 * What a job printed, kept so the client can follow it while the job runs
+	 * and read it back after. The daemon's System.out and System.err write to
+	 * the output of the job of the writing thread, and threads a job starts,
+	 * such as its worker pool, write to the same output. Threads of no job
+	 * write to the daemon's own console.
+	 */
+	static final class JobOutput extends OutputStream {
+
+		/** The output of the job of each thread. */
+		private static final InheritableThreadLocal<JobOutput> ROUTE = new InheritableThreadLocal<JobOutput>();
+
+		/** The bytes printed. */
+		private byte[] bytes = new byte[1024];
+
+		/** The number of bytes printed. */
+		private int length = 0;
+
+		/** Whether the job has finished. */
+		private boolean closed = false;
+
+		/**
+		 * Sends System.out and System.err through the job outputs.
+		 */
+		static void install() {
+			System.setOut(new PrintStream(new Router(System.out), true));
+			System.setErr(new PrintStream(new Router(System.err), true));
+		}
+
+		/**
+		 * Routes what the current thread, and the threads it starts, print.
+		 *
+		 * @param output
+		 *            the job output, or null for the daemon's console
+		 */
+		static void route(JobOutput output) {
+			if (output == null) {
+				ROUTE.remove();
+			} else {
+				ROUTE.set(output);
+			}
+		}
+
+		@Override
+		public synchronized void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			if (length + len > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length
+						+ len));
+			}
+			System.arraycopy(b, off, bytes, length, len);
+			length += len;
+			notifyAll();
+		}
+
+		/**
+		 * Prints a message before the job starts.
+		 *
+		 * @param s
+		 *            the message
+		 */
+		void print(String s) {
+			byte[] b = s.getBytes();
+			write(b, 0, b.length);
+		}
+
+		/**
+		 * Marks the job finished, ending the copies.
+		 */
+		@Override
+		public synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		/**
+		 * Copies the output, waiting for more until the job finishes.
+		 *
+		 * @param os
+		 *            the stream copied to
+		 * @throws IOException
+		 *             Signals that an I/O exception has occurred.
+		 * @throws InterruptedException
+		 *             if the copy is interrupted
+		 */
+		void copyTo(OutputStream os) throws IOException, InterruptedException {
+			int copied = 0;
+			while (true) {
+				byte[] b;
+				int end;
+				synchronized (this) {
+					while (copied == length && !closed) {
+						wait();
+					}
+					if (copied == length) {
+						return;
+					}
+					b = bytes;
+					end = length;
+				}
+				// the array is only replaced by a longer copy, so b holds end
+				// bytes however much is written meanwhile
+				os.write(b, copied, end - copied);
+				os.flush();
+				copied = end;
+			}
+		}
+
+		/**
+		 * The stream behind System.out or System.err, which writes to the
+		 * output of the writing thread's job.
+		 */
+		private static final class Router extends OutputStream {
+
+			/** The daemon's console. */
+			private final OutputStream console;
+
+			/**
+			 * Instantiates a new router.
+			 *
+			 * @param console
+			 *            the daemon's console
+			 */
+			Router(OutputStream console) {
+				this.console = console;
+			}
+
+			/**
+			 * Gets the stream of the current thread.
+			 *
+			 * @return the job output or the console
+			 */
+			private OutputStream target() {
+				JobOutput output = ROUTE.get();
+				return output != null ? output : console;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				target().write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				target().write(b, off, len);
+			}
+
+			@Override
+			public void flush() throws IOException {
+				console.flush();
+			}
+		}
+	}
+}
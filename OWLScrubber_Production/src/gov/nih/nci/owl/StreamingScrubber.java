@@ -0,0 +1,1070 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Scrubs an RDF/XML file without loading it into the OWL API.
+ *
+ * A first pass over the input collects only the rdfs:subClassOf edges between
+ * named classes and the class codes, which is enough to resolve the branch_del
+ * closures. A second
+ * pass reads one top level element at a time, applies the props_del,
+ * complex_del, empty value and individual rules to it and writes it straight
+ * to the output. Heap use is bounded by the hierarchy index and the largest
+ * single class, not by the size of the ontology.
+ *
+ * Since the input is not re-serialized, the output keeps the layout of the
+ * input rather than the layout of the OWL API writer. Clean property
+ * construction is not supported in this mode.
+ *
+ * Given the previous release's output, the scrub is incremental: each top
+ * level element is hashed, and one the previous run already scrubbed, found
+ * by its hash in the previous output's {@link ScrubCache}, is copied from
+ * that output rather than scrubbed again. Between monthly releases most
+ * classes do not change, so most of the output is copied. Verifying scrubs
+ * every element anyway, writes that, and checks it against the copy.
+ */
+final class StreamingScrubber {
+
+	/** The RDF namespace. */
+	private static final String RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+
+	/** The RDFS namespace. */
+	private static final String RDFS = "http://www.w3.org/2000/01/rdf-schema#";
+
+	/** The OWL namespace. */
+	private static final String OWL = "http://www.w3.org/2002/07/owl#";
+
+	/** The XML namespace. */
+	private static final String XML = "http://www.w3.org/XML/1998/namespace";
+
+	/** The anyURI data type. */
+	private static final String ANY_URI = "http://www.w3.org/2001/XMLSchema#anyURI";
+
+	/** The scrubber. */
+	private final OWLScrubber scrubber;
+
+	/** The compiled rules. */
+	private final ScrubRuleEngine engine;
+
+	/** Should empty values be scrubbed */
+	private final boolean scrubEmpty;
+
+	/** Should individuals be suppressed */
+	private final boolean suppressIndividuals;
+
+	/** The base uri of the document. */
+	private String base;
+
+	/** The codes of the classes, collected by the first pass. */
+	private final CodeIndex codes = new CodeIndex();
+
+	/** The uris of every removed class, roots included. */
+	private final Set<String> removed = new HashSet<String>();
+
+	/** The uris of the descendants of the removed branches. */
+	private final Set<String> removedDescendants = new HashSet<String>();
+
+	/** The event factory. */
+	private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+	/** The number of classes dropped. */
+	private int classesRemoved = 0;
+
+	/** The number of property values dropped. */
+	private int valuesRemoved = 0;
+
+	/** The number of property values rewritten. */
+	private int valuesChanged = 0;
+
+	/** The number of individuals dropped. */
+	private int individualsRemoved = 0;
+
+	/** The previous output, for an incremental scrub, or null. */
+	private File previousOutput;
+
+	/** Should copied elements be checked against a fresh scrub. */
+	private boolean verify = false;
+
+	/** The cache of the previous output, or null if there is none. */
+	private ScrubCache previous;
+
+	/** The cache of the new output, or null if the scrub is not incremental. */
+	private ScrubCache next;
+
+	/** The output, counting the characters written, when incremental. */
+	private CountingWriter counter;
+
+	/** The digest of the element hashes. */
+	private MessageDigest digest;
+
+	/** The bytes of a string being hashed. */
+	private byte[] bytes = new byte[1024];
+
+	/** The number of elements copied from the previous output. */
+	private int copied = 0;
+
+	/** The number of copied elements that differed from a fresh scrub. */
+	private int mismatches = 0;
+
+	/**
+	 * Instantiates a new streaming scrubber.
+	 *
+	 * @param scrubber
+	 *            the scrubber
+	 * @param engine
+	 *            the compiled rules
+	 * @param scrubEmpty
+	 *            should empty values be scrubbed
+	 * @param suppressIndividuals
+	 *            should individuals be suppressed
+	 */
+	StreamingScrubber(OWLScrubber scrubber, ScrubRuleEngine engine,
+			boolean scrubEmpty, boolean suppressIndividuals) {
+		this.scrubber = scrubber;
+		this.engine = engine;
+		this.scrubEmpty = scrubEmpty;
+		this.suppressIndividuals = suppressIndividuals;
+	}
+
+	/**
+	 * Makes the scrub incremental against the previous release's output, which
+	 * must have been written by an incremental scrub as well.
+	 *
+	 * @param previousOutput
+	 *            the previous output
+	 * @param verify
+	 *            should copied elements be checked against a fresh scrub
+	 */
+	void setIncremental(File previousOutput, boolean verify) {
+		this.previousOutput = previousOutput;
+		this.verify = verify;
+	}
+
+	/**
+	 * Gets the number of copied elements that differed from a fresh scrub
+	 * when verifying.
+	 *
+	 * @return the number of mismatches
+	 */
+	int getMismatches() {
+		return mismatches;
+	}
+
+	/**
+	 * Scrubs the input file into the output file.
+	 *
+	 * @param input
+	 *            the input file
+	 * @param output
+	 *            the output file
+	 * @param branches
+	 *            the uris of the branches to delete, may be empty
+	 * @throws Exception
+	 *             if the input cannot be read or the output written
+	 */
+	void scrub(File input, File output, Vector<URI> branches) throws Exception {
+		if (!branches.isEmpty()) {
+			System.out.println("Indexing class hierarchy...");
+			resolveBranches(indexHierarchy(input), branches);
+		}
+		System.out.println("Streaming scrubbed classes...");
+		InputStream in = FileStreams.openInput(input,
+				scrubber.getIOBufferSize());
+		if (previousOutput != null) {
+			// the old hashes no longer match once the output is rewritten
+			ScrubCache.getFile(output).delete();
+		}
+		Writer out = scrubber.openOutput(output);
+		try {
+			transform(in, out);
+		} finally {
+			in.close();
+			out.close();
+			if (previous != null) {
+				previous.close();
+			}
+		}
+		scrubber.reportAscii();
+		RunReport report = scrubber.getReport();
+		if (next != null) {
+			next.write(output, scrubber.getIOBufferSize());
+			System.out.println((verify ? "Verified " : "Copied ") + copied
+					+ " of " + next.size() + " elements from "
+					+ previousOutput + (verify ? ", " + mismatches
+					+ " differed." : "."));
+			report.detail(verify ? "verified" : "copied", copied);
+			if (verify) {
+				report.detail("mismatches", mismatches);
+			}
+		}
+		report.changed(valuesRemoved + valuesChanged);
+		report.detail("classes", classesRemoved);
+		report.detail("individuals", individualsRemoved);
+		System.out.println("Removed " + classesRemoved + " classes, "
+				+ valuesRemoved + " property values and " + individualsRemoved
+				+ " individuals; rewrote " + valuesChanged
+				+ " property values.");
+	}
+
+	/**
+	 * Creates the input factory. Internal DTD entities such as &amp;xsd; are
+	 * expanded and text is coalesced so each literal arrives in one piece.
+	 *
+	 * @return the input factory
+	 */
+	private XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES,
+				Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * First pass. Collects the subClassOf edges between named classes, and
+	 * their codes.
+	 *
+	 * @param input
+	 *            the input file
+	 * @return the class hierarchy
+	 * @throws Exception
+	 *             if the input cannot be read
+	 */
+	private ClassHierarchy indexHierarchy(File input) throws Exception {
+		List<URI> uris = new ArrayList<URI>();
+		Map<URI, Integer> ids = new HashMap<URI, Integer>();
+		int[] subs = new int[1024];
+		int[] supers = new int[1024];
+		int edges = 0;
+		String codeURI = scrubber.createURI("code").toString();
+
+		InputStream in = FileStreams.openInput(input,
+				scrubber.getIOBufferSize());
+		XMLStreamReader reader = createInputFactory().createXMLStreamReader(in);
+		try {
+			int depth = 0;
+			int current = -1;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					if (depth == 1) {
+						base = reader.getAttributeValue(XML, "base");
+					} else if (depth == 2) {
+						current = -1;
+						if (isClass(reader.getNamespaceURI(), reader
+								.getLocalName())) {
+							String about = getSubject(reader
+									.getAttributeValue(RDF, "about"), reader
+									.getAttributeValue(RDF, "ID"));
+							if (about != null) {
+								current = getId(URI.create(about), uris, ids);
+							}
+						}
+					} else if (depth == 3 && current != -1
+							&& RDFS.equals(reader.getNamespaceURI())
+							&& "subClassOf".equals(reader.getLocalName())) {
+						String resource = reader.getAttributeValue(RDF,
+								"resource");
+						if (resource != null) {
+							if (edges == subs.length) {
+								subs = grow(subs);
+								supers = grow(supers);
+							}
+							subs[edges] = current;
+							supers[edges] = getId(URI.create(resolve(resource)),
+									uris, ids);
+							edges++;
+						}
+					} else if (depth == 3 && current != -1
+							&& codeURI.equals(reader.getNamespaceURI()
+									+ reader.getLocalName())) {
+						// getElementText consumes the end element
+						codes.add(uris.get(current), reader.getElementText());
+						depth--;
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+			}
+		} finally {
+			reader.close();
+			in.close();
+		}
+		return ClassHierarchy.build(uris.toArray(new URI[uris.size()]), ids,
+				subs, supers, edges);
+	}
+
+	/**
+	 * Gets the id of a class uri, numbering it if it is new.
+	 *
+	 * @param uri
+	 *            the uri
+	 * @param uris
+	 *            the uris by id
+	 * @param ids
+	 *            the ids by uri
+	 * @return the id
+	 */
+	private static int getId(URI uri, List<URI> uris, Map<URI, Integer> ids) {
+		Integer id = ids.get(uri);
+		if (id == null) {
+			id = uris.size();
+			uris.add(uri);
+			ids.put(uri, id);
+		}
+		return id.intValue();
+	}
+
+	/**
+	 * Doubles the size of an array.
+	 *
+	 * @param array
+	 *            the array
+	 * @return the larger array
+	 */
+	private static int[] grow(int[] array) {
+		int[] larger = new int[array.length * 2];
+		System.arraycopy(array, 0, larger, 0, array.length);
+		return larger;
+	}
+
+	/**
+	 * Resolves the branch roots and their descendants into the removed sets.
+	 *
+	 * @param hierarchy
+	 *            the class hierarchy
+	 * @param branches
+	 *            the uris of the branch roots
+	 */
+	private void resolveBranches(ClassHierarchy hierarchy, Vector<URI> branches) {
+		int[] roots = new int[branches.size()];
+		int rootCount = 0;
+		for (URI branch : branches) {
+			int id = hierarchy.getId(branch);
+			if (id == -1 && codes.getURI(branch.getFragment()) != null) {
+				branch = codes.getURI(branch.getFragment());
+				id = hierarchy.getId(branch);
+			}
+			if (id != -1) {
+				roots[rootCount++] = id;
+				removed.add(branch.toString());
+			} else {
+				System.out.println("Branch " + branch.getFragment()
+						+ " not found.");
+			}
+		}
+		int[] found = new int[rootCount];
+		System.arraycopy(roots, 0, found, 0, rootCount);
+		BitSet descendants = hierarchy.getDescendants(found);
+		for (int i = descendants.nextSetBit(0); i >= 0; i = descendants
+				.nextSetBit(i + 1)) {
+			String uri = hierarchy.getURI(i).toString();
+			removed.add(uri);
+			removedDescendants.add(uri);
+			scrubber.removedClasses.add(uri);
+		}
+	}
+
+	/**
+	 * Second pass. Copies the document, scrubbing each top level element.
+	 *
+	 * @param in
+	 *            the input
+	 * @param out
+	 *            the output
+	 * @throws XMLStreamException
+	 *             if the input is not well formed
+	 * @throws IOException
+	 *             if the previous output cannot be read
+	 */
+	private void transform(InputStream in, Writer out)
+			throws XMLStreamException, IOException {
+		XMLEventReader reader = createInputFactory().createXMLEventReader(in);
+		if (previousOutput != null) {
+			counter = new CountingWriter(out);
+			out = counter;
+		}
+		XMLEventWriter writer = XMLOutputFactory.newInstance()
+				.createXMLEventWriter(out);
+		List<XMLEvent> element = new ArrayList<XMLEvent>();
+		List<XMLEvent> whitespace = new ArrayList<XMLEvent>();
+		int depth = 0;
+		while (reader.hasNext()) {
+			XMLEvent event = reader.nextEvent();
+			if (event.isStartElement()) {
+				depth++;
+				if (depth == 1 && base == null) {
+					Attribute b = event.asStartElement().getAttributeByName(
+							new QName(XML, "base"));
+					base = b == null ? null : b.getValue();
+				}
+				if (depth == 1 && previousOutput != null) {
+					startIncremental();
+				}
+			}
+			if (depth >= 2) {
+				element.add(event);
+			} else if (depth == 1 && event.isCharacters()
+					&& event.asCharacters().isWhiteSpace()) {
+				// held back so dropped elements leave no blank lines
+				whitespace.add(event);
+			} else {
+				write(writer, whitespace);
+				writer.add(event);
+			}
+			if (event.isEndElement()) {
+				depth--;
+				if (depth == 1) {
+					if (next != null) {
+						writeIncremental(writer, whitespace, element);
+					} else {
+						List<XMLEvent> scrubbed = scrubTopLevel(element);
+						if (scrubbed != null) {
+							write(writer, whitespace);
+							write(writer, scrubbed);
+						}
+					}
+					whitespace.clear();
+					element.clear();
+				}
+			}
+		}
+		writer.flush();
+		writer.close();
+		reader.close();
+	}
+
+	/**
+	 * Starts an incremental scrub once the document base is known: hashes the
+	 * scrub settings and reads the previous output's cache.
+	 *
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void startIncremental() throws IOException {
+		digest = ScrubCache.newDigest();
+		update("owlscrubber stream");
+		update(base);
+		update(scrubber.createURI("").toString());
+		update(scrubber.getPrefix());
+		digest.update((byte) (scrubEmpty ? 1 : 0));
+		digest.update((byte) (suppressIndividuals ? 1 : 0));
+		for (ScrubRule rule : engine.getRules()) {
+			update(rule.toString());
+		}
+		byte[] settings = digest.digest();
+		previous = ScrubCache.read(previousOutput, settings, scrubber
+				.getIOBufferSize());
+		next = new ScrubCache(settings);
+	}
+
+	/**
+	 * Writes one top level element of an incremental scrub: copies it from
+	 * the previous output if it is there, otherwise scrubs it, and records
+	 * where it went.
+	 *
+	 * @param writer
+	 *            the writer
+	 * @param whitespace
+	 *            the whitespace before the element
+	 * @param element
+	 *            the events of the element
+	 * @throws XMLStreamException
+	 *             if the events cannot be written
+	 * @throws IOException
+	 *             if the previous output cannot be read
+	 */
+	private void writeIncremental(XMLEventWriter writer,
+			List<XMLEvent> whitespace, List<XMLEvent> element)
+			throws XMLStreamException, IOException {
+		byte[] hash = hashElement(element);
+		ScrubCache.Entry entry = previous == null ? null : previous.get(hash);
+		if (entry != null) {
+			copied++;
+		}
+		if (entry != null && !verify) {
+			classesRemoved += entry.counts[0];
+			valuesRemoved += entry.counts[1];
+			valuesChanged += entry.counts[2];
+			individualsRemoved += entry.counts[3];
+			if (entry.isDropped()) {
+				next.add(hash, -1, 0, entry.counts);
+				return;
+			}
+			long offset = startElement(writer, whitespace);
+			previous.copy(entry, counter);
+			next.add(hash, offset, entry.length, entry.counts);
+			return;
+		}
+
+		int[] counts = { classesRemoved, valuesRemoved, valuesChanged,
+				individualsRemoved };
+		List<XMLEvent> scrubbed = scrubTopLevel(element);
+		counts[0] = classesRemoved - counts[0];
+		counts[1] = valuesRemoved - counts[1];
+		counts[2] = valuesChanged - counts[2];
+		counts[3] = individualsRemoved - counts[3];
+		long offset = -1;
+		int length = 0;
+		String written = null;
+		if (scrubbed != null) {
+			offset = startElement(writer, whitespace);
+			counter.capture = verify && entry != null ? new StringBuilder()
+					: null;
+			write(writer, scrubbed);
+			writer.flush();
+			length = (int) (counter.count - offset);
+			if (counter.capture != null) {
+				written = counter.capture.toString();
+				counter.capture = null;
+			}
+		}
+		next.add(hash, offset, length, counts);
+		if (entry != null) {
+			String kept = null;
+			if (!entry.isDropped()) {
+				CountingWriter copy = new CountingWriter(null);
+				copy.capture = new StringBuilder(entry.length);
+				previous.copy(entry, copy);
+				kept = copy.capture.toString();
+			}
+			if (written == null ? kept != null : !written.equals(kept)) {
+				mismatches++;
+				StartElement start = element.get(0).asStartElement();
+				System.out.println("The copy of "
+						+ start.getName().getLocalPart()
+						+ " "
+						+ getSubject(getAttribute(start, RDF, "about"),
+								getAttribute(start, RDF, "ID"))
+						+ " differs from a fresh scrub.");
+			}
+		}
+	}
+
+	/**
+	 * Writes the whitespace before an element and gets the offset the element
+	 * starts at.
+	 *
+	 * @param writer
+	 *            the writer
+	 * @param whitespace
+	 *            the whitespace before the element
+	 * @return the character offset of the element
+	 * @throws XMLStreamException
+	 *             if the events cannot be written
+	 */
+	private long startElement(XMLEventWriter writer, List<XMLEvent> whitespace)
+			throws XMLStreamException {
+		write(writer, whitespace);
+		// closes the root start tag if nothing has been written after it
+		writer.add(eventFactory.createCharacters(""));
+		writer.flush();
+		return counter.count;
+	}
+
+	/**
+	 * Hashes a top level element. Every name, attribute and text goes into
+	 * the hash, together with whether each rdf:about, rdf:resource or
+	 * rdf:ID names a removed class and whether each text is a removed
+	 * descendant, since those decide the scrub.
+	 *
+	 * @param events
+	 *            the events of the element
+	 * @return the hash
+	 */
+	@SuppressWarnings("unchecked")
+	private byte[] hashElement(List<XMLEvent> events) {
+		for (XMLEvent event : events) {
+			digest.update((byte) event.getEventType());
+			if (event.isStartElement()) {
+				StartElement start = event.asStartElement();
+				update(start.getName());
+				Iterator<Namespace> namespaces = start.getNamespaces();
+				while (namespaces.hasNext()) {
+					Namespace n = namespaces.next();
+					update(n.getPrefix());
+					update(n.getNamespaceURI());
+				}
+				Iterator<Attribute> attributes = start.getAttributes();
+				while (attributes.hasNext()) {
+					Attribute a = attributes.next();
+					update(a.getName());
+					update(a.getValue());
+					if (RDF.equals(a.getName().getNamespaceURI())) {
+						String local = a.getName().getLocalPart();
+						String uri = "about".equals(local)
+								|| "resource".equals(local) ? resolve(a
+								.getValue()) : "ID".equals(local) ? resolve("#"
+								+ a.getValue()) : null;
+						if (uri != null) {
+							digest.update((byte) (removed.contains(uri) ? 1
+									: 0));
+						}
+					}
+				}
+			} else if (event.isEndElement()) {
+				update(event.asEndElement().getName());
+			} else if (event.isCharacters()) {
+				Characters c = event.asCharacters();
+				update(c.getData());
+				digest.update((byte) (c.isCData() ? 1 : 0));
+				if (!removedDescendants.isEmpty()) {
+					digest.update((byte) (removedDescendants.contains(c
+							.getData().trim()) ? 1 : 0));
+				}
+			} else {
+				update(event.toString());
+			}
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Adds a qualified name to the hash.
+	 *
+	 * @param name
+	 *            the name
+	 */
+	private void update(QName name) {
+		update(name.getPrefix());
+		update(name.getNamespaceURI());
+		update(name.getLocalPart());
+	}
+
+	/**
+	 * Adds a string to the hash, with its length so that consecutive strings
+	 * cannot run together.
+	 *
+	 * @param s
+	 *            the string, may be null
+	 */
+	private void update(String s) {
+		if (s == null) {
+			digest.update((byte) 0xff);
+			return;
+		}
+		int n = s.length();
+		if (bytes.length < 2 * n + 4) {
+			bytes = new byte[Math.max(2 * n + 4, bytes.length * 2)];
+		}
+		bytes[0] = (byte) (n >>> 24);
+		bytes[1] = (byte) (n >>> 16);
+		bytes[2] = (byte) (n >>> 8);
+		bytes[3] = (byte) n;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			bytes[4 + 2 * i] = (byte) (c >>> 8);
+			bytes[5 + 2 * i] = (byte) c;
+		}
+		digest.update(bytes, 0, 2 * n + 4);
+	}
+
+	/**
+	 * Writes a list of events.
+	 *
+	 * @param writer
+	 *            the writer
+	 * @param events
+	 *            the events
+	 * @throws XMLStreamException
+	 *             if the events cannot be written
+	 */
+	private static void write(XMLEventWriter writer, List<XMLEvent> events)
+			throws XMLStreamException {
+		for (XMLEvent event : events) {
+			writer.add(event);
+		}
+		events.clear();
+	}
+
+	/**
+	 * Scrubs one top level element.
+	 *
+	 * @param events
+	 *            the events of the element
+	 * @return the scrubbed events, or null if the element is dropped
+	 */
+	private List<XMLEvent> scrubTopLevel(List<XMLEvent> events) {
+		StartElement start = events.get(0).asStartElement();
+		String ns = start.getName().getNamespaceURI();
+		String local = start.getName().getLocalPart();
+		String subject = getSubject(getAttribute(start, RDF, "about"),
+				getAttribute(start, RDF, "ID"));
+
+		if (isClass(ns, local)) {
+			if (subject != null && removed.contains(subject)) {
+				classesRemoved++;
+				return null;
+			}
+			return scrubProperties(events);
+		}
+		if (OWL.equals(ns)
+				&& ("AnnotationProperty".equals(local) || "DatatypeProperty"
+						.equals(local)) && subject != null
+				&& engine.removesProperty(URI.create(subject))) {
+			return null;
+		}
+		if (suppressIndividuals && isIndividual(ns, local)) {
+			individualsRemoved++;
+			return null;
+		}
+		return events;
+	}
+
+	/**
+	 * Scrubs the property elements of a class.
+	 *
+	 * @param events
+	 *            the events of the class element
+	 * @return the scrubbed events
+	 */
+	private List<XMLEvent> scrubProperties(List<XMLEvent> events) {
+		List<XMLEvent> result = new ArrayList<XMLEvent>(events.size());
+		List<XMLEvent> whitespace = new ArrayList<XMLEvent>();
+		result.add(events.get(0));
+		int i = 1;
+		int last = events.size() - 1;
+		while (i < last) {
+			XMLEvent event = events.get(i);
+			if (!event.isStartElement()) {
+				if (event.isCharacters() && event.asCharacters().isWhiteSpace()) {
+					whitespace.add(event);
+				} else {
+					result.addAll(whitespace);
+					whitespace.clear();
+					result.add(event);
+				}
+				i++;
+				continue;
+			}
+			int end = findEnd(events, i);
+			List<XMLEvent> property = scrubProperty(events.subList(i, end + 1));
+			if (property != null) {
+				result.addAll(whitespace);
+				result.addAll(property);
+			}
+			whitespace.clear();
+			i = end + 1;
+		}
+		result.addAll(whitespace);
+		result.add(events.get(last));
+		return result;
+	}
+
+	/**
+	 * Finds the end of the element starting at an index.
+	 *
+	 * @param events
+	 *            the events
+	 * @param startIndex
+	 *            the index of the start element
+	 * @return the index of the matching end element
+	 */
+	private static int findEnd(List<XMLEvent> events, int startIndex) {
+		int depth = 0;
+		for (int i = startIndex; i < events.size(); i++) {
+			XMLEvent event = events.get(i);
+			if (event.isStartElement()) {
+				depth++;
+			} else if (event.isEndElement()) {
+				depth--;
+				if (depth == 0) {
+					return i;
+				}
+			}
+		}
+		return events.size() - 1;
+	}
+
+	/**
+	 * Scrubs one property element of a class.
+	 *
+	 * @param events
+	 *            the events of the property element
+	 * @return the scrubbed events, or null if the property value is dropped
+	 */
+	private List<XMLEvent> scrubProperty(List<XMLEvent> events) {
+		if (referencesRemoved(events)) {
+			valuesRemoved++;
+			return null;
+		}
+		StartElement start = events.get(0).asStartElement();
+		URI propertyURI = URI.create(start.getName().getNamespaceURI()
+				+ start.getName().getLocalPart());
+
+		// a simple literal is start, optional text, end
+		boolean simple = events.size() == 2
+				|| (events.size() == 3 && events.get(1).isCharacters());
+		if (!simple) {
+			if (engine.removesProperty(propertyURI)) {
+				valuesRemoved++;
+				return null;
+			}
+			return events;
+		}
+		String literal = events.size() == 3 ? events.get(1).asCharacters()
+				.getData() : "";
+		String dataType = getAttribute(start, RDF, "datatype");
+		String lang = getAttribute(start, XML, "lang");
+		if (dataType == null && lang == null
+				&& getAttribute(start, RDF, "resource") != null) {
+			if (engine.removesProperty(propertyURI)) {
+				valuesRemoved++;
+				return null;
+			}
+			return events;
+		}
+
+		if (ANY_URI.equals(dataType)
+				&& removedDescendants.contains(literal.trim())) {
+			valuesRemoved++;
+			return null;
+		}
+		String scrubbed = engine.scrubLiteral(propertyURI, literal, true);
+		if (scrubbed == null || scrubEmpty && scrubbed.length() == 0
+				&& (dataType != null || lang != null)) {
+			valuesRemoved++;
+			return null;
+		}
+		if (scrubbed == literal) {
+			return events;
+		}
+		valuesChanged++;
+		List<XMLEvent> result = new ArrayList<XMLEvent>(3);
+		result.add(start);
+		result.add(eventFactory.createCharacters(scrubbed));
+		result.add(events.get(events.size() - 1));
+		return result;
+	}
+
+	/**
+	 * Checks whether any rdf:resource or rdf:about in a subtree points to a
+	 * removed class.
+	 *
+	 * @param events
+	 *            the events of the subtree
+	 * @return true, if a removed class is referenced
+	 */
+	private boolean referencesRemoved(List<XMLEvent> events) {
+		if (removed.isEmpty()) {
+			return false;
+		}
+		for (XMLEvent event : events) {
+			if (event.isStartElement()) {
+				StartElement start = event.asStartElement();
+				String resource = getAttribute(start, RDF, "resource");
+				if (resource != null && removed.contains(resolve(resource))) {
+					return true;
+				}
+				String about = getAttribute(start, RDF, "about");
+				if (about != null && removed.contains(resolve(about))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the value of an attribute.
+	 *
+	 * @param start
+	 *            the start element
+	 * @param ns
+	 *            the attribute namespace
+	 * @param local
+	 *            the attribute local name
+	 * @return the value, or null if absent
+	 */
+	@SuppressWarnings("unchecked")
+	private static String getAttribute(StartElement start, String ns,
+			String local) {
+		Iterator<Attribute> it = start.getAttributes();
+		while (it.hasNext()) {
+			Attribute a = it.next();
+			if (local.equals(a.getName().getLocalPart())
+					&& ns.equals(a.getName().getNamespaceURI())) {
+				return a.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the subject uri of a node element.
+	 *
+	 * @param about
+	 *            the rdf:about value, may be null
+	 * @param id
+	 *            the rdf:ID value, may be null
+	 * @return the absolute uri, or null for a blank node
+	 */
+	private String getSubject(String about, String id) {
+		if (about != null) {
+			return resolve(about);
+		}
+		if (id != null) {
+			return resolve("#" + id);
+		}
+		return null;
+	}
+
+	/**
+	 * Resolves a uri reference against the document base.
+	 *
+	 * @param ref
+	 *            the reference
+	 * @return the absolute uri
+	 */
+	private String resolve(String ref) {
+		if (ref.startsWith("#")) {
+			if (base != null) {
+				return base + ref;
+			}
+			return scrubber.createURI(ref.substring(1)).toString();
+		}
+		return ref;
+	}
+
+	/**
+	 * Checks whether an element declares a named class.
+	 *
+	 * @param ns
+	 *            the element namespace
+	 * @param local
+	 *            the element local name
+	 * @return true, if it is owl:Class or owl:DeprecatedClass
+	 */
+	private static boolean isClass(String ns, String local) {
+		return OWL.equals(ns)
+				&& ("Class".equals(local) || "DeprecatedClass".equals(local));
+	}
+
+	/**
+	 * Checks whether a top level element is an individual, i.e. a typed node
+	 * whose type is not an RDF, RDFS or OWL term, or an owl:Thing.
+	 *
+	 * @param ns
+	 *            the element namespace
+	 * @param local
+	 *            the element local name
+	 * @return true, if it is an individual
+	 */
+	private static boolean isIndividual(String ns, String local) {
+		if (OWL.equals(ns)) {
+			return "Thing".equals(local);
+		}
+		return !RDF.equals(ns) && !RDFS.equals(ns);
+	}
+
+	/**
+	 * Counts the characters written to the output, so the cache can say where
+	 * each element went, and captures them when verifying. The event writer is
+	 * flushed after every element, so flushes stop here; the output is
+	 * flushed when it is closed.
+	 */
+	private static final class CountingWriter extends Writer {
+
+		/** The output, or null to only capture. */
+		private final Writer out;
+
+		/** The number of characters written. */
+		long count = 0;
+
+		/** The characters written, while capturing, or null. */
+		StringBuilder capture;
+
+		/**
+		 * Instantiates a new counting writer.
+		 *
+		 * @param out
+		 *            the output, or null to only capture
+		 */
+		CountingWriter(Writer out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			if (out != null) {
+				out.write(c);
+			}
+			count++;
+			if (capture != null) {
+				capture.append((char) c);
+			}
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			if (out != null) {
+				out.write(cbuf, off, len);
+			}
+			count += len;
+			if (capture != null) {
+				capture.append(cbuf, off, len);
+			}
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			if (out != null) {
+				out.write(str, off, len);
+			}
+			count += len;
+			if (capture != null) {
+				capture.append(str, off, off + len);
+			}
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the same characters to two writers, so one serialization of the
+ * ontology can be saved in two encodings.
+ */
+final class TeeWriter extends Writer {
+
+	/** The writers. */
+	private final Writer first, second;
+
+	/**
+	 * Instantiates a new tee writer.
+	 *
+	 * @param first
+	 *            the first writer
+	 * @param second
+	 *            the second writer
+	 */
+	TeeWriter(Writer first, Writer second) {
+		this.first = first;
+		this.second = second;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		first.write(c);
+		second.write(c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		first.write(cbuf, off, len);
+		second.write(cbuf, off, len);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		first.write(str, off, len);
+		second.write(str, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		first.flush();
+		second.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			first.close();
+		} finally {
+			second.close();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package gov.nih.nci.owl;
+
+/*
+ * Center for Bioinformatics and Information Technology (CBIIT)
+ * Enterprise Vocabulary Services (EVS)
+ */
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.semanticweb.owl.apibinding.OWLManager;
+import org.semanticweb.owl.model.AddAxiom;
+import org.semanticweb.owl.model.OWLAxiom;
+import org.semanticweb.owl.model.OWLClass;
+import org.semanticweb.owl.model.OWLDataFactory;
+import org.semanticweb.owl.model.OWLOntology;
+import org.semanticweb.owl.model.OWLOntologyChange;
+import org.semanticweb.owl.model.OWLOntologyManager;
+
+/**
+ * Checks that closing a profile overlay gives back the loaded base, so the
+ * next profile sees the ontology as it was read.
+ *
+ * A complex rule that strips a qualifier can turn a value into one the class
+ * already has. Adding that value is no change at all, and undoing it must not
+ * remove the value the base had.
+ *
+ * Run with "ant test"; the exit status is not 0 if a check fails.
+ */
+public class ProfileOverlayTest {
+
+	/** The namespace of the test ontology. */
+	private static final String NAMESPACE = "http://ncicb.nci.nih.gov/xml/owl/EVS/Thesaurus.owl";
+
+	/** The XMLLiteral data type. */
+	private static final String XML_LITERAL = "http://www.w3.org/1999/02/22-rdf-syntax-ns#XMLLiteral";
+
+	/** The number of failed checks. */
+	private static int failures = 0;
+
+	/**
+	 * The main method.
+	 *
+	 * @param args
+	 *            the arguments (unused)
+	 * @throws Exception
+	 *             the exception
+	 */
+	public static void main(String[] args) throws Exception {
+		restoresValueMadeDuplicate();
+		if (failures > 0) {
+			System.out.println(failures + " check(s) failed.");
+			System.exit(1);
+		}
+		System.out.println("All checks passed.");
+	}
+
+	/**
+	 * Strips subsource-name from a FULL_SYN identical to another FULL_SYN of
+	 * the same class but for that qualifier, then closes the overlay.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	private static void restoresValueMadeDuplicate() throws Exception {
+		OWLOntologyManager manager = OWLManager.createOWLOntologyManager();
+		OWLOntology ontology = manager.createOntology(URI.create(NAMESPACE));
+		OWLDataFactory factory = manager.getOWLDataFactory();
+		OWLClass c = factory.getOWLClass(URI.create(NAMESPACE + "#C"));
+		List<OWLOntologyChange> changes = new ArrayList<OWLOntologyChange>();
+		changes.add(new AddAxiom(ontology, factory.getOWLDeclarationAxiom(c)));
+		changes.add(new AddAxiom(ontology, fullSyn(factory, c,
+				"<ncicp:ComplexTerm><ncicp:term-name>X</ncicp:term-name>"
+						+ "<ncicp:subsource-name>S</ncicp:subsource-name>"
+						+ "</ncicp:ComplexTerm>")));
+		changes.add(new AddAxiom(ontology, fullSyn(factory, c,
+				"<ncicp:ComplexTerm><ncicp:term-name>X</ncicp:term-name>"
+						+ "</ncicp:ComplexTerm>")));
+		manager.applyChanges(changes);
+		Set<OWLAxiom> base = new HashSet<OWLAxiom>(ontology.getAxioms());
+
+		File saveFile = File.createTempFile("overlay", ".owl");
+		saveFile.deleteOnExit();
+		OWLScrubber scrubber = new OWLScrubber();
+		scrubber.setOntology(manager, ontology, NAMESPACE, "ncicp", saveFile
+				.toURI());
+		ProfileOverlay overlay = scrubber.openOverlay();
+		scrubber.removeComplex("FULL_SYN\tsubsource-name");
+		check("the first profile leaves one FULL_SYN", ontology
+				.getAxiomCount() == base.size() - 1);
+		check("only the removal is recorded", overlay.size() == 1);
+		scrubber.closeOverlay();
+		check("the next profile sees the base", base.equals(ontology
+				.getAxioms()));
+	}
+
+	/**
+	 * Creates a FULL_SYN annotation axiom.
+	 *
+	 * @param factory
+	 *            the data factory
+	 * @param c
+	 *            the class
+	 * @param literal
+	 *            the XML literal
+	 * @return the axiom
+	 */
+	private static OWLAxiom fullSyn(OWLDataFactory factory, OWLClass c,
+			String literal) {
+		return factory.getOWLEntityAnnotationAxiom(c, factory
+				.getOWLConstantAnnotation(URI.create(NAMESPACE + "#FULL_SYN"),
+						factory.getOWLTypedConstant(literal, factory
+								.getOWLDataType(URI.create(XML_LITERAL)))));
+	}
+
+	/**
+	 * Reports a check.
+	 *
+	 * @param what
+	 *            what is checked
+	 * @param ok
+	 *            whether it holds
+	 */
+	private static void check(String what, boolean ok) {
+		System.out.println((ok ? "ok   " : "FAIL ") + what);
+		if (!ok) {
+			failures++;
+		}
+	}
+}